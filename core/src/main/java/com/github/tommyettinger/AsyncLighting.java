@@ -0,0 +1,350 @@
+package com.github.tommyettinger;
+
+import com.badlogic.gdx.utils.TimeUtils;
+import squidpony.squidmath.Coord;
+import squidpony.squidmath.OrderedMap;
+
+/**
+ * Computes the lighting of a {@link LightingHandler} ahead of time with a {@link LightingWorker}, so the render thread
+ * doesn't stall on turns where lighting is heavy. The LightingHandler given to the constructor, the front, stays the one
+ * the game changes and draws from: lights and resistances are changed on it as usual, but instead of calling its
+ * calculateFOV() and update(), the game calls {@link #calculateFOV(Coord...)} when the viewer moves and
+ * {@link #update(int, int, int, int)} at the start of each frame, then draws the front as usual.
+ * <br>
+ * Each job copies what the lighting depends on (resistances, lights, static lights, shades, viewers, and the time) from
+ * the front into a snapshot on the render thread, and the worker computes lighting from that snapshot in a second
+ * LightingHandler, the back. When a job finishes, the next call to update() copies its results into the front, so
+ * arrays the game holds from the front stay valid, then starts the next job. Only the lighting within the bounds the
+ * job updated is copied, unless the job also recalculated FOV for moved viewers; then the back's whole
+ * {@link LightingHandler#colorLighting}, {@link LightingHandler#fovResult}, {@link LightingHandler#losResult},
+ * {@link LightingHandler#visibleCells}, and {@link LightingHandler#noticeable} are copied, once per move. If the worker is still busy, update() returns right away
+ * and the front keeps showing the last finished frame. Lights are taken from {@link LightingHandler#lights}, not from a
+ * {@link RadianceBank}.
+ * <br>
+ * With {@link LightingWorker#INLINE}, every job finishes inside update(), so the front is always current; with a
+ * worker thread, lighting lags behind by at most the time one job takes.
+ */
+public class AsyncLighting {
+    /**
+     * The LightingHandler the game changes and draws from; results are copied into it.
+     */
+    public final LightingHandler front;
+    /**
+     * The LightingHandler the worker computes lighting in; only touched by the worker while a job is running.
+     */
+    public final LightingHandler back;
+    /**
+     * Runs each job; see {@link LightingWorker}.
+     */
+    public final LightingWorker worker;
+
+    private final LightClock.Manual backClock = new LightClock.Manual();
+    private final Runnable job = new Runnable() {
+        @Override
+        public void run() {
+            compute();
+        }
+    };
+    // guarded by this; busy is true from when a job starts until it finishes, and done is true once a finished job
+    // hasn't been copied into the front yet
+    private boolean busy, done;
+
+    // the snapshot, written by the render thread only while no job is running
+    private final double[][] snapResistances;
+    private int snapResistanceVersion = -1, snapCount, snapStaticCount, snapShadeCount;
+    private boolean snapResistancesChanged;
+    private int[] snapX = new int[16], snapY = new int[16], snapStaticX = new int[4], snapStaticY = new int[4],
+            snapShadeX = new int[4], snapShadeY = new int[4];
+    private Radiance[] snapLights = new Radiance[16], snapStatics = new Radiance[4], snapShades = new Radiance[4];
+    private Coord[] snapViewers, viewers;
+    private int snapMinX, snapMinY, snapMaxX, snapMaxY, sightRequested, snapSight, backSight = -1, shownSight;
+    // what the last finished job computed: everything if backAll, or otherwise the lighting in these bounds
+    private int backMinX, backMinY, backMaxX, backMaxY;
+    private boolean backAll;
+    private long snapTime;
+
+    /**
+     * Makes an AsyncLighting that computes the lighting of front with the given worker. The back copies the
+     * resistances and settings of front as they are now; later changes to settings such as
+     * {@link LightingHandler#viewerRange} are copied at the start of each job.
+     * @param front the LightingHandler the game changes and draws from
+     * @param worker runs each job, such as {@link LightingWorker#INLINE} or a worker thread
+     */
+    public AsyncLighting(LightingHandler front, LightingWorker worker)
+    {
+        this.front = front;
+        this.worker = worker;
+        snapResistances = new double[front.width][front.height];
+        final double[][] resistances = new double[front.width][front.height];
+        for (int x = 0; x < front.width; x++) {
+            System.arraycopy(front.resistances[x], 0, resistances[x], 0, front.height);
+        }
+        back = new LightingHandler(resistances, front.backgroundColor, front.radiusStrategy, front.viewerRange);
+        back.clock = backClock;
+        back.useFlatStorage(front.flatStorage);
+        back.useTileRunner(front.tileRunner);
+        back.useTemporalCoherence(front.temporalCoherence);
+        back.useCompactStamps(front.compactStamps);
+        if(front.stampCache != null)
+            back.useStampCache(front.stampCache.capacity);
+        snapResistanceVersion = front.resistanceVersion;
+    }
+
+    /**
+     * Sets the viewer or viewers for the next job, like {@link LightingHandler#calculateFOV(Coord...)}; call this
+     * whenever a viewer moves. If no viewers have been set, jobs light everything as {@link LightingHandler#updateAll()}
+     * does.
+     * @param viewers the positions of every viewer sharing vision
+     */
+    public void calculateFOV(Coord... viewers)
+    {
+        this.viewers = viewers.clone();
+        ++sightRequested;
+    }
+
+    /**
+     * Call at the start of each frame: if a job has finished, copies its results into {@link #front}, and if the worker
+     * is free, starts a job for the current state of front, updating within the given bounds. This never waits for the
+     * worker.
+     * @param minX inclusive lower bound on x to update
+     * @param minY inclusive lower bound on y to update
+     * @param maxX exclusive upper bound on x to update
+     * @param maxY exclusive upper bound on y to update
+     * @return true if the results copied into front come from a newer {@link #calculateFOV(Coord...)} than the last
+     *         results copied, meaning {@link LightingHandler#visibleCells} and the FOV results changed
+     */
+    public boolean update(int minX, int minY, int maxX, int maxY)
+    {
+        boolean sightChanged = collect();
+        if(startJob(minX, minY, maxX, maxY))
+            sightChanged |= collect();
+        return sightChanged;
+    }
+
+    /**
+     * Checks if a job is running.
+     * @return true if the worker hasn't finished the last job started
+     */
+    public synchronized boolean isBusy()
+    {
+        return busy;
+    }
+
+    private boolean collect()
+    {
+        synchronized (this) {
+            if(busy || !done)
+                return false;
+            done = false;
+        }
+        final boolean changed = backSight != shownSight;
+        // only a job that ran FOV changes more than the lighting it updated, so other jobs copy just that area
+        if(changed || backAll)
+            front.copyResultsFrom(back);
+        else
+            front.copyLightingFrom(back, backMinX, backMinY, backMaxX, backMaxY);
+        shownSight = backSight;
+        return changed;
+    }
+
+    private boolean startJob(int minX, int minY, int maxX, int maxY)
+    {
+        synchronized (this) {
+            if(busy)
+                return false;
+            busy = true;
+        }
+        takeSnapshot(minX, minY, maxX, maxY);
+        worker.execute(job);
+        return true;
+    }
+
+    private void takeSnapshot(int minX, int minY, int maxX, int maxY)
+    {
+        snapResistancesChanged = snapResistanceVersion != front.resistanceVersion;
+        if(snapResistancesChanged)
+        {
+            for (int x = 0; x < front.width; x++) {
+                System.arraycopy(front.resistances[x], 0, snapResistances[x], 0, front.height);
+            }
+            snapResistanceVersion = front.resistanceVersion;
+        }
+        final OrderedMap<Coord, Radiance> lights = front.syncLights().lights, statics = front.staticLights;
+        snapCount = lights.size();
+        if(snapLights.length < snapCount)
+        {
+            final int cap = Math.max(snapCount, snapLights.length << 1);
+            snapX = new int[cap];
+            snapY = new int[cap];
+            snapLights = new Radiance[cap];
+        }
+        for (int i = 0; i < snapCount; i++) {
+            final Coord pos = lights.keyAt(i);
+            snapX[i] = pos.x;
+            snapY[i] = pos.y;
+            snapLights[i] = copy(lights.getAt(i), snapLights[i]);
+        }
+        snapStaticCount = statics.size();
+        if(snapStatics.length < snapStaticCount)
+        {
+            final int cap = Math.max(snapStaticCount, snapStatics.length << 1);
+            snapStaticX = new int[cap];
+            snapStaticY = new int[cap];
+            snapStatics = new Radiance[cap];
+        }
+        for (int i = 0; i < snapStaticCount; i++) {
+            final Coord pos = statics.keyAt(i);
+            snapStaticX[i] = pos.x;
+            snapStaticY[i] = pos.y;
+            snapStatics[i] = copy(statics.getAt(i), snapStatics[i]);
+        }
+        final OrderedMap<Coord, Radiance> shades = front.shades;
+        snapShadeCount = shades.size();
+        if(snapShades.length < snapShadeCount)
+        {
+            final int cap = Math.max(snapShadeCount, snapShades.length << 1);
+            snapShadeX = new int[cap];
+            snapShadeY = new int[cap];
+            snapShades = new Radiance[cap];
+        }
+        for (int i = 0; i < snapShadeCount; i++) {
+            final Coord pos = shades.keyAt(i);
+            snapShadeX[i] = pos.x;
+            snapShadeY[i] = pos.y;
+            snapShades[i] = copy(shades.getAt(i), snapShades[i]);
+        }
+        snapViewers = viewers;
+        snapSight = sightRequested;
+        snapMinX = minX;
+        snapMinY = minY;
+        snapMaxX = maxX;
+        snapMaxY = maxY;
+        snapTime = front.clock == null ? TimeUtils.millis() : front.clock.millis();
+        back.viewerRange = front.viewerRange;
+        back.radiusStrategy = front.radiusStrategy;
+        back.packedBlending = front.packedBlending;
+        back.openAreaStamps = front.openAreaStamps;
+        if(back.compactStamps != front.compactStamps)
+            back.useCompactStamps(front.compactStamps);
+        back.tileSize = front.tileSize;
+        back.coherenceSteps = front.coherenceSteps;
+        back.lightBudget = front.lightBudget;
+        back.deferredInterval = front.deferredInterval;
+    }
+
+    private static Radiance copy(Radiance from, Radiance into)
+    {
+        // the copy constructor doesn't keep the seed, which flicker depends on
+        if(into == null)
+            into = new Radiance();
+        into.range = from.range;
+        into.color = from.color;
+        into.flicker = from.flicker;
+        into.strobe = from.strobe;
+        into.delay = from.delay;
+        into.flare = from.flare;
+        into.seed = from.seed;
+        return into;
+    }
+
+    /**
+     * Brings the back up to date with the snapshot and computes its lighting; runs on the worker.
+     */
+    private void compute()
+    {
+        try {
+            if(snapResistancesChanged)
+                back.setResistances(0, 0, snapResistances);
+            syncLights();
+            syncStaticLights();
+            syncShades();
+            backClock.time = snapTime;
+            if(snapViewers == null)
+                back.updateAll();
+            else
+            {
+                if(backSight != snapSight)
+                    back.calculateFOV(snapViewers);
+                back.update(snapMinX, snapMinY, snapMaxX, snapMaxY);
+            }
+            backSight = snapSight;
+            backAll = snapViewers == null;
+            backMinX = snapMinX;
+            backMinY = snapMinY;
+            backMaxX = snapMaxX;
+            backMaxY = snapMaxY;
+        } finally {
+            synchronized (this) {
+                busy = false;
+                done = true;
+            }
+        }
+    }
+
+    private void syncLights()
+    {
+        final OrderedMap<Coord, Radiance> lights = back.lights;
+        boolean same = lights.size() == snapCount;
+        for (int i = 0; same && i < snapCount; i++) {
+            final Coord pos = lights.keyAt(i);
+            same = pos.x == snapX[i] && pos.y == snapY[i];
+        }
+        if(same)
+        {
+            // the same lights in the same places, so only their qualities might have changed
+            for (int i = 0; i < snapCount; i++) {
+                final Radiance light = lights.getAt(i);
+                final float range = light.range;
+                copy(snapLights[i], light);
+                if(light.range != range)
+                    back.setLightRange(lights.keyAt(i), light.range);
+            }
+            return;
+        }
+        lights.clear();
+        for (int i = 0; i < snapCount; i++) {
+            lights.put(Coord.get(snapX[i], snapY[i]), copy(snapLights[i], null));
+        }
+        back.rebuildLightIndex();
+    }
+
+    private void syncStaticLights()
+    {
+        final OrderedMap<Coord, Radiance> statics = back.staticLights;
+        boolean same = statics.size() == snapStaticCount;
+        for (int i = 0; same && i < snapStaticCount; i++) {
+            final Coord pos = statics.keyAt(i);
+            same = pos.x == snapStaticX[i] && pos.y == snapStaticY[i] && statics.getAt(i).equals(snapStatics[i]);
+        }
+        if(same)
+            return;
+        // static lights are baked, so they are only replaced when they actually change
+        while (!statics.isEmpty()) {
+            back.removeStaticLight(statics.keyAt(statics.size() - 1));
+        }
+        for (int i = 0; i < snapStaticCount; i++) {
+            back.addStaticLight(snapStaticX[i], snapStaticY[i], copy(snapStatics[i], null));
+        }
+    }
+
+    private void syncShades()
+    {
+        final OrderedMap<Coord, Radiance> shades = back.shades;
+        boolean same = shades.size() == snapShadeCount;
+        for (int i = 0; same && i < snapShadeCount; i++) {
+            final Coord pos = shades.keyAt(i);
+            same = pos.x == snapShadeX[i] && pos.y == snapShadeY[i];
+        }
+        if(same)
+        {
+            for (int i = 0; i < snapShadeCount; i++) {
+                copy(snapShades[i], shades.getAt(i));
+            }
+            return;
+        }
+        shades.clear();
+        for (int i = 0; i < snapShadeCount; i++) {
+            shades.put(Coord.get(snapShadeX[i], snapShadeY[i]), copy(snapShades[i], null));
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package com.github.tommyettinger;
+
+import squidpony.squidgrid.FOV;
+import squidpony.squidgrid.Radius;
+import squidpony.squidmath.GreasedRegion;
+
+import java.util.Arrays;
+
+/**
+ * Field of view on {@link GreasedRegion}s instead of 2D double arrays. This reads which cells block sight from one
+ * GreasedRegion, with each cell one bit of a 64-bit word, and writes which cells can be seen into another, so a
+ * fog-of-war or a visible area can be built and combined with other regions using only word operations. The shape is
+ * the same as {@link FOV#reuseFOV(double[][], double[][], int, int, double, Radius)}: a cell is in the result exactly
+ * when reuseFOV would give it a value greater than 0, given resistances that are 1.0 or more where blocking has a cell.
+ * Line of sight works the same way for {@link FOV#reuseLOS(double[][], double[][], int, int, int, int, int, int)}, and
+ * both can write the matching doubles during the same shadowcast, so a viewer never needs to be cast twice. Lights
+ * can be cast into a window of a double array with {@link #light(GreasedRegion, int, int, double, Radius, int, int,
+ * int, int, double[][])}, without touching the rest of the map.
+ */
+public final class BitVision {
+    private BitVision()
+    {
+    }
+
+    /**
+     * Fills {@code into} with the cells visible from startX,startY within the given radius, treating the cells in
+     * blocking as walls; cells are visible exactly when {@link FOV#reuseFOV(double[][], double[][], int, int, double,
+     * Radius)} would give them a value above 0.
+     * @param blocking the cells that block sight, such as {@link LightingHandler#blocking}; not modified
+     * @param startX the x-position of the viewer
+     * @param startY the y-position of the viewer
+     * @param radius how far the viewer can see
+     * @param strategy how distance is measured
+     * @param into a GreasedRegion to overwrite; resized to match blocking if needed
+     * @return into, after modification
+     */
+    public static GreasedRegion fov(GreasedRegion blocking, int startX, int startY, double radius, Radius strategy,
+                                    GreasedRegion into)
+    {
+        return fov(blocking, startX, startY, radius, strategy, into, null);
+    }
+
+    /**
+     * Like {@link #fov(GreasedRegion, int, int, double, Radius, GreasedRegion)}, but also writes the value
+     * {@link FOV#reuseFOV(double[][], double[][], int, int, double, Radius)} would give each visible cell into
+     * {@code light}, in the same shadowcast, wherever that is larger than what light already has. Cells that aren't
+     * visible keep their values, so light should be filled with 0 first for one viewer, or can be left as it is to
+     * merge the sight of several viewers.
+     * @param blocking the cells that block sight, such as {@link LightingHandler#blocking}; not modified
+     * @param startX the x-position of the viewer
+     * @param startY the y-position of the viewer
+     * @param radius how far the viewer can see
+     * @param strategy how distance is measured
+     * @param into a GreasedRegion to overwrite; resized to match blocking if needed
+     * @param light a 2D double array with the same size as blocking to write to, or null to only write into
+     * @return into, after modification
+     */
+    public static GreasedRegion fov(GreasedRegion blocking, int startX, int startY, double radius, Radius strategy,
+                                    GreasedRegion into, double[][] light)
+    {
+        if(into.width != blocking.width || into.height != blocking.height)
+            into.resizeAndEmpty(blocking.width, blocking.height);
+        else
+            into.empty();
+        if(startX < 0 || startY < 0 || startX >= blocking.width || startY >= blocking.height)
+            return into;
+        if(radius > 0.0)
+        {
+            into.insert(startX, startY);
+            if(light != null)
+                light[startX][startY] = Math.max(light[startX][startY], Math.min(1.0, radius));
+        }
+        castAll(blocking, startX, startY, radius, strategy, false, 0, 0, blocking.width, blocking.height, into, light);
+        return into;
+    }
+
+    /**
+     * Writes the values {@link FOV#reuseFOV(double[][], double[][], int, int, double, Radius)} would give into
+     * {@code light}, but only within the given bounds, which are cleared to 0 first; cells outside them are left as
+     * they were. Unlike reuseFOV, which fills the whole of light with 0 before casting, this costs time proportional to
+     * the area of the bounds, so a light that only reaches a small part of a large map only touches that part. The
+     * result matches reuseFOV everywhere in the bounds as long as they hold every cell within the radius.
+     * @param blocking the cells that block sight, such as {@link LightingHandler#blocking}; not modified
+     * @param startX the x-position of the light
+     * @param startY the y-position of the light
+     * @param radius how far the light reaches
+     * @param strategy how distance is measured
+     * @param minX inclusive lower bound on x to clear and cast into
+     * @param minY inclusive lower bound on y to clear and cast into
+     * @param maxX exclusive upper bound on x to clear and cast into
+     * @param maxY exclusive upper bound on y to clear and cast into
+     * @param light a 2D double array with the same size as blocking to write to
+     * @return light, after modification
+     */
+    public static double[][] light(GreasedRegion blocking, int startX, int startY, double radius, Radius strategy,
+                                   int minX, int minY, int maxX, int maxY, double[][] light)
+    {
+        minX = Math.max(minX, 0);
+        minY = Math.max(minY, 0);
+        maxX = Math.min(maxX, blocking.width);
+        maxY = Math.min(maxY, blocking.height);
+        for (int x = minX; x < maxX; x++) {
+            Arrays.fill(light[x], minY, Math.max(minY, maxY), 0.0);
+        }
+        if(startX < minX || startY < minY || startX >= maxX || startY >= maxY)
+            return light;
+        light[startX][startY] = Math.max(0.0, Math.min(1.0, radius));
+        castAll(blocking, startX, startY, radius, strategy, false, minX, minY, maxX, maxY, null, light);
+        return light;
+    }
+
+    /**
+     * Fills {@code into} with the cells in line of sight from startX,startY within the given bounds, treating the
+     * cells in blocking as walls, with no limit on distance; these are the cells
+     * {@link FOV#reuseLOS(double[][], double[][], int, int, int, int, int, int)} gives 1.0. The starting cell is always
+     * included, even outside the bounds. If light is non-null, this also writes 1.0 into it for each of those cells,
+     * leaving other cells as they were, so light should be filled with 0 first for one viewer, or can be left as it is
+     * to merge the sight of several viewers.
+     * @param blocking the cells that block sight, such as {@link LightingHandler#blocking}; not modified
+     * @param startX the x-position of the viewer
+     * @param startY the y-position of the viewer
+     * @param minX inclusive lower bound on x to check
+     * @param minY inclusive lower bound on y to check
+     * @param maxX exclusive upper bound on x to check
+     * @param maxY exclusive upper bound on y to check
+     * @param into a GreasedRegion to overwrite; resized to match blocking if needed
+     * @param light a 2D double array with the same size as blocking to write to, or null to only write into
+     * @return into, after modification
+     */
+    public static GreasedRegion los(GreasedRegion blocking, int startX, int startY, int minX, int minY, int maxX,
+                                    int maxY, GreasedRegion into, double[][] light)
+    {
+        if(into.width != blocking.width || into.height != blocking.height)
+            into.resizeAndEmpty(blocking.width, blocking.height);
+        else
+            into.empty();
+        if(startX < 0 || startY < 0 || startX >= blocking.width || startY >= blocking.height)
+            return into;
+        into.insert(startX, startY);
+        if(light != null)
+            light[startX][startY] = 1.0;
+        castAll(blocking, startX, startY, blocking.width + blocking.height, Radius.SQUARE, true,
+                Math.max(minX, 0), Math.max(minY, 0), Math.min(maxX, blocking.width), Math.min(maxY, blocking.height),
+                into, light);
+        return into;
+    }
+
+    /**
+     * Shadowcasts all eight octants, two for each diagonal direction, in the same order FOV uses.
+     */
+    private static void castAll(GreasedRegion blocking, int startX, int startY, double radius, Radius strategy,
+                                boolean binary, int minX, int minY, int maxX, int maxY, GreasedRegion into,
+                                double[][] light)
+    {
+        final double decay = 1.0 / radius;
+        final long[] walls = blocking.data, seen = into == null ? null : into.data;
+        final int ySections = blocking.ySections, limit = blocking.width + blocking.height;
+        for (int i = 0; i < 4; i++) {
+            final int dx = (i & 1) * 2 - 1, dy = (i >> 1) * 2 - 1;
+            cast(1, 1.0, 0.0, 0, dx, dy, 0, radius, startX, startY, decay, binary, walls, seen, light, ySections,
+                    limit, minX, minY, maxX, maxY, strategy);
+            cast(1, 1.0, 0.0, dx, 0, 0, dy, radius, startX, startY, decay, binary, walls, seen, light, ySections,
+                    limit, minX, minY, maxX, maxY, strategy);
+        }
+    }
+
+    /**
+     * One octant of recursive shadowcasting, following the same steps and slopes as FOV does so the cells reached are
+     * identical, but testing and setting bits instead of reading and writing doubles. Cells outside the bounds are
+     * skipped as FOV skips cells off the map. With binary true, every cell reached gets 1.0 in light, as in line of
+     * sight; otherwise cells get the falloff FOV gives them.
+     */
+    private static void cast(int row, double start, double end, int xx, int xy, int yx, int yy, double radius,
+                             int startX, int startY, double decay, boolean binary, long[] walls, long[] seen,
+                             double[][] light, int ySections, int limit, int minX, int minY, int maxX, int maxY,
+                             Radius strategy)
+    {
+        if(start < end)
+            return;
+        double newStart = 0;
+        boolean blocked = false;
+        for (int distance = row; distance <= radius && distance < limit && !blocked; distance++) {
+            final int deltaY = -distance;
+            for (int deltaX = -distance; deltaX <= 0; deltaX++) {
+                final int currentX = startX + deltaX * xx + deltaY * xy, currentY = startY + deltaX * yx + deltaY * yy;
+                final double leftSlope = (deltaX - 0.5f) / (deltaY + 0.5f), rightSlope = (deltaX + 0.5f) / (deltaY - 0.5f);
+                if(!(currentX >= minX && currentY >= minY && currentX < maxX && currentY < maxY) || start < rightSlope)
+                    continue;
+                else if(end > leftSlope)
+                    break;
+                final int word = currentX * ySections + (currentY >> 6);
+                final long bit = 1L << (currentY & 63);
+                final double deltaRadius = strategy.radius(deltaX, deltaY);
+                if(deltaRadius <= radius)
+                {
+                    final double value = 1.0 - decay * deltaRadius;
+                    if(value > 0.0)
+                    {
+                        if(seen != null)
+                            seen[word] |= bit;
+                        if(light != null)
+                        {
+                            if(binary)
+                                light[currentX][currentY] = 1.0;
+                            else if(value > light[currentX][currentY])
+                                light[currentX][currentY] = value;
+                        }
+                    }
+                }
+                final boolean wall = (walls[word] & bit) != 0L;
+                if(blocked)
+                {
+                    if(wall)
+                        newStart = rightSlope;
+                    else
+                    {
+                        blocked = false;
+                        start = newStart;
+                    }
+                }
+                else if(wall && distance < radius)
+                {
+                    blocked = true;
+                    cast(distance + 1, start, leftSlope, xx, xy, yx, yy, radius, startX, startY, decay, binary, walls,
+                            seen, light, ySections, limit, minX, minY, maxX, maxY, strategy);
+                    newStart = rightSlope;
+                }
+            }
+        }
+    }
+}
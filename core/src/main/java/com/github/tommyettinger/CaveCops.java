@@ -77,6 +77,20 @@ public class CaveCops extends ApplicationAdapter {
     
     private DungeonGenerator dungeonGen;
     public DungeonLevel dl;
+    /**
+     * If non-null, the lighting for each level mixes lights with this, possibly in parallel; null by default. The
+     * desktop launcher sets this before the game starts if the {@code cavecops.parallelLighting} system property is
+     * true. Null mixes lights on the render thread.
+     */
+    public TileRunner tileRunner;
+    /**
+     * If non-null, the lighting for each level is computed ahead of time by this, so heavy lighting doesn't hold up
+     * drawing, though FOV and lighting then lag at least a frame behind the player; null by default. The desktop
+     * launcher sets this before the game starts if the {@code cavecops.asyncLighting} system property is true. Null
+     * computes lighting on the render thread.
+     */
+    public LightingWorker lightingWorker;
+    private AsyncLighting asyncLighting;
 //    private char[][] decoDungeon, bareDungeon, lineDungeon, prunedDungeon;
 //    private float[][] backgrounds;
     
@@ -290,6 +304,7 @@ public class CaveCops extends ApplicationAdapter {
         FlowingCaveGenerator flowing = new FlowingCaveGenerator(bigWidth, bigHeight, TilesetType.DEFAULT_DUNGEON, rng);
         dungeonGen.generate(flowing.generate());
         dl = new DungeonLevel(0, dungeonGen, decorationIndices);
+        dl.lighting.useTileRunner(tileRunner);
 //        DungeonBoneGen gen = new DungeonBoneGen(this.rng);
 //        CellularAutomaton ca = new CellularAutomaton(bigWidth, bigHeight);
 //        gen.generate(TilesetType.DEFAULT_DUNGEON, bigWidth, bigHeight);
@@ -326,6 +341,8 @@ public class CaveCops extends ApplicationAdapter {
         playerCreature.glow.strobe = 0f;
         playerCreature.glow.delay = 0f;
         playerCreature.glow.flare = 0.4f;
+        // the glow was filed as a shade while it was still dark, so it has to move over to the lights
+        dl.lighting.refile(playerCreature.moth.end);
         playerCreature.stats.set(Stat.TOUGHNESS, 7);
         playerCreature.stats.set(Stat.AGILITY, 6);
         playerCreature.fortune.setFavor(1000);
@@ -384,6 +401,11 @@ public class CaveCops extends ApplicationAdapter {
 //        }
 //        System.out.println(sum);
         dl.lighting.update();
+        if(lightingWorker != null)
+        {
+            asyncLighting = new AsyncLighting(dl.lighting, lightingWorker);
+            asyncLighting.calculateFOV(playerCreature.moth.start);
+        }
 //        sum = 0.0;
 //        for (int x = 0; x < bigWidth; x++) {
 //            for (int y = 0; y < bigHeight; y++) {
@@ -394,7 +416,7 @@ public class CaveCops extends ApplicationAdapter {
         
         impassable = new OrderedSet<>(creatures.size(), 0.25f);
 
-        blockage = new GreasedRegion(visible, 0.0);
+        blockage = dl.lighting.visibleCells.copy().not();
         seen = blockage.not().copy();
         currentlySeen = seen.copy();
         blockage.fringe8way();
@@ -626,36 +648,62 @@ public class CaveCops extends ApplicationAdapter {
         if (onGrid(end.x, end.y) && dl.bareDungeon[end.x][end.y] != '#')
         {
             creatures.alterCarefully(playerCreature.moth.end, end);
-            dl.lighting.moveLight(start, end);
-            dl.lighting.calculateFOV(end);
+            dl.lighting.moveGlow(start, end);
             playerCreature.moth.start = start;
             playerCreature.moth.end = end;
             playerCreature.moth.change = 0f;
             mode = ANIMATE;
             animationStart = TimeUtils.millis();
-            // This is just like the constructor used earlier, but affects an existing GreasedRegion without making
-            // a new one just for this movement.
-            blockage.refill(visible, 0.0);
-            seen.or(currentlySeen.remake(blockage.not()));
-            blockage.fringe8way();
-            dl.prune(seen);
+            // with async lighting, the new sight arrives in a later frame, and putMap() updates what was seen then
+            if(asyncLighting != null)
+                asyncLighting.calculateFOV(end);
+            else
+            {
+                dl.lighting.calculateFOV(end);
+                updateSeen();
+            }
         }
     }
 
+    /**
+     * Updates which cells are seen now and have ever been seen, after the lighting's visible cells changed.
+     */
+    private void updateSeen()
+    {
+        // This is just like the copy used earlier, but affects an existing GreasedRegion without making
+        // a new one just for this movement.
+        blockage.remake(dl.lighting.visibleCells).not();
+        seen.or(currentlySeen.remake(blockage.not()));
+        blockage.fringe8way();
+        dl.prune(seen);
+    }
+
     /**
      * Draws the map, applies any highlighting for the path to the cursor, and then draws the player.
      */
     public void putMap()
     {
         final float time = TimeUtils.timeSinceMillis(startTime) * 0.001f;
-        dl.lighting.update();
-        dl.lighting.draw(dl.lighting.currentBackgrounds, dl.backgrounds);
         Animation<TextureRegion> decoration;
         Creature creature;
         Coord c;
 
-        int xLo = Math.max(0, seen.xBound(true) - 1), xHi = Math.min(bigWidth , seen.xBound(false) + 2);
-        int yLo = Math.max(0, seen.yBound(true) - 1), yHi = Math.min(bigHeight, seen.yBound(false) + 2);
+        // only cells the camera can see are lit and drawn, with a one-cell border so nothing pops in at the edges
+        final float halfWidth = camera.viewportWidth * 0.5f, halfHeight = camera.viewportHeight * 0.5f;
+        int xLo = Math.max(MathUtils.floor(camera.position.x - halfWidth) - 1, Math.max(0, seen.xBound(true) - 1)),
+            xHi = Math.min(MathUtils.ceil(camera.position.x + halfWidth) + 1, Math.min(bigWidth , seen.xBound(false) + 2));
+        int yLo = Math.max(MathUtils.floor(camera.position.y - halfHeight) - 1, Math.max(0, seen.yBound(true) - 1)),
+            yHi = Math.min(MathUtils.ceil(camera.position.y + halfHeight) + 1, Math.min(bigHeight, seen.yBound(false) + 2));
+        // lights and draws each lit cell in one pass; lightening waits until the cursor and noise edits below are done
+        if(asyncLighting == null)
+            dl.lighting.updateAndDraw(dl.lighting.currentBackgrounds, dl.backgrounds, 0f, xLo, yLo, xHi, yHi);
+        else
+        {
+            // shows the newest lighting the worker has finished and starts on the next, without waiting for it
+            if(asyncLighting.update(xLo, yLo, xHi, yHi))
+                updateSeen();
+            dl.lighting.draw(dl.lighting.currentBackgrounds, dl.backgrounds, 0f, xLo, yLo, xHi, yHi);
+        }
         for (int i = xLo; i < xHi; i++) {
             for (int j = yLo; j < yHi; j++) {
                 c = Coord.get(i, j);
@@ -69,8 +69,34 @@ public class DungeonLevel {
         }
         floors.refill(bareDungeon, '.');
         lighting = new LightingHandler(DungeonUtility.generateResistances(decoDungeon), Palette.LEAD, Radius.CIRCLE, 3.0);
+        // the cache rounds each light's radius to 1/64 of a cell, so flickering lights step by at most 1/128 of a cell
+        // from what an uncached handler draws; lights with whole-number radii, like creature glows, are unchanged
+        lighting.useStampCache(256);
     }
     
+    /**
+     * Changes how much the cell at x,y blocks light, such as when a door opens or a wall breaks. Only lights that can
+     * reach that cell need their FOV recalculated; other code can check
+     * {@link LightingHandler#changedSince(int, int, int, int, int)} to see if an area it depends on was changed.
+     * @param x the x-position of the cell to change
+     * @param y the y-position of the cell to change
+     * @param resistance the new resistance, from 0.0 (fully transparent) to 1.0 (fully opaque)
+     */
+    public void setResistance(int x, int y, double resistance)
+    {
+        lighting.setResistance(x, y, resistance);
+    }
+
+    /**
+     * Changes how much every "on" cell in region blocks light; see {@link #setResistance(int, int, double)}.
+     * @param region a GreasedRegion the same size as this level
+     * @param resistance the new resistance, from 0.0 (fully transparent) to 1.0 (fully opaque)
+     */
+    public void setResistances(GreasedRegion region, double resistance)
+    {
+        lighting.setResistances(region, resistance);
+    }
+
     public void prune(final GreasedRegion seen)
     {
         LineKit.pruneLines(lineDungeon, seen, LineKit.light, prunedDungeon);
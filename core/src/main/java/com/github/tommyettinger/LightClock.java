@@ -0,0 +1,62 @@
+package com.github.tommyettinger;
+
+import com.badlogic.gdx.utils.TimeUtils;
+
+/**
+ * A source of time in milliseconds for the flicker and strobe effects of {@link Radiance}. A {@link LightingHandler}
+ * reads its {@link LightingHandler#clock} once per update and evaluates every light at that time, so swapping in a
+ * {@link Manual} clock makes lighting advance only when told to, which is useful for headless tests, replays, and
+ * benchmarks that need repeatable results.
+ */
+public interface LightClock {
+    /**
+     * Gets the current time in milliseconds; only differences between times matter.
+     * @return the current time in milliseconds
+     */
+    long millis();
+
+    /**
+     * Uses the system time, through {@link TimeUtils#millis()}; this is the default.
+     */
+    LightClock SYSTEM = new LightClock() {
+        @Override
+        public long millis() {
+            return TimeUtils.millis();
+        }
+    };
+
+    /**
+     * A LightClock that only changes when its {@link #time} is set or {@link #advance(long)} is called.
+     */
+    class Manual implements LightClock {
+        /**
+         * The time in milliseconds this will report.
+         */
+        public long time;
+
+        public Manual()
+        {
+        }
+
+        public Manual(long time)
+        {
+            this.time = time;
+        }
+
+        /**
+         * Moves this clock forward by the given number of milliseconds.
+         * @param delta how many milliseconds to advance by
+         * @return this, for chaining
+         */
+        public Manual advance(long delta)
+        {
+            time += delta;
+            return this;
+        }
+
+        @Override
+        public long millis() {
+            return time;
+        }
+    }
+}
@@ -0,0 +1,417 @@
+package com.github.tommyettinger;
+
+import com.badlogic.gdx.utils.IntArray;
+import com.badlogic.gdx.utils.ObjectIntMap;
+import squidpony.squidmath.Coord;
+import squidpony.squidmath.OrderedMap;
+
+import java.util.Arrays;
+
+/**
+ * A spatial index for the lights in a {@link LightingHandler}, splitting the map into square buckets of
+ * {@link #BUCKET_SIZE} by BUCKET_SIZE cells. Each light gets a slot number, which stays the same while the light moves;
+ * adding, moving, and removing a light only touches the buckets involved, so they take constant time. Queries find all
+ * lights positioned in a rectangle, or all lights whose range reaches into a rectangle, and return their slots in the
+ * same order the lights were added, so results that depend on the order lights are mixed in don't change.
+ * <br>
+ * This holds each light's Radiance as well as its position, so it can stand in for {@link LightingHandler#lights}
+ * between calls to {@link #copyInto(OrderedMap)}. The ranges this uses for queries are only updated when a light is
+ * added, when {@link #setRange(int, float)} is called, or by {@link #refreshRanges()}, since {@link Radiance#range}
+ * can be changed at any time. Each bucket keeps the largest range of the lights in it, which is made smaller again
+ * when that light leaves, and the search only widens by the largest of those.
+ */
+public class LightGrid {
+    /**
+     * How many bits to shift a position by to get its bucket; buckets are {@code 1 << SHIFT} cells wide.
+     */
+    public static final int SHIFT = 3;
+    /**
+     * The width and height of each bucket, in cells.
+     */
+    public static final int BUCKET_SIZE = 1 << SHIFT;
+
+    public final int width, height, bucketsWide, bucketsHigh;
+    /**
+     * How many lights are in this index.
+     */
+    public int size;
+
+    private final int[][] buckets;
+    private final int[] bucketSizes;
+    private final float[] bucketReach;
+    private float maxReach;
+
+    private Coord[] positions;
+    private Radiance[] lights;
+    private int[] sequence, places, bucketOf;
+    private float[] ranges;
+    private int[] freeSlots;
+    private int freeCount, slotCount, nextSequence;
+    private final ObjectIntMap<Coord> slots;
+    private long[] sorting;
+
+    /**
+     * Makes an empty LightGrid for a map with the given size.
+     * @param width the width of the map, in cells
+     * @param height the height of the map, in cells
+     */
+    public LightGrid(int width, int height)
+    {
+        this.width = width;
+        this.height = height;
+        bucketsWide = (width + BUCKET_SIZE - 1) >> SHIFT;
+        bucketsHigh = (height + BUCKET_SIZE - 1) >> SHIFT;
+        buckets = new int[bucketsWide * bucketsHigh][];
+        bucketSizes = new int[buckets.length];
+        bucketReach = new float[buckets.length];
+        positions = new Coord[16];
+        lights = new Radiance[16];
+        sequence = new int[16];
+        places = new int[16];
+        bucketOf = new int[16];
+        ranges = new float[16];
+        freeSlots = new int[16];
+        slots = new ObjectIntMap<>(16);
+        sorting = new long[16];
+    }
+
+    /**
+     * Makes a LightGrid holding every light in the given map, in the map's order.
+     * @param width the width of the map, in cells
+     * @param height the height of the map, in cells
+     * @param lights the lights to index, such as {@link LightingHandler#lights}
+     */
+    public LightGrid(int width, int height, OrderedMap<Coord, Radiance> lights)
+    {
+        this(width, height);
+        final int sz = lights.size();
+        for (int i = 0; i < sz; i++) {
+            add(lights.keyAt(i), lights.getAt(i));
+        }
+    }
+
+    /**
+     * Adds a light at the given position, using its current {@link Radiance#range}, or replaces the light already
+     * there. A light already at this position keeps its place in the order.
+     * @param position where the light is
+     * @param light the light to add
+     * @return the slot of the light
+     */
+    public int add(Coord position, Radiance light)
+    {
+        final float range = light.range;
+        int slot = slots.get(position, -1);
+        if(slot >= 0)
+        {
+            lights[slot] = light;
+            setRange(slot, range);
+            return slot;
+        }
+        if(freeCount > 0)
+            slot = freeSlots[--freeCount];
+        else
+        {
+            slot = slotCount++;
+            if(slot >= positions.length)
+            {
+                final int cap = positions.length << 1;
+                positions = Arrays.copyOf(positions, cap);
+                lights = Arrays.copyOf(lights, cap);
+                sequence = Arrays.copyOf(sequence, cap);
+                places = Arrays.copyOf(places, cap);
+                bucketOf = Arrays.copyOf(bucketOf, cap);
+                ranges = Arrays.copyOf(ranges, cap);
+                freeSlots = Arrays.copyOf(freeSlots, cap);
+            }
+        }
+        positions[slot] = position;
+        lights[slot] = light;
+        sequence[slot] = nextSequence++;
+        ranges[slot] = range;
+        slots.put(position, slot);
+        insert(slot, bucket(position.x, position.y));
+        ++size;
+        return slot;
+    }
+
+    /**
+     * Removes the light at the given position, if there is one.
+     * @param position where the light to remove is
+     * @return true if a light was removed
+     */
+    public boolean remove(Coord position)
+    {
+        final int slot = slots.remove(position, -1);
+        if(slot < 0)
+            return false;
+        extract(slot);
+        positions[slot] = null;
+        lights[slot] = null;
+        freeSlots[freeCount++] = slot;
+        --size;
+        return true;
+    }
+
+    /**
+     * Moves the light at {@code from} to {@code to}, keeping its slot and its place in the order. Any light already at
+     * {@code to} is removed first. If there is no light at from, this does nothing.
+     * @param from where the light is now
+     * @param to where the light should be moved
+     * @return true if a light was moved
+     */
+    public boolean move(Coord from, Coord to)
+    {
+        final int slot = slots.get(from, -1);
+        if(slot < 0)
+            return false;
+        if(from.equals(to))
+            return true;
+        remove(to);
+        slots.remove(from, -1);
+        slots.put(to, slot);
+        positions[slot] = to;
+        final int b = bucket(to.x, to.y);
+        if(b != bucketOf[slot])
+        {
+            extract(slot);
+            insert(slot, b);
+        }
+        return true;
+    }
+
+    /**
+     * Gets the slot of the light at the given position.
+     * @param position where to look for a light
+     * @return the slot of the light there, or -1 if there is no light there
+     */
+    public int slotOf(Coord position)
+    {
+        return slots.get(position, -1);
+    }
+
+    /**
+     * Gets the position of the light in the given slot.
+     * @param slot a slot, as returned by a query or by {@link #add(Coord, Radiance)}
+     * @return the position of the light in that slot, or null if the slot is empty
+     */
+    public Coord position(int slot)
+    {
+        return positions[slot];
+    }
+
+    /**
+     * Gets the Radiance of the light in the given slot.
+     * @param slot a slot, as returned by a query or by {@link #add(Coord, Radiance)}
+     * @return the light in that slot, or null if the slot is empty
+     */
+    public Radiance light(int slot)
+    {
+        return lights[slot];
+    }
+
+    /**
+     * Gets a number that increases with each light added, so lights added later have higher numbers; a slot that is
+     * emptied and reused gets a new number, which lets other code tell the old and new light in a slot apart.
+     * @param slot a slot, as returned by a query or by {@link #add(Coord, Radiance)}
+     * @return the order number of the light in that slot
+     */
+    public int order(int slot)
+    {
+        return sequence[slot];
+    }
+
+    /**
+     * Changes the range this uses for queries for the light in the given slot. This only looks at the light's bucket,
+     * so it takes constant time.
+     * @param slot the slot of a light
+     * @param range how far the light reaches, in cells
+     */
+    public void setRange(int slot, float range)
+    {
+        final float old = ranges[slot];
+        ranges[slot] = range;
+        final int b = bucketOf[slot];
+        if(range > bucketReach[b])
+        {
+            bucketReach[b] = range;
+            maxReach = Math.max(maxReach, range);
+        }
+        else if(old == bucketReach[b] && range < old)
+            shrinkReach(b);
+    }
+
+    /**
+     * Updates the range this uses for queries for every light whose {@link Radiance#range} was assigned directly since
+     * this last saw it, so {@link #lightsReaching(int, int, int, int, IntArray)} doesn't miss a light that grew. This
+     * checks every light, so it takes time proportional to how many slots there are; it is never called per frame, only
+     * by {@link LightingHandler#refreshLightRanges()}.
+     * @return how many lights had their range updated
+     */
+    public int refreshRanges()
+    {
+        int changed = 0;
+        for (int slot = 0; slot < slotCount; slot++) {
+            if(lights[slot] != null && lights[slot].range != ranges[slot])
+            {
+                setRange(slot, lights[slot].range);
+                ++changed;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Clears into and puts every light in this index into it, in the order the lights were added, which is the order
+     * an OrderedMap would have if the same lights had been added, moved, and removed in it.
+     * @param into the map to fill, such as {@link LightingHandler#lights}
+     * @return into, after modification
+     */
+    public OrderedMap<Coord, Radiance> copyInto(OrderedMap<Coord, Radiance> into)
+    {
+        into.clear();
+        if(sorting.length < size)
+            sorting = Arrays.copyOf(sorting, Math.max(size, sorting.length << 1));
+        int count = 0;
+        for (int slot = 0; slot < slotCount; slot++) {
+            if(positions[slot] != null)
+                sorting[count++] = (long) sequence[slot] << 32 | slot;
+        }
+        Arrays.sort(sorting, 0, count);
+        for (int i = 0; i < count; i++) {
+            final int slot = (int) sorting[i];
+            into.put(positions[slot], lights[slot]);
+        }
+        return into;
+    }
+
+    /**
+     * Finds every light positioned within the given rectangle, and adds their slots to {@code into} in the order the
+     * lights were added.
+     * @param minX inclusive lower bound on x
+     * @param minY inclusive lower bound on y
+     * @param maxX exclusive upper bound on x
+     * @param maxY exclusive upper bound on y
+     * @param into an IntArray that will be cleared and then filled with slots
+     * @return into, after modification
+     */
+    public IntArray lightsIn(int minX, int minY, int maxX, int maxY, IntArray into)
+    {
+        return query(minX, minY, maxX, maxY, false, into);
+    }
+
+    /**
+     * Finds every light whose range, as of the last time it was updated here, reaches into the given rectangle, and adds
+     * their slots to {@code into} in the order the lights were added.
+     * @param minX inclusive lower bound on x
+     * @param minY inclusive lower bound on y
+     * @param maxX exclusive upper bound on x
+     * @param maxY exclusive upper bound on y
+     * @param into an IntArray that will be cleared and then filled with slots
+     * @return into, after modification
+     */
+    public IntArray lightsReaching(int minX, int minY, int maxX, int maxY, IntArray into)
+    {
+        return query(minX, minY, maxX, maxY, true, into);
+    }
+
+    private IntArray query(int minX, int minY, int maxX, int maxY, boolean reaching, IntArray into)
+    {
+        into.clear();
+        final int extra = reaching ? (int) Math.ceil(maxReach) : 0;
+        final int bx0 = Math.max(0, minX - extra) >> SHIFT, by0 = Math.max(0, minY - extra) >> SHIFT,
+                bx1 = Math.min(bucketsWide - 1, (Math.min(width, maxX + extra) - 1) >> SHIFT),
+                by1 = Math.min(bucketsHigh - 1, (Math.min(height, maxY + extra) - 1) >> SHIFT);
+        int count = 0;
+        for (int bx = bx0; bx <= bx1; bx++) {
+            for (int by = by0; by <= by1; by++) {
+                final int b = bx * bucketsHigh + by, n = bucketSizes[b];
+                if(n == 0)
+                    continue;
+                final float reach = reaching ? bucketReach[b] : 0f;
+                final int cx = bx << SHIFT, cy = by << SHIFT;
+                if(cx - reach >= maxX || cx + BUCKET_SIZE - 1 + reach < minX
+                        || cy - reach >= maxY || cy + BUCKET_SIZE - 1 + reach < minY)
+                    continue;
+                final int[] bucket = buckets[b];
+                for (int i = 0; i < n; i++) {
+                    final int slot = bucket[i];
+                    final Coord p = positions[slot];
+                    final float r = reaching ? ranges[slot] : 0f;
+                    if(p.x + r >= minX && p.x - r < maxX && p.y + r >= minY && p.y - r < maxY)
+                    {
+                        if(count == sorting.length)
+                            sorting = Arrays.copyOf(sorting, count << 1);
+                        sorting[count++] = (long) sequence[slot] << 32 | slot;
+                    }
+                }
+            }
+        }
+        Arrays.sort(sorting, 0, count);
+        final int[] items = into.ensureCapacity(count);
+        for (int i = 0; i < count; i++) {
+            items[i] = (int) sorting[i];
+        }
+        into.size = count;
+        return into;
+    }
+
+    private int bucket(int x, int y)
+    {
+        return Math.min(bucketsWide - 1, Math.max(0, x >> SHIFT)) * bucketsHigh
+                + Math.min(bucketsHigh - 1, Math.max(0, y >> SHIFT));
+    }
+
+    private void insert(int slot, int b)
+    {
+        int[] bucket = buckets[b];
+        final int n = bucketSizes[b];
+        if(bucket == null)
+            bucket = buckets[b] = new int[4];
+        else if(n == bucket.length)
+            bucket = buckets[b] = Arrays.copyOf(bucket, n << 1);
+        bucket[n] = slot;
+        places[slot] = n;
+        bucketOf[slot] = b;
+        bucketSizes[b] = n + 1;
+        if(ranges[slot] > bucketReach[b])
+        {
+            bucketReach[b] = ranges[slot];
+            maxReach = Math.max(maxReach, ranges[slot]);
+        }
+    }
+
+    private void extract(int slot)
+    {
+        final int b = bucketOf[slot], n = --bucketSizes[b], place = places[slot];
+        final int[] bucket = buckets[b];
+        final int last = bucket[n];
+        bucket[place] = last;
+        places[last] = place;
+        if(ranges[slot] == bucketReach[b])
+            shrinkReach(b);
+    }
+
+    /**
+     * Sets the reach of bucket b to the largest range of the lights still in it, after the light with the largest
+     * range left it or got smaller. If b had the largest reach of all buckets, that is found again from every bucket,
+     * so one large light that goes away doesn't widen every later search.
+     */
+    private void shrinkReach(int b)
+    {
+        final int[] bucket = buckets[b];
+        float reach = 0f;
+        for (int i = 0, n = bucketSizes[b]; i < n; i++) {
+            reach = Math.max(reach, ranges[bucket[i]]);
+        }
+        final float old = bucketReach[b];
+        bucketReach[b] = reach;
+        if(old == maxReach && reach < old)
+        {
+            reach = 0f;
+            for (int i = 0; i < bucketReach.length; i++) {
+                reach = Math.max(reach, bucketReach[i]);
+            }
+            maxReach = reach;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package com.github.tommyettinger;
+
+/**
+ * The FOV of one light, stored only for the window of cells that light can reach plus a one-cell margin (the margin
+ * is needed because lit walls depend on their neighbors). The window is clamped to the map, and the strength of light
+ * at map cell x,y is {@code strength[x - startX][y - startY]}, for x from {@link #startX} (inclusive) to {@link #endX}
+ * (exclusive) and likewise for y. The {@link #strength} array may be larger than the window when a LightStamp is
+ * reused; only the window is meaningful.
+ * <br>
+ * A stamp can instead be {@link #compact}, storing each strength as a char in {@link #levels} (indexed the same way),
+ * where 0 is no light and 65535 is full strength; see {@link #toLevel(double)}. That takes a quarter of the memory of
+ * doubles, and any cell with some light keeps at least level 1, so the same cells are lit either way.
+ * <br>
+ * Usually filled by {@link LightingHandler#stampLight(int, int, float, LightStamp)} and kept around by a
+ * {@link LightStampCache}.
+ */
+public class LightStamp {
+    /**
+     * The x-position of the light this was calculated for.
+     */
+    public int x;
+    /**
+     * The y-position of the light this was calculated for.
+     */
+    public int y;
+    /**
+     * The radius of the light this was calculated for.
+     */
+    public float range;
+    /**
+     * The radius rounded up to an int; the light affects cells from {@code x - reach} to {@code x + reach} inclusive.
+     */
+    public int reach;
+    /**
+     * The {@link LightingHandler#resistanceVersion} this was calculated with; if that changes, this needs to be
+     * recalculated.
+     */
+    public int version;
+    /**
+     * Inclusive lower bound of the stored window on x.
+     */
+    public int startX;
+    /**
+     * Inclusive lower bound of the stored window on y.
+     */
+    public int startY;
+    /**
+     * Exclusive upper bound of the stored window on x.
+     */
+    public int endX;
+    /**
+     * Exclusive upper bound of the stored window on y.
+     */
+    public int endY;
+    /**
+     * The strength of light in each cell of the window, as FOV calculates it; see the class docs for indexing.
+     */
+    public double[][] strength;
+    /**
+     * If true, the strength of light is stored in {@link #levels} instead of {@link #strength}.
+     */
+    public boolean compact;
+    /**
+     * The strength of light in each cell of the window as 16-bit fixed-point levels, used if {@link #compact} is true;
+     * see the class docs for indexing.
+     */
+    public char[][] levels;
+
+    // used by LightStampCache to track which stamps were used least recently
+    long key;
+    LightStamp newer, older;
+
+    public LightStamp()
+    {
+        strength = new double[0][0];
+        levels = new char[0][0];
+    }
+
+    /**
+     * Makes sure {@link #strength}, or {@link #levels} if {@link #compact} is true, can hold a window of the given size,
+     * reallocating only if it is too small. The array that isn't used is emptied, so a stamp only ever holds one.
+     * @param windowWidth the width of the window this needs to hold
+     * @param windowHeight the height of the window this needs to hold
+     */
+    public void ensureCapacity(int windowWidth, int windowHeight)
+    {
+        if(compact)
+        {
+            if(strength.length != 0)
+                strength = new double[0][0];
+            if(levels.length < windowWidth || (levels.length > 0 && levels[0].length < windowHeight))
+                levels = new char[Math.max(windowWidth, levels.length)]
+                        [Math.max(windowHeight, levels.length == 0 ? 0 : levels[0].length)];
+        }
+        else
+        {
+            if(levels.length != 0)
+                levels = new char[0][0];
+            if(strength.length < windowWidth || (strength.length > 0 && strength[0].length < windowHeight))
+                strength = new double[Math.max(windowWidth, strength.length)]
+                        [Math.max(windowHeight, strength.length == 0 ? 0 : strength[0].length)];
+        }
+    }
+
+    /**
+     * Converts a strength of light, as FOV calculates it, to a 16-bit fixed-point level for {@link #levels}. Strengths
+     * of 0 or less become 0, strengths of 1 or more become 65535, and anything else rounds to the nearest level but
+     * never to 0, so a cell that gets any light stays lit.
+     * @param strength a strength of light, usually from 0.0 to 1.0
+     * @return the level for that strength, from 0 to 65535
+     */
+    public static char toLevel(double strength)
+    {
+        if(strength <= 0.0)
+            return 0;
+        if(strength >= 1.0)
+            return 65535;
+        return (char) Math.max(1, (int) (strength * 65535.0 + 0.5));
+    }
+
+    /**
+     * Converts a 16-bit fixed-point level from {@link #levels} back to a strength of light.
+     * @param level a level from 0 to 65535
+     * @return the strength for that level, from 0f to 1f
+     */
+    public static float fromLevel(char level)
+    {
+        return level * (1f / 65535f);
+    }
+
+    /**
+     * Converts count strengths from one column of an FOV array, starting at index from, to levels starting at index 0 of
+     * into; see {@link #toLevel(double)}.
+     * @param strengths a column of FOV results
+     * @param from the first index in strengths to convert
+     * @param into the column of levels to write into
+     * @param count how many strengths to convert
+     */
+    public static void toLevels(double[] strengths, int from, char[] into, int count)
+    {
+        for (int i = 0; i < count; i++) {
+            into[i] = toLevel(strengths[from + i]);
+        }
+    }
+
+    /**
+     * Checks whether the window this stores overlaps the rectangle with the given bounds.
+     * @param minX inclusive lower bound on x
+     * @param minY inclusive lower bound on y
+     * @param maxX exclusive upper bound on x
+     * @param maxY exclusive upper bound on y
+     * @return true if any cell in the window is also in the rectangle
+     */
+    public boolean overlaps(int minX, int minY, int maxX, int maxY)
+    {
+        return startX < maxX && minX < endX && startY < maxY && minY < endY;
+    }
+}
@@ -0,0 +1,180 @@
+package com.github.tommyettinger;
+
+import com.badlogic.gdx.utils.LongMap;
+
+/**
+ * A bounded cache of {@link LightStamp} objects, so a light that hasn't moved and hasn't changed its radius doesn't
+ * need its FOV recalculated every frame. Stamps are keyed by the light's position and its radius, rounded to the
+ * nearest multiple of {@code 1f / precision}; each stamp also remembers the {@link LightingHandler#resistanceVersion}
+ * it was calculated with, and is recalculated if that has changed. When the cache is full, the stamp used least
+ * recently is evicted and its arrays are reused, so a full cache doesn't allocate.
+ * <br>
+ * You typically don't use this directly; call {@link LightingHandler#useStampCache(int)} to have a LightingHandler
+ * make and use one.
+ */
+public class LightStampCache {
+    /**
+     * The most stamps this will hold at once.
+     */
+    public final int capacity;
+    /**
+     * Light radii are rounded to the nearest multiple of {@code 1f / precision} before looking them up, so lights that
+     * flicker only slightly can still share a stamp. The rounded radius is also the one used to calculate the FOV, so
+     * radii are quantized: a flickering light can be up to half of {@code 1f / precision} cells away from the radius
+     * an uncached handler would use, and the two can differ slightly in what they draw. Lights with a radius that is
+     * already a multiple of {@code 1f / precision}, such as any integer radius, light exactly the same cells either
+     * way. Defaults to 64f.
+     */
+    public float precision = 64f;
+    /**
+     * How many times {@link #acquire(LightingHandler, int, int, float)} found a valid stamp, since the last
+     * {@link #clear()}.
+     */
+    public int hits;
+    /**
+     * How many times {@link #acquire(LightingHandler, int, int, float)} had to calculate a stamp, since the last
+     * {@link #clear()}.
+     */
+    public int misses;
+
+    private final LongMap<LightStamp> stamps;
+    private LightStamp newest, oldest;
+
+    /**
+     * Makes an empty cache that will hold at most {@code capacity} stamps.
+     * @param capacity the most stamps this will hold at once; should be at least the number of lights usually visible
+     */
+    public LightStampCache(int capacity)
+    {
+        this.capacity = Math.max(1, capacity);
+        stamps = new LongMap<>(this.capacity);
+    }
+
+    /**
+     * Rounds a light radius the same way this cache does before using it.
+     * @param range a light radius, such as from {@link Radiance#currentRange()}
+     * @return the radius rounded to the nearest multiple of {@code 1f / precision}
+     */
+    public float quantize(float range)
+    {
+        return Math.round(range * precision) / precision;
+    }
+
+    /**
+     * Gets a stamp for a light at x,y with the given radius, calculating it with
+     * {@link LightingHandler#stampLight(int, int, float, LightStamp)} if no valid stamp is cached.
+     * @param handler the LightingHandler that owns the resistances to calculate with
+     * @param x the x-position of the light
+     * @param y the y-position of the light
+     * @param range the radius of the light; will be rounded using {@link #quantize(float)}
+     * @return a LightStamp that is valid for the given light; do not keep it after the next call to this method
+     */
+    public LightStamp acquire(LightingHandler handler, int x, int y, float range)
+    {
+        final int q = Math.round(range * precision);
+        final long key = (long) x << 48 | (long) (y & 0xFFFF) << 32 | (q & 0xFFFFFFFFL);
+        LightStamp stamp = stamps.get(key);
+        if(stamp != null)
+        {
+            unlink(stamp);
+            link(stamp);
+            if(stamp.version == handler.resistanceVersion)
+            {
+                ++hits;
+                return stamp;
+            }
+        }
+        else if(stamps.size >= capacity)
+        {
+            stamp = oldest;
+            unlink(stamp);
+            stamps.remove(stamp.key);
+            stamp.key = key;
+            stamps.put(key, stamp);
+            link(stamp);
+        }
+        else
+        {
+            stamp = new LightStamp();
+            stamp.key = key;
+            stamps.put(key, stamp);
+            link(stamp);
+        }
+        ++misses;
+        handler.stampLight(x, y, q / precision, stamp);
+        return stamp;
+    }
+
+    /**
+     * Removes every cached stamp whose window overlaps the given rectangle, such as an area where resistances changed,
+     * and marks every other stamp as still valid for {@code version}. This is what lets a change to resistances only
+     * recalculate the lights near that change, instead of every light.
+     * @param minX inclusive lower bound on x
+     * @param minY inclusive lower bound on y
+     * @param maxX exclusive upper bound on x
+     * @param maxY exclusive upper bound on y
+     * @param version the resistance version that stamps outside the rectangle should be considered valid for
+     * @return how many stamps were removed
+     */
+    public int invalidate(int minX, int minY, int maxX, int maxY, int version)
+    {
+        int removed = 0;
+        LightStamp stamp = newest, next;
+        while (stamp != null)
+        {
+            next = stamp.older;
+            if(stamp.overlaps(minX, minY, maxX, maxY))
+            {
+                unlink(stamp);
+                stamps.remove(stamp.key);
+                ++removed;
+            }
+            else if(stamp.version == version - 1)
+                stamp.version = version;
+            stamp = next;
+        }
+        return removed;
+    }
+
+    /**
+     * @return how many stamps are currently cached
+     */
+    public int size()
+    {
+        return stamps.size;
+    }
+
+    /**
+     * Removes all cached stamps and resets {@link #hits} and {@link #misses}.
+     */
+    public void clear()
+    {
+        stamps.clear();
+        newest = oldest = null;
+        hits = misses = 0;
+    }
+
+    private void link(LightStamp stamp)
+    {
+        stamp.older = newest;
+        stamp.newer = null;
+        if(newest != null)
+            newest.newer = stamp;
+        newest = stamp;
+        if(oldest == null)
+            oldest = stamp;
+    }
+
+    private void unlink(LightStamp stamp)
+    {
+        if(stamp.newer != null)
+            stamp.newer.older = stamp.older;
+        else
+            newest = stamp.older;
+        if(stamp.older != null)
+            stamp.older.newer = stamp.newer;
+        else
+            oldest = stamp.newer;
+        stamp.newer = stamp.older = null;
+    }
+}
@@ -0,0 +1,505 @@
+package com.github.tommyettinger;
+
+import squidpony.squidgrid.Radius;
+import squidpony.squidmath.Coord;
+import squidpony.squidmath.NumberTools;
+import squidpony.squidmath.OrderedMap;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Writes the state of a {@link LightingHandler} to a compact, versioned binary form in one pass, and reads it back
+ * without reflection, for autosaves and for swapping levels in and out. The state is what a LightingHandler is built
+ * from: its size, {@link LightingHandler#resistances}, {@link LightingHandler#backgroundColor},
+ * {@link LightingHandler#radiusStrategy}, {@link LightingHandler#viewerRange}, {@link LightingHandler#lights},
+ * {@link LightingHandler#staticLights}, {@link LightingHandler#shades}, and the lights in its
+ * {@link LightingHandler#bank}, if it has one. Lighting results aren't stored, so after {@link #decode()} you call
+ * calculateFOV() and update() as you would on a new LightingHandler, and settings like
+ * {@link LightingHandler#useStampCache(int)} are up to the code that decodes.
+ * <br>
+ * One LightingCodec holds one encoded state in {@link #bytes} and reuses that array, so encoding every autosave with
+ * the same codec doesn't allocate once the array is big enough. Encode with {@link #encode(LightingHandler)} and then
+ * write with {@link #write(ByteBuffer)} or {@link #write(DataOutput)}; read with {@link #read(ByteBuffer)},
+ * {@link #read(DataInput)}, or {@link #read(byte[], int)} and then {@link #decode()}. Everything is big-endian.
+ * <br>
+ * The format starts with {@link #MAGIC}, the total length in bytes, and {@link #VERSION}. Resistances are stored as
+ * runs of equal values, column by column, with the distinct values kept once in a small palette; maps usually only
+ * use a few resistances, so this takes a few bytes per run instead of 8 bytes per cell. Maps with more than 256
+ * distinct resistances store each cell raw instead. Each light is a fixed-size record of {@link #RECORD_BYTES}: its
+ * position as two chars, then its range, color, flicker, strobe, delay, and flare as float bits, then its seed.
+ * Lights in a bank are stored in index order, so they are mixed in the same order after decoding, but the handles
+ * of a decoded bank start over from 0. Shades were added in version 2; states from version 1 decode with none.
+ */
+public class LightingCodec {
+    /**
+     * The first four bytes of every encoded state, "CCLS" in ASCII.
+     */
+    public static final int MAGIC = 0x43434C53;
+    /**
+     * The version of the format this writes; states with a newer version can't be read.
+     */
+    public static final int VERSION = 2;
+    /**
+     * How many bytes each light takes.
+     */
+    public static final int RECORD_BYTES = 32;
+    /**
+     * How many bytes come before the resistances: the magic, length, version, width, height, radius, flags,
+     * background color, and viewer range.
+     */
+    public static final int HEADER_BYTES = 34;
+
+    private static final int HAS_BANK = 1, RAW_RESISTANCES = 2;
+
+    /**
+     * Holds the encoded state from index 0 up to {@link #size}; may be longer.
+     */
+    public byte[] bytes;
+    /**
+     * How many bytes of {@link #bytes} hold the encoded state.
+     */
+    public int size;
+
+    private int position;
+    private long[] palette = new long[16];
+
+    /**
+     * Makes a LightingCodec with room for 4096 bytes before it needs to grow.
+     */
+    public LightingCodec()
+    {
+        this(4096);
+    }
+
+    /**
+     * Makes a LightingCodec with room for the given number of bytes before it needs to grow.
+     * @param capacity how many bytes the encoded states are expected to need
+     */
+    public LightingCodec(int capacity)
+    {
+        bytes = new byte[Math.max(capacity, HEADER_BYTES)];
+    }
+
+    /**
+     * Encodes the state of the given LightingHandler into {@link #bytes}, replacing any state this held. This calls
+     * {@link LightingHandler#syncLights()} first, so lights moved or removed since the last sync are applied to
+     * {@link LightingHandler#lights} before it is written; nothing else in the handler is changed.
+     * @param lighting the LightingHandler to encode; only its lights map may be changed, by syncing it
+     * @return this for chaining
+     */
+    public LightingCodec encode(LightingHandler lighting)
+    {
+        final int width = lighting.width, height = lighting.height;
+        final double[][] resistances = lighting.resistances;
+        position = 0;
+        putInt(MAGIC);
+        putInt(0);
+        putInt(VERSION);
+        putInt(width);
+        putInt(height);
+        final int paletteSize = fillPalette(resistances, width, height);
+        putByte(lighting.radiusStrategy.ordinal());
+        putByte((lighting.bank == null ? 0 : HAS_BANK) | (paletteSize < 0 ? RAW_RESISTANCES : 0));
+        putInt(NumberTools.floatToIntBits(lighting.backgroundColor));
+        putLong(NumberTools.doubleToLongBits(lighting.viewerRange));
+
+        if(paletteSize < 0)
+        {
+            ensure(width * height << 3);
+            for (int x = 0; x < width; x++) {
+                final double[] column = resistances[x];
+                for (int y = 0; y < height; y++) {
+                    putLong(NumberTools.doubleToLongBits(column[y]));
+                }
+            }
+        }
+        else
+        {
+            putByte(paletteSize - 1);
+            for (int i = 0; i < paletteSize; i++) {
+                putLong(palette[i]);
+            }
+            // runs carry over from one column to the next
+            long current = NumberTools.doubleToLongBits(resistances[0][0]);
+            int run = 0;
+            for (int x = 0; x < width; x++) {
+                final double[] column = resistances[x];
+                for (int y = 0; y < height; y++) {
+                    final long bits = NumberTools.doubleToLongBits(column[y]);
+                    if(bits != current)
+                    {
+                        putRun(run, current, paletteSize);
+                        current = bits;
+                        run = 0;
+                    }
+                    ++run;
+                }
+            }
+            putRun(run, current, paletteSize);
+        }
+
+        putLights(lighting.syncLights().lights);
+        putLights(lighting.staticLights);
+        putLights(lighting.shades);
+        final RadianceBank bank = lighting.bank;
+        if(bank != null)
+        {
+            putInt(bank.size);
+            ensure(bank.size * RECORD_BYTES);
+            for (int i = 0; i < bank.limit; i++) {
+                if(bank.isLive(i))
+                    putRecord(bank.x[i], bank.y[i], bank.range[i], bank.color[i], bank.flicker[i], bank.strobe[i],
+                            bank.delay[i], bank.flare[i], bank.seed[i]);
+            }
+        }
+        size = position;
+        setInt(4, size);
+        return this;
+    }
+
+    /**
+     * Builds a new LightingHandler from the state this holds, as encoded by {@link #encode(LightingHandler)} and
+     * possibly written and read back in between. The LightingHandler has the same resistances, settings, and lights
+     * (and bank, if the encoded one had one) as the one that was encoded, but no lighting has been calculated yet.
+     * @return a new LightingHandler with the state this holds
+     * @throws IllegalArgumentException if this doesn't hold a state this version can read
+     */
+    public LightingHandler decode()
+    {
+        position = 0;
+        if(size < HEADER_BYTES || getInt() != MAGIC)
+            throw new IllegalArgumentException("Not an encoded lighting state");
+        if(getInt() != size)
+            throw new IllegalArgumentException("Encoded lighting state is incomplete");
+        final int version = getInt();
+        if(version > VERSION)
+            throw new IllegalArgumentException("Encoded lighting state has version " + version
+                    + ", but only up to version " + VERSION + " can be read");
+        final int width = getInt(), height = getInt(), radius = getByte(), flags = getByte();
+        final float backgroundColor = NumberTools.intBitsToFloat(getInt());
+        final double viewerRange = NumberTools.longBitsToDouble(getLong());
+
+        final double[][] resistances = new double[width][height];
+        if((flags & RAW_RESISTANCES) != 0)
+        {
+            for (int x = 0; x < width; x++) {
+                final double[] column = resistances[x];
+                for (int y = 0; y < height; y++) {
+                    column[y] = NumberTools.longBitsToDouble(getLong());
+                }
+            }
+        }
+        else
+        {
+            final int paletteSize = getByte() + 1;
+            final double[] values = new double[paletteSize];
+            for (int i = 0; i < paletteSize; i++) {
+                values[i] = NumberTools.longBitsToDouble(getLong());
+            }
+            for (int x = 0, y = 0; x < width; ) {
+                int run = getVarInt();
+                final double value = values[paletteSize == 1 ? 0 : getByte()];
+                while (run > 0) {
+                    final int end = Math.min(height, y + run);
+                    Arrays.fill(resistances[x], y, end, value);
+                    run -= end - y;
+                    if(end == height)
+                    {
+                        ++x;
+                        y = 0;
+                    }
+                    else
+                        y = end;
+                }
+            }
+        }
+
+        final LightingHandler lighting = new LightingHandler(resistances, backgroundColor, Radius.values()[radius],
+                viewerRange);
+        for (int i = 0, n = getInt(); i < n; i++) {
+            final Coord position = Coord.get(getChar(), getChar());
+            lighting.addLight(position, getRadiance());
+        }
+        for (int i = 0, n = getInt(); i < n; i++) {
+            final Coord position = Coord.get(getChar(), getChar());
+            lighting.addStaticLight(position, getRadiance());
+        }
+        if(version >= 2)
+        {
+            for (int i = 0, n = getInt(); i < n; i++) {
+                final Coord position = Coord.get(getChar(), getChar());
+                lighting.addShade(position, getRadiance());
+            }
+        }
+        if((flags & HAS_BANK) != 0)
+        {
+            final int n = getInt();
+            final RadianceBank bank = new RadianceBank(n);
+            for (int i = 0; i < n; i++) {
+                bank.add(getChar(), getChar(), getFloat(), getFloat(), getFloat(), getFloat(), getFloat(), getFloat(),
+                        getInt());
+            }
+            lighting.useBank(bank);
+        }
+        return lighting;
+    }
+
+    /**
+     * Writes the state this holds to buffer, starting at its position and advancing it.
+     * @param buffer a ByteBuffer with at least {@link #size} bytes remaining
+     * @return this for chaining
+     */
+    public LightingCodec write(ByteBuffer buffer)
+    {
+        buffer.put(bytes, 0, size);
+        return this;
+    }
+
+    /**
+     * Writes the state this holds to out.
+     * @param out a DataOutput, such as a DataOutputStream
+     * @return this for chaining
+     * @throws IOException if out can't be written to
+     */
+    public LightingCodec write(DataOutput out) throws IOException
+    {
+        out.write(bytes, 0, size);
+        return this;
+    }
+
+    /**
+     * Reads one encoded state from buffer, starting at its position and advancing it past the state, replacing any
+     * state this held. Use {@link #decode()} to make a LightingHandler from it.
+     * @param buffer a ByteBuffer positioned at the start of a state written by {@link #write(ByteBuffer)}
+     * @return this for chaining
+     * @throws IllegalArgumentException if buffer isn't positioned at an encoded lighting state
+     */
+    public LightingCodec read(ByteBuffer buffer)
+    {
+        buffer.get(bytes, 0, 8);
+        final int length = checkedLength();
+        buffer.get(bytes, 8, length - 8);
+        size = length;
+        return this;
+    }
+
+    /**
+     * Reads one encoded state from in, replacing any state this held. Use {@link #decode()} to make a LightingHandler
+     * from it.
+     * @param in a DataInput, such as a DataInputStream, at the start of a state written by {@link #write(DataOutput)}
+     * @return this for chaining
+     * @throws IOException if in can't be read from or ends too soon
+     * @throws IllegalArgumentException if in isn't at an encoded lighting state
+     */
+    public LightingCodec read(DataInput in) throws IOException
+    {
+        in.readFully(bytes, 0, 8);
+        final int length = checkedLength();
+        in.readFully(bytes, 8, length - 8);
+        size = length;
+        return this;
+    }
+
+    /**
+     * Copies one encoded state out of data, starting at offset, replacing any state this held. Use {@link #decode()}
+     * to make a LightingHandler from it.
+     * @param data a byte array holding an encoded state, such as the {@link #bytes} of another LightingCodec
+     * @param offset where in data the state starts
+     * @return this for chaining
+     * @throws IllegalArgumentException if data doesn't hold an encoded lighting state at offset
+     */
+    public LightingCodec read(byte[] data, int offset)
+    {
+        System.arraycopy(data, offset, bytes, 0, 8);
+        final int length = checkedLength();
+        System.arraycopy(data, offset + 8, bytes, 8, length - 8);
+        size = length;
+        return this;
+    }
+
+    /**
+     * Checks the magic and length at the start of {@link #bytes} and makes room for the whole state.
+     */
+    private int checkedLength()
+    {
+        position = 0;
+        if(getInt() != MAGIC)
+            throw new IllegalArgumentException("Not an encoded lighting state");
+        final int length = getInt();
+        if(length < HEADER_BYTES)
+            throw new IllegalArgumentException("Encoded lighting state has an invalid length");
+        if(bytes.length < length)
+            bytes = Arrays.copyOf(bytes, length);
+        return length;
+    }
+
+    /**
+     * Puts every distinct resistance into {@link #palette}, returning how many there are, or -1 if there are too many
+     * for one byte to index.
+     */
+    private int fillPalette(double[][] resistances, int width, int height)
+    {
+        int count = 0;
+        long last = 0L;
+        for (int x = 0; x < width; x++) {
+            final double[] column = resistances[x];
+            for (int y = 0; y < height; y++) {
+                final long bits = NumberTools.doubleToLongBits(column[y]);
+                if(count != 0 && bits == last)
+                    continue;
+                last = bits;
+                if(indexOf(bits, count) < 0)
+                {
+                    if(count == 256)
+                        return -1;
+                    if(count == palette.length)
+                        palette = Arrays.copyOf(palette, count << 1);
+                    palette[count++] = bits;
+                }
+            }
+        }
+        return count;
+    }
+
+    private int indexOf(long bits, int count)
+    {
+        for (int i = 0; i < count; i++) {
+            if(palette[i] == bits)
+                return i;
+        }
+        return -1;
+    }
+
+    private void putRun(int run, long bits, int paletteSize)
+    {
+        putVarInt(run);
+        // with only one resistance, every run uses it, so the index isn't needed
+        if(paletteSize > 1)
+            putByte(indexOf(bits, paletteSize));
+    }
+
+    private void putLights(OrderedMap<Coord, Radiance> lights)
+    {
+        final int n = lights.size();
+        putInt(n);
+        ensure(n * RECORD_BYTES);
+        for (int i = 0; i < n; i++) {
+            final Coord pos = lights.keyAt(i);
+            final Radiance light = lights.getAt(i);
+            putRecord(pos.x, pos.y, light.range, light.color, light.flicker, light.strobe, light.delay, light.flare,
+                    light.seed);
+        }
+    }
+
+    private void putRecord(int x, int y, float range, float color, float flicker, float strobe, float delay,
+                           float flare, int seed)
+    {
+        putChar(x);
+        putChar(y);
+        putInt(NumberTools.floatToIntBits(range));
+        putInt(NumberTools.floatToIntBits(color));
+        putInt(NumberTools.floatToIntBits(flicker));
+        putInt(NumberTools.floatToIntBits(strobe));
+        putInt(NumberTools.floatToIntBits(delay));
+        putInt(NumberTools.floatToIntBits(flare));
+        putInt(seed);
+    }
+
+    private Radiance getRadiance()
+    {
+        return new Radiance(getFloat(), getFloat(), getFloat(), getFloat(), getFloat(), getFloat(), getInt());
+    }
+
+    private void ensure(int more)
+    {
+        if(position + more > bytes.length)
+            bytes = Arrays.copyOf(bytes, Math.max(position + more, bytes.length << 1));
+    }
+
+    private void putByte(int value)
+    {
+        ensure(1);
+        bytes[position++] = (byte) value;
+    }
+
+    private void putChar(int value)
+    {
+        ensure(2);
+        bytes[position++] = (byte) (value >>> 8);
+        bytes[position++] = (byte) value;
+    }
+
+    private void putInt(int value)
+    {
+        ensure(4);
+        setInt(position, value);
+        position += 4;
+    }
+
+    private void setInt(int at, int value)
+    {
+        bytes[at] = (byte) (value >>> 24);
+        bytes[at + 1] = (byte) (value >>> 16);
+        bytes[at + 2] = (byte) (value >>> 8);
+        bytes[at + 3] = (byte) value;
+    }
+
+    private void putLong(long value)
+    {
+        putInt((int) (value >>> 32));
+        putInt((int) value);
+    }
+
+    /**
+     * Writes a non-negative int 7 bits at a time, low bits first, with the high bit of each byte set if more follow.
+     */
+    private void putVarInt(int value)
+    {
+        while ((value & ~0x7F) != 0) {
+            putByte(value & 0x7F | 0x80);
+            value >>>= 7;
+        }
+        putByte(value);
+    }
+
+    private int getByte()
+    {
+        return bytes[position++] & 0xFF;
+    }
+
+    private int getChar()
+    {
+        return (bytes[position++] & 0xFF) << 8 | bytes[position++] & 0xFF;
+    }
+
+    private int getInt()
+    {
+        return (bytes[position++] & 0xFF) << 24 | (bytes[position++] & 0xFF) << 16
+                | (bytes[position++] & 0xFF) << 8 | bytes[position++] & 0xFF;
+    }
+
+    private float getFloat()
+    {
+        return NumberTools.intBitsToFloat(getInt());
+    }
+
+    private long getLong()
+    {
+        return (long) getInt() << 32 | getInt() & 0xFFFFFFFFL;
+    }
+
+    private int getVarInt()
+    {
+        int value = 0, shift = 0, b;
+        do {
+            b = getByte();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+}
@@ -2,18 +2,22 @@ package com.github.tommyettinger;
 
 import com.badlogic.gdx.graphics.Color;
 import com.badlogic.gdx.math.MathUtils;
+import com.badlogic.gdx.utils.IntArray;
+import com.badlogic.gdx.utils.TimeUtils;
 import com.github.tommyettinger.colorful.FloatColors;
 import com.github.tommyettinger.colorful.oklab.ColorTools;
 import com.github.tommyettinger.colorful.oklab.Palette;
 import squidpony.ArrayTools;
-import squidpony.squidgrid.FOV;
 import squidpony.squidgrid.Radius;
 import squidpony.squidmath.Coord;
 import squidpony.squidmath.GreasedRegion;
 import squidpony.squidmath.NumberTools;
 import squidpony.squidmath.OrderedMap;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.util.Arrays;
 
 import static com.github.tommyettinger.colorful.oklab.Palette.GRAY;
 
@@ -68,13 +72,199 @@ public class LightingHandler implements Serializable {
      * of light in each cell, and {@code colorLighting[1]} is a 2D array that stores the color of light in each cell, as
      * a packed float color. Both 2D arrays are the size of the map, as defined by {@link #resistances} initially and
      * later available in {@link #width} and {@link #height}.
+     * <br>
+     * This is null while {@link #flatStorage} is true, because the lighting is then kept in {@link #lightStrength} and
+     * {@link #lightColor}; code that needs the 2D form either way should use {@link #lightingView()},
+     * {@link #getLightStrength(int, int)}, or {@link #getLightColor(int, int)} instead of reading this directly.
      */
     public float[][][] colorLighting;
     /**
      * Temporary storage array used for calculations involving {@link #colorLighting}; it sometimes may make sense for
-     * other code to use this as temporary storage as well.
+     * other code to use this as temporary storage as well. Like colorLighting, this is null while {@link #flatStorage}
+     * is true, and {@link #tempStrength} and {@link #tempColor} are used instead.
      */
     public float[][][] tempColorLighting;
+    private transient float[][][] flatView;
+    /**
+     * If true, this uses {@link #lightStrength}, {@link #lightColor}, {@link #tempStrength}, and {@link #tempColor} to
+     * store lighting as flat, row-major 1D arrays, and {@link #colorLighting} and {@link #tempColorLighting} are null.
+     * If false (the default), the 3D arrays are used and the flat arrays are null. Change this with
+     * {@link #useFlatStorage(boolean)} rather than assigning it directly.
+     */
+    public boolean flatStorage;
+    /**
+     * Only used when {@link #flatStorage} is true; stores the strength of light in each cell, with the cell at x,y
+     * at index {@code x * height + y}. This is the flat equivalent of {@code colorLighting[0]}.
+     */
+    public float[] lightStrength;
+    /**
+     * Only used when {@link #flatStorage} is true; stores the color of light in each cell as a packed float color,
+     * with the cell at x,y at index {@code x * height + y}. This is the flat equivalent of {@code colorLighting[1]}.
+     */
+    public float[] lightColor;
+    /**
+     * Only used when {@link #flatStorage} is true; the flat equivalent of {@code tempColorLighting[0]}, indexed like
+     * {@link #lightStrength}.
+     */
+    public float[] tempStrength;
+    /**
+     * Only used when {@link #flatStorage} is true; the flat equivalent of {@code tempColorLighting[1]}, indexed like
+     * {@link #lightColor}.
+     */
+    public float[] tempColor;
+    /**
+     * If true (the default), mixing two light colors lerps all channels of the packed colors at once in integer math,
+     * using {@link #lerpPackedBits(int, int, float)}; if false, each channel is lerped separately in float math. The
+     * results differ by at most 1 in any channel (in the units of each channel's bits).
+     */
+    public boolean packedBlending = true;
+    /**
+     * Incremented whenever {@link #resistances} changes, so cached FOV calculated with older resistances can be
+     * detected and recalculated. If you edit resistances directly, you should increment this yourself.
+     */
+    public int resistanceVersion;
+    /**
+     * If non-null, caches the FOV of each light so it doesn't need to be recalculated every frame; null by default.
+     * Set this with {@link #useStampCache(int)}.
+     */
+    public transient LightStampCache stampCache;
+    /**
+     * Records which areas had their resistances changed through {@link #setResistance(int, int, double)} or the related
+     * bulk methods, as groups of 5 ints from oldest to newest: the {@link #resistanceVersion} after the change, then
+     * minX, minY (inclusive), maxX, and maxY (exclusive). Only the first {@link #resistanceChangeCount} groups are used.
+     * Use {@link #changedSince(int, int, int, int, int)} to query this. At most {@link #MAX_CHANGES} areas are kept;
+     * past that, the oldest areas are merged into one larger area.
+     */
+    public int[] resistanceChanges;
+    /**
+     * How many changed areas are stored in {@link #resistanceChanges}.
+     */
+    public int resistanceChangeCount;
+    /**
+     * The most areas {@link #resistanceChanges} will store separately before merging the oldest ones.
+     */
+    public static final int MAX_CHANGES = 64;
+    /**
+     * Glows with a color whose Oklab lightness is below this are filed in {@link #shades}, and lighter ones in
+     * {@link #lights}; see {@link #addGlow(Coord, Radiance)} and {@link #refile(Coord)}.
+     */
+    public static final float SHADE_LIGHTNESS = 0.25f;
+    /**
+     * A spatial index of the lights in {@link #lights}, used to find the lights near the viewer without checking
+     * every light. It is kept current by {@link #addLight(Coord, Radiance)}, {@link #removeLight(Coord)},
+     * {@link #moveLight(Coord, Coord)}, and {@link #setLightRange(Coord, float)}, and it is what this reads lights from
+     * while lighting; if you edit {@link #lights} directly, call {@link #rebuildLightIndex()} afterwards (a change in
+     * the number of lights is detected and rebuilds it automatically, unless moves are pending). If you assign
+     * {@link Radiance#range} directly instead of using setLightRange(), call {@link #refreshLightRanges()} afterwards.
+     */
+    public transient LightGrid lightIndex;
+    // true when lights has moves or removals that so far were only made in lightIndex; see syncLights()
+    private transient boolean lightsPending;
+    private transient IntArray nearbyLights;
+    /**
+     * If non-null, lights are mixed tile by tile using this, which may run tiles in parallel; null by default, which
+     * mixes each light into the whole map in turn. The results are identical either way. Set this with
+     * {@link #useTileRunner(TileRunner)} or directly.
+     */
+    public transient TileRunner tileRunner;
+    /**
+     * The width and height, in cells, of the tiles used when {@link #tileRunner} is non-null; defaults to 32.
+     */
+    public int tileSize = 32;
+    private transient LightStamp[] queuedStamps, ownStamps;
+    private transient float[] queuedFlares, queuedColors;
+    private transient boolean[] queuedShades;
+    private transient int queuedCount, tilesWide;
+    private transient int clipMinX, clipMinY, clipMaxX, clipMaxY;
+    // set only during updateAndDraw(), so each tile is drawn right after it is mixed
+    private transient float[][] drawEditing, drawStable;
+    private transient float drawLightness;
+    /**
+     * If true, {@link #update()} rounds the radius of each light to one of {@link #coherenceSteps} falloff buckets per
+     * cell and remembers, for each tile (see {@link #tileSize}), which lights it mixed there and with what radius,
+     * color, and flare. When none of the lights reaching a tile changed bucket, moved, or changed color or flare since
+     * the previous update, that tile keeps its previous lighting instead of being mixed again, and a light that kept
+     * its position and bucket reuses its previous FOV. Lighting is always what mixing every light with its rounded
+     * radius would produce, so the same lights at the same time give the same result no matter what came before.
+     * This works with or without a {@link #tileRunner}; without one, tiles are mixed one after another.
+     * <br>
+     * The rounding is a visible change: a flickering or strobing light is drawn with a radius up to
+     * {@code 0.5f / coherenceSteps} cells away from what {@link Radiance#currentRange(long)} gives, so it moves in
+     * small steps instead of smoothly, and lighting is not the same as an update with this false. Lights whose
+     * radius is already a multiple of {@code 1f / coherenceSteps}, like lights that don't flicker or strobe and have a
+     * range of 4.5, look exactly the same either way. This is false by default.
+     * <br>
+     * Changes made through this class (moving the viewer, changing resistances or static lights, or
+     * {@link #updateUI(Coord, Radiance)}) are noticed automatically. If you change the lighting arrays some other way
+     * between updates, call {@link #useTemporalCoherence(boolean)} again so the next update mixes every tile.
+     */
+    public boolean temporalCoherence;
+    /**
+     * How many falloff buckets each cell of radius is split into when {@link #temporalCoherence} is true; radii are
+     * rounded to the nearest multiple of {@code 1f / coherenceSteps}. Lower values let more frames reuse lighting from
+     * the frame before, while higher values follow flicker and strobe more smoothly. Defaults to 8.
+     */
+    public int coherenceSteps = 8;
+    /**
+     * How many tiles kept the lighting from the previous update in the last call to {@link #update()}, because
+     * {@link #temporalCoherence} found nothing in them had changed.
+     */
+    public int reusedTiles;
+    private transient boolean startTiles, coherentFrame, lastPacked;
+    private transient boolean[] tileReused;
+    private transient int[] lastX, lastY, lastReach;
+    private transient float[] lastRanges, lastFlares, lastColors;
+    private transient boolean[] lastShades;
+    private transient int lastCount, lastVersion, lastTileSize, lastMinX, lastMinY, lastMaxX, lastMaxY;
+    /**
+     * The most lights {@link #update()} will refresh each frame, or 0 (the default) to refresh every light. When more
+     * lights than this are noticeable, they are ranked by distance to the viewer, with flickering and strobing lights
+     * counting as closer; the best-ranked lights are refreshed, and the rest keep the radius they had when last
+     * refreshed, with each refreshed once every {@link #deferredInterval} frames (or sooner if its
+     * {@link Radiance#range} changes). A light that keeps its radius can
+     * reuse its cached FOV, so this works best with {@link #useStampCache(int)}.
+     */
+    public int lightBudget;
+    /**
+     * When {@link #lightBudget} is exceeded, lights outside the budget are refreshed once every this many frames,
+     * taking turns; defaults to 4.
+     */
+    public int deferredInterval = 4;
+    /**
+     * How many lights had their radius refreshed and were mixed in the last call to {@link #update()} or
+     * {@link #update(int, int, int, int)}; lights that couldn't reach the updated area aren't counted.
+     */
+    public int refreshedLights;
+    /**
+     * How many lights reused their previous radius and were mixed in the last call to {@link #update()} or
+     * {@link #update(int, int, int, int)}, because {@link #lightBudget} was exceeded; lights that couldn't reach the
+     * updated area aren't counted.
+     */
+    public int deferredLights;
+    private transient int viewerX, viewerY, frameCount;
+    // positions of any viewers after the first when vision is shared, as x,y pairs, and the bits each one sees
+    private transient int[] sharedViewers;
+    private transient int sharedViewerCount;
+    private transient GreasedRegion sharedCells;
+    /**
+     * Where the time for flicker and strobe effects comes from; read once per update so every light is evaluated at the
+     * same time. If null (the default), this uses {@link TimeUtils#millis()}, the same as {@link LightClock#SYSTEM}.
+     * Use a {@link LightClock.Manual} to make lighting repeatable in tests or replays.
+     */
+    public transient LightClock clock;
+    /**
+     * If non-null, counts the lights, FOV calculations, mixed cells, and time of each calculateFOV(), update(),
+     * updateAll(), and draw() call; null by default, which counts nothing. Set this with
+     * {@link #useStats(LightingStats)} or directly.
+     */
+    public transient LightingStats stats;
+    private transient long[] tileCells;
+    private transient int[] frameSlots, frameOrders, frameX, frameY;
+    private transient float[] frameRanges, frameBases, frameFlares, frameColors, frameWeights;
+    private transient float[] heldRanges, heldBases;
+    private transient int[] heldOrders;
+    private transient long[] ranking;
+    private transient boolean[] refreshing;
     /**
      * Width of the 2D arrays used in this, as obtained from {@link #resistances}.
      */
@@ -95,17 +285,100 @@ public class LightingHandler implements Serializable {
     public double viewerRange;
     /**
      * A mapping from positions as {@link Coord} objects to {@link Radiance} objects that describe the color, lighting
-     * radius, and changes over time of any in-game lights that should be shown on the map and change FOV. You can edit
-     * this manually or by using {@link #moveLight(int, int, int, int)}, {@link #addLight(int, int, Radiance)}, and
-     * {@link #removeLight(int, int)}.
+     * radius, and changes over time of any in-game lights that should be shown on the map and change FOV. Change this
+     * with {@link #moveLight(int, int, int, int)}, {@link #addLight(int, int, Radiance)},
+     * {@link #removeLight(int, int)}, and {@link #setLightRange(Coord, float)}. If you edit it directly, call
+     * {@link #syncLights()} first, or edits made while moves are pending are lost when it is rebuilt, and call
+     * {@link #rebuildLightIndex()} afterwards; only a change in the number of lights is noticed without that, so
+     * replacing the Radiance at a position would otherwise go unseen.
+     * <br>
+     * Moving or removing an entry in an OrderedMap takes time proportional to its size, so moveLight() and
+     * removeLight() only change {@link #lightIndex} right away, and this map catches up all at once the next time
+     * {@link #syncLights()} is called. Until then, this map can be stale: it may still hold lights at their old
+     * positions, or lights that were removed. Methods here that read this map call syncLights() themselves, and so does
+     * Java serialization; other code should call it before reading this map after lights have moved or been removed.
      */
     public OrderedMap<Coord, Radiance> lights;
+    /**
+     * If non-null, every light this mixes comes from this RadianceBank, in index order, and {@link #lights} is ignored
+     * (though {@link #staticLights} is still used); null by default. Lights in a bank are added, moved, and removed
+     * through the bank itself, by handle, rather than through {@link #addLight(Coord, Radiance)} and related methods.
+     * Set this with {@link #useBank(RadianceBank)}.
+     */
+    public RadianceBank bank;
+    /**
+     * Lights that never move, flicker, or strobe, kept apart from {@link #lights} so they can be mixed into a baked
+     * layer once per viewer move instead of every frame; each update starts from that layer and mixes {@link #lights}
+     * on top of it, so static lights are always mixed before other lights. Static lights always use their full
+     * {@link Radiance#range}. Use {@link #addStaticLight(Coord, Radiance)} and
+     * {@link #removeStaticLight(Coord)} to change this; if you edit it directly, call {@link #bakeStaticLights()}.
+     */
+    public OrderedMap<Coord, Radiance> staticLights;
+    private transient float[] bakedStrength, bakedColor;
+    /**
+     * Lights that only darken, such as the dim glow around a creature, kept apart from {@link #lights} because they
+     * cost much less. A shade always uses its full {@link Radiance#range}, since it doesn't flicker or strobe, so its
+     * FOV is kept until it moves or resistances change, and a shade in open space uses a ready-made falloff instead of
+     * shadowcasting. Walls block a shade just as they block a light. Shades are mixed after every light: a lit cell has
+     * the lightness of its light color moved toward the shade color's lightness by as much as a light of that color
+     * would lerp it, without changing hue, saturation, or strength, and a cell no light reaches gets the shade's
+     * {@link Radiance#color} and strength, as it would from a light of that color. Use
+     * {@link #addShade(Coord, Radiance)}, {@link #moveShade(Coord, Coord)}, and {@link #removeShade(Coord)} to change
+     * this, or edit it directly. {@link #addGlow(Coord, Radiance)} picks this map or lights by color, and
+     * {@link #refile(Coord)} moves a light or shade to the right map after its color changes.
+     */
+    public OrderedMap<Coord, Radiance> shades;
+    private transient LightStamp[] shadeStamps;
+    /**
+     * For each wall cell (resistance at least 1.0), a bitmask of which of its eight neighbors are open (resistance
+     * below 1.0), indexed like {@link #lightStrength}; 0 for open cells. Bits 0, 1, and 2 are the neighbors at y - 1
+     * from x - 1 to x + 1, bits 3 and 4 are x - 1 and x + 1 at the same y, and bits 5, 6, and 7 are at y + 1 from x - 1
+     * to x + 1. A wall is only lit when an open neighbor is, so walls with a mask of 0 are skipped right away.
+     */
+    private transient byte[] wallFaces;
+    private transient int wallFacesVersion;
+    /**
+     * If true (the default), {@link #stampLight(int, int, float, LightStamp)} checks {@link #openArea} for lights with
+     * no resistance anywhere in reach and writes the falloff for an empty map for them instead of shadowcasting, which
+     * gives the same result; this helps most in caves with big open areas.
+     */
+    public boolean openAreaStamps = true;
+    /**
+     * If true, {@link #stampLight(int, int, float, LightStamp)} stores strengths as 16-bit fixed-point levels instead
+     * of doubles (see {@link LightStamp#compact}), so every stamp in {@link #stampCache} and every stamp kept for
+     * {@link #temporalCoherence} takes a quarter of the memory, which keeps more of them in cache on big levels. Lit
+     * cells are the same either way, and lighting strengths differ by less than 1/65535 before mixing, which can't be
+     * seen. False by default; set with {@link #useCompactStamps(boolean)} so stamps already made are replaced.
+     */
+    public boolean compactStamps;
+    /**
+     * Finds lights with nothing in their way for {@link #openAreaStamps}; created when first needed, and rebuilt
+     * whenever {@link #resistanceVersion} changes.
+     */
+    public transient OpenAreaIndex openArea;
+    private transient boolean baked, bakeEverything;
+    private transient int bakedVersion;
 
     /**
      * A GreasedRegion that stores any cells that are in line-of-sight or are close enough to a cell in line-of-sight to
      * potentially cast light into such a cell. Depends on the highest {@link Radiance#range} in {@link #lights}.
      */
     public GreasedRegion noticeable;
+    /**
+     * The cells that block sight, which are the cells with a resistance of 1.0 or more, packed one bit per cell; kept
+     * current by {@link #setResistance(int, int, double)} and the related bulk methods, and rebuilt if
+     * {@link #resistanceVersion} changes some other way. Used with {@link BitVision}.
+     */
+    public transient GreasedRegion blocking;
+    private transient int blockingVersion;
+    private transient GreasedRegion nearOpen;
+    private transient int nearOpenVersion;
+    /**
+     * The cells the viewer can see, which are exactly the cells where {@link #fovResult} is greater than 0, as a
+     * GreasedRegion so fog-of-war can be updated with word operations instead of by scanning fovResult. Set by
+     * {@link #calculateFOV(int, int)} and {@link #updateAll()}.
+     */
+    public GreasedRegion visibleCells;
     /**
      * Background packed colors in YCwCm+Sat format; written to by {@link #draw(float[][])}
      */
@@ -172,8 +445,572 @@ public class LightingHandler implements Serializable {
         tempColorLighting = new float[2][width][height];
         Coord.expandPoolTo(width, height);
         lights = new OrderedMap<>(32);
+        staticLights = new OrderedMap<>(16);
+        shades = new OrderedMap<>(32);
         noticeable = new GreasedRegion(width, height);
+        visibleCells = new GreasedRegion(width, height);
         currentBackgrounds = new float[width][height];
+        resistanceChanges = new int[MAX_CHANGES * 5];
+    }
+
+    /**
+     * Switches between storing lighting in the 3D arrays {@link #colorLighting} and {@link #tempColorLighting}, or in
+     * the flat 1D arrays {@link #lightStrength}, {@link #lightColor}, {@link #tempStrength}, and {@link #tempColor}.
+     * Any lighting already calculated is carried over. Flat storage keeps each grid in one contiguous block of memory,
+     * which is friendlier to the CPU cache in the mixing and drawing loops; code that still needs the 2D form can use
+     * {@link #copyLightingInto(float[][][])}, {@link #getLightStrength(int, int)}, and {@link #getLightColor(int, int)}.
+     * The FOV-related 2D double arrays ({@link #resistances}, {@link #fovResult}, {@link #losResult}, and
+     * {@link #tempFOV}) are not affected, since FOV reads and writes them directly.
+     * @param flat true to use flat 1D storage, false to use the 3D arrays
+     * @return this for chaining
+     */
+    public LightingHandler useFlatStorage(boolean flat)
+    {
+        if(flat == flatStorage)
+            return this;
+        coherentFrame = false;
+        final int size = width * height;
+        if(flat)
+        {
+            lightStrength = new float[size];
+            lightColor = new float[size];
+            tempStrength = new float[size];
+            tempColor = new float[size];
+            for (int x = 0, i = 0; x < width; x++, i += height) {
+                System.arraycopy(colorLighting[0][x], 0, lightStrength, i, height);
+                System.arraycopy(colorLighting[1][x], 0, lightColor, i, height);
+                System.arraycopy(tempColorLighting[0][x], 0, tempStrength, i, height);
+                System.arraycopy(tempColorLighting[1][x], 0, tempColor, i, height);
+            }
+            colorLighting = null;
+            tempColorLighting = null;
+        }
+        else
+        {
+            colorLighting = new float[2][width][height];
+            tempColorLighting = new float[2][width][height];
+            for (int x = 0, i = 0; x < width; x++, i += height) {
+                System.arraycopy(lightStrength, i, colorLighting[0][x], 0, height);
+                System.arraycopy(lightColor, i, colorLighting[1][x], 0, height);
+                System.arraycopy(tempStrength, i, tempColorLighting[0][x], 0, height);
+                System.arraycopy(tempColor, i, tempColorLighting[1][x], 0, height);
+            }
+            lightStrength = null;
+            lightColor = null;
+            tempStrength = null;
+            tempColor = null;
+            flatView = null;
+        }
+        flatStorage = flat;
+        return this;
+    }
+
+    /**
+     * Gets the strength of light at the given cell, regardless of whether {@link #flatStorage} is used.
+     * @param x the x-position to look up
+     * @param y the y-position to look up
+     * @return the strength of light at x,y, from 0 to 1
+     */
+    public float getLightStrength(int x, int y)
+    {
+        return flatStorage ? lightStrength[x * height + y] : colorLighting[0][x][y];
+    }
+
+    /**
+     * Gets the color of light at the given cell as a packed float, regardless of whether {@link #flatStorage} is used.
+     * @param x the x-position to look up
+     * @param y the y-position to look up
+     * @return the packed float color of light at x,y; {@link Palette#GRAY} if unlit
+     */
+    public float getLightColor(int x, int y)
+    {
+        return flatStorage ? lightColor[x * height + y] : colorLighting[1][x][y];
+    }
+
+    /**
+     * Copies the current lighting into a 3D float array in the format used by {@link #colorLighting}, regardless of
+     * whether {@link #flatStorage} is used. This is meant for code that still expects the 2D form of the lighting.
+     * @param into a 3D float array with length 2 where both elements are {@link #width} by {@link #height}; if null,
+     *             a new array will be allocated
+     * @return into after modification, or a new array if into was null
+     */
+    public float[][][] copyLightingInto(float[][][] into)
+    {
+        if(into == null)
+            into = new float[2][width][height];
+        for (int x = 0, i = 0; x < width; x++, i += height) {
+            if(flatStorage) {
+                System.arraycopy(lightStrength, i, into[0][x], 0, height);
+                System.arraycopy(lightColor, i, into[1][x], 0, height);
+            } else {
+                System.arraycopy(colorLighting[0][x], 0, into[0][x], 0, height);
+                System.arraycopy(colorLighting[1][x], 0, into[1][x], 0, height);
+            }
+        }
+        return into;
+    }
+
+    /**
+     * Gets the current lighting in the 2D form of {@link #colorLighting}, whichever storage is used. Without
+     * {@link #flatStorage}, this is colorLighting itself; with it, this is a 2D copy of {@link #lightStrength} and
+     * {@link #lightColor}, made when this is called and reused by later calls, so edits to it don't change the lighting
+     * and it only reflects later updates after calling this again.
+     * @return the current lighting as a 3D float array in the format of {@link #colorLighting}
+     */
+    public float[][][] lightingView()
+    {
+        if(!flatStorage)
+            return colorLighting;
+        return flatView = copyLightingInto(flatView);
+    }
+
+    /**
+     * Copies the lighting, {@link #fovResult}, {@link #losResult}, {@link #visibleCells}, and {@link #noticeable} from
+     * another LightingHandler with the same size into this one, writing into the arrays this already has so references
+     * to them stay valid. The two can use different storage; see {@link #flatStorage}. This is how
+     * {@link AsyncLighting} shows lighting that was computed in a different LightingHandler after the viewer moved.
+     * @param other a LightingHandler with the same width and height as this
+     * @return this for chaining
+     */
+    public LightingHandler copyResultsFrom(LightingHandler other)
+    {
+        copyLightingFrom(other, 0, 0, width, height);
+        for (int x = 0; x < width; x++) {
+            System.arraycopy(other.fovResult[x], 0, fovResult[x], 0, height);
+            System.arraycopy(other.losResult[x], 0, losResult[x], 0, height);
+        }
+        visibleCells.remake(other.visibleCells);
+        noticeable.remake(other.noticeable);
+        return this;
+    }
+
+    /**
+     * Copies only the lighting within the given bounds from another LightingHandler with the same size into this one,
+     * leaving the FOV results alone; this is all that {@link #update(int, int, int, int)} changes with the same bounds,
+     * so it is how {@link AsyncLighting} shows a frame when the viewer hasn't moved. The two can use different storage.
+     * @param other a LightingHandler with the same width and height as this
+     * @param minX inclusive lower bound on x to copy
+     * @param minY inclusive lower bound on y to copy
+     * @param maxX exclusive upper bound on x to copy
+     * @param maxY exclusive upper bound on y to copy
+     * @return this for chaining
+     */
+    public LightingHandler copyLightingFrom(LightingHandler other, int minX, int minY, int maxX, int maxY)
+    {
+        coherentFrame = false;
+        minX = MathUtils.clamp(minX, 0, width);
+        minY = MathUtils.clamp(minY, 0, height);
+        maxX = MathUtils.clamp(maxX, minX, width);
+        maxY = MathUtils.clamp(maxY, minY, height);
+        final int len = maxY - minY;
+        if(len <= 0)
+            return this;
+        for (int x = minX, i = minX * height + minY; x < maxX; x++, i += height) {
+            if(flatStorage && other.flatStorage) {
+                System.arraycopy(other.lightStrength, i, lightStrength, i, len);
+                System.arraycopy(other.lightColor, i, lightColor, i, len);
+            } else if(flatStorage) {
+                System.arraycopy(other.colorLighting[0][x], minY, lightStrength, i, len);
+                System.arraycopy(other.colorLighting[1][x], minY, lightColor, i, len);
+            } else if(other.flatStorage) {
+                System.arraycopy(other.lightStrength, i, colorLighting[0][x], minY, len);
+                System.arraycopy(other.lightColor, i, colorLighting[1][x], minY, len);
+            } else {
+                System.arraycopy(other.colorLighting[0][x], minY, colorLighting[0][x], minY, len);
+                System.arraycopy(other.colorLighting[1][x], minY, colorLighting[1][x], minY, len);
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Clears the current lighting so no cells are lit, using whichever storage {@link #flatStorage} selects.
+     */
+    private void eraseLighting()
+    {
+        if(flatStorage) {
+            Arrays.fill(lightStrength, 0f);
+            Arrays.fill(lightColor, GRAY);
+        }
+        else
+            eraseColoredLighting(colorLighting);
+    }
+
+    /**
+     * Like {@link #eraseLighting()}, but only erases the lighting within the given bounds, which must be in the map.
+     */
+    private void eraseLighting(int minX, int minY, int maxX, int maxY)
+    {
+        for (int x = minX; x < maxX; x++) {
+            if(flatStorage) {
+                Arrays.fill(lightStrength, x * height + minY, x * height + maxY, 0f);
+                Arrays.fill(lightColor, x * height + minY, x * height + maxY, GRAY);
+            }
+            else {
+                Arrays.fill(colorLighting[0][x], minY, maxY, 0f);
+                Arrays.fill(colorLighting[1][x], minY, maxY, GRAY);
+            }
+        }
+    }
+
+    /**
+     * Erases the lighting within the given bounds and then, if there are any {@link #staticLights}, copies their baked
+     * lighting into those bounds, baking it first if it is missing or was made with older {@link #resistances}.
+     */
+    private void startLighting(int minX, int minY, int maxX, int maxY)
+    {
+        if(staticLights.isEmpty())
+        {
+            eraseLighting(minX, minY, maxX, maxY);
+            return;
+        }
+        if(!baked || bakedVersion != resistanceVersion)
+            bakeStaticLights();
+        transferBaked(false, minX, minY, maxX, maxY);
+    }
+
+    /**
+     * Copies lighting within the given bounds into the baked layer if save is true, or out of it if save is false.
+     */
+    private void transferBaked(boolean save, int minX, int minY, int maxX, int maxY)
+    {
+        final int h = maxY - minY;
+        if(h <= 0)
+            return;
+        for (int x = minX, i = minX * height + minY; x < maxX; x++, i += height) {
+            if(flatStorage) {
+                if(save) {
+                    System.arraycopy(lightStrength, i, bakedStrength, i, h);
+                    System.arraycopy(lightColor, i, bakedColor, i, h);
+                } else {
+                    System.arraycopy(bakedStrength, i, lightStrength, i, h);
+                    System.arraycopy(bakedColor, i, lightColor, i, h);
+                }
+            }
+            else {
+                if(save) {
+                    System.arraycopy(colorLighting[0][x], minY, bakedStrength, i, h);
+                    System.arraycopy(colorLighting[1][x], minY, bakedColor, i, h);
+                } else {
+                    System.arraycopy(bakedStrength, i, colorLighting[0][x], minY, h);
+                    System.arraycopy(bakedColor, i, colorLighting[1][x], minY, h);
+                }
+            }
+        }
+    }
+
+    /**
+     * Mixes the lights in {@link #staticLights} into a baked layer that {@link #update()} and similar methods start
+     * from. Like all mixing, this only lights cells in {@link #losResult}, so it depends on the viewer; after
+     * {@link #calculateFOV(Coord)} only {@link #noticeable} static lights are baked, and after {@link #updateAll()}
+     * all of them are. Baking happens automatically on each calculateFOV() or updateAll() call, when static lights are
+     * added or removed through this class, and when {@link #resistanceVersion} changes, so you only need to call this
+     * after editing staticLights or the Radiance objects in it directly. This overwrites the current lighting, so it
+     * should be called before an update, not between an update and a draw.
+     */
+    public void bakeStaticLights()
+    {
+        if(bakedStrength == null)
+        {
+            bakedStrength = new float[width * height];
+            bakedColor = new float[width * height];
+        }
+        coherentFrame = false;
+        eraseLighting();
+        final int sz = staticLights.size();
+        Coord pos;
+        Radiance radiance;
+        for (int i = 0; i < sz; i++) {
+            pos = staticLights.keyAt(i);
+            if(!bakeEverything && !noticeable.contains(pos))
+                continue;
+            radiance = staticLights.getAt(i);
+            mixLight(pos.x, pos.y, radiance.range, radiance.flare, radiance.color);
+        }
+        transferBaked(true, 0, 0, width, height);
+        bakedVersion = resistanceVersion;
+        baked = true;
+    }
+
+    /**
+     * Gets {@link #wallFaces}, finding every wall face again if the masks are missing or {@link #resistanceVersion} has
+     * changed without going through {@link #setResistance(int, int, double)} or a related method.
+     */
+    private byte[] wallFaces()
+    {
+        if(wallFaces == null || wallFacesVersion != resistanceVersion)
+        {
+            if(wallFaces == null)
+                wallFaces = new byte[width * height];
+            findWallFaces(0, 0, width, height);
+            wallFacesVersion = resistanceVersion;
+        }
+        return wallFaces;
+    }
+
+    /**
+     * Recalculates {@link #wallFaces} within the given bounds, which must be in the map.
+     */
+    private void findWallFaces(int minX, int minY, int maxX, int maxY)
+    {
+        final int lastX = width - 1, lastY = height - 1;
+        double[] res, resL, resR;
+        for (int x = minX; x < maxX; x++) {
+            res = resistances[x];
+            resL = x > 0 ? resistances[x - 1] : null;
+            resR = x < lastX ? resistances[x + 1] : null;
+            for (int y = minY, i = x * height + minY; y < maxY; y++, i++) {
+                int faces = 0;
+                if(res[y] >= 1) {
+                    if(y > 0) {
+                        if(resL != null && resL[y - 1] < 1) faces |= 0x01;
+                        if(res[y - 1] < 1) faces |= 0x02;
+                        if(resR != null && resR[y - 1] < 1) faces |= 0x04;
+                    }
+                    if(resL != null && resL[y] < 1) faces |= 0x08;
+                    if(resR != null && resR[y] < 1) faces |= 0x10;
+                    if(y < lastY) {
+                        if(resL != null && resL[y + 1] < 1) faces |= 0x20;
+                        if(res[y + 1] < 1) faces |= 0x40;
+                        if(resR != null && resR[y + 1] < 1) faces |= 0x80;
+                    }
+                }
+                wallFaces[i] = (byte) faces;
+            }
+        }
+    }
+
+    /**
+     * Gets {@link #blocking}, creating it if needed and rebuilding it if {@link #resistanceVersion} has changed without
+     * going through {@link #setResistance(int, int, double)} or a related method.
+     * @return the current cells that block sight, which must not be modified
+     */
+    public GreasedRegion blocking()
+    {
+        if(blocking == null || blockingVersion != resistanceVersion)
+        {
+            if(blocking == null)
+                blocking = new GreasedRegion(width, height);
+            else
+                blocking.empty();
+            final long[] data = blocking.data;
+            final int ySections = blocking.ySections;
+            for (int x = 0; x < width; x++) {
+                final double[] column = resistances[x];
+                for (int y = 0; y < height; y++) {
+                    if(column[y] >= 1.0)
+                        data[x * ySections + (y >> 6)] |= 1L << y;
+                }
+            }
+            blockingVersion = resistanceVersion;
+        }
+        return blocking;
+    }
+
+    /**
+     * Gets the cells that have a resistance below 1.0 or are next to (or diagonal to) such a cell, which are the cells
+     * {@link #updateAll()} treats as in line of sight. This is found by expanding the open cells with word operations,
+     * and kept until {@link #resistanceVersion} changes.
+     * @return the cells that are open or touch an open cell, which must not be modified
+     */
+    private GreasedRegion nearOpen()
+    {
+        if(nearOpen == null || nearOpenVersion != resistanceVersion)
+        {
+            if(nearOpen == null)
+                nearOpen = new GreasedRegion(width, height);
+            else
+                nearOpen.empty();
+            final long[] data = nearOpen.data;
+            final int ySections = nearOpen.ySections;
+            for (int x = 0; x < width; x++) {
+                final double[] column = resistances[x];
+                for (int y = 0; y < height; y++) {
+                    if(column[y] < 1.0)
+                        data[x * ySections + (y >> 6)] |= 1L << y;
+                }
+            }
+            nearOpen.expand8way();
+            // updateAll() always looked at a full 3x3 window, so on the low edges it starts at 0 instead of -1 and
+            // also reaches the cells two steps in
+            for (int x = 0; x < width; x++) {
+                if(nearOpenWindow(x, 0))
+                    nearOpen.insert(x, 0);
+            }
+            for (int y = 1; y < height; y++) {
+                if(nearOpenWindow(0, y))
+                    nearOpen.insert(0, y);
+            }
+            nearOpenVersion = resistanceVersion;
+        }
+        return nearOpen;
+    }
+
+    private boolean nearOpenWindow(int x, int y)
+    {
+        for (int xx = Math.max(0, x - 1), xi = 0; xi < 3 && xx < width; xi++, xx++) {
+            for (int yy = Math.max(0, y - 1), yi = 0; yi < 3 && yy < height; yi++, yy++) {
+                if(resistances[xx][yy] < 1.0)
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gets {@link #openArea}, creating it if needed and rebuilding it if {@link #resistanceVersion} has changed.
+     */
+    private OpenAreaIndex openArea()
+    {
+        if(openArea == null)
+            openArea = new OpenAreaIndex(width, height);
+        return openArea.refresh(resistances, resistanceVersion);
+    }
+
+    /**
+     * Sets the rectangle that lights are mixed into during an update, clamped to the map.
+     */
+    private void clip(int minX, int minY, int maxX, int maxY)
+    {
+        clipMinX = MathUtils.clamp(minX, 0, width);
+        clipMinY = MathUtils.clamp(minY, 0, height);
+        clipMaxX = MathUtils.clamp(maxX, clipMinX, width);
+        clipMaxY = MathUtils.clamp(maxY, clipMinY, height);
+    }
+
+    /**
+     * Changes the resistance of one cell, such as when a door opens or a wall is broken. If the resistance actually
+     * changes, this increments {@link #resistanceVersion}, records the change in {@link #resistanceChanges}, and
+     * only discards cached light FOV (see {@link #useStampCache(int)}) for lights that could reach this cell. You still
+     * need to call {@link #calculateFOV(int, int)} afterwards if the viewer's line of sight could have changed.
+     * @param x the x-position of the cell to change
+     * @param y the y-position of the cell to change
+     * @param resistance the new resistance, from 0.0 (fully transparent) to 1.0 (fully opaque)
+     * @return this for chaining
+     */
+    public LightingHandler setResistance(int x, int y, double resistance)
+    {
+        if(x < 0 || y < 0 || x >= width || y >= height || resistances[x][y] == resistance)
+            return this;
+        resistances[x][y] = resistance;
+        return resistancesChanged(x, y, x + 1, y + 1);
+    }
+
+    /**
+     * Changes the resistance of every "on" cell in {@code region} to the given value, handling the change like
+     * {@link #setResistance(int, int, double)} but recording only one changed area for the whole group.
+     * @param region a GreasedRegion with the same size as this; every "on" cell will be changed
+     * @param resistance the new resistance, from 0.0 (fully transparent) to 1.0 (fully opaque)
+     * @return this for chaining
+     */
+    public LightingHandler setResistances(GreasedRegion region, double resistance)
+    {
+        int minX = width, minY = height, maxX = -1, maxY = -1;
+        for (int x = 0; x < width && x < region.width; x++) {
+            for (int y = 0; y < height && y < region.height; y++) {
+                if(region.contains(x, y) && resistances[x][y] != resistance)
+                {
+                    resistances[x][y] = resistance;
+                    minX = Math.min(minX, x);
+                    minY = Math.min(minY, y);
+                    maxX = Math.max(maxX, x);
+                    maxY = Math.max(maxY, y);
+                }
+            }
+        }
+        if(maxX < 0)
+            return this;
+        return resistancesChanged(minX, minY, maxX + 1, maxY + 1);
+    }
+
+    /**
+     * Copies a rectangular patch of resistances into {@link #resistances}, with {@code patch[0][0]} going to
+     * startX,startY; parts of the patch that would be outside the map are ignored. The change is handled like
+     * {@link #setResistance(int, int, double)}, with one changed area recorded for the whole patch.
+     * @param startX the x-position to place the patch's first column at
+     * @param startY the y-position to place the patch's first row at
+     * @param patch a non-empty 2D double array of resistances, from 0.0 (fully transparent) to 1.0 (fully opaque)
+     * @return this for chaining
+     */
+    public LightingHandler setResistances(int startX, int startY, double[][] patch)
+    {
+        final int minX = Math.max(0, startX), minY = Math.max(0, startY),
+                maxX = Math.min(width, startX + patch.length), maxY = Math.min(height, startY + patch[0].length);
+        if(minX >= maxX || minY >= maxY)
+            return this;
+        for (int x = minX; x < maxX; x++) {
+            System.arraycopy(patch[x - startX], minY - startY, resistances[x], minY, maxY - minY);
+        }
+        return resistancesChanged(minX, minY, maxX, maxY);
+    }
+
+    /**
+     * Checks whether any resistances in the given rectangle were changed through {@link #setResistance(int, int, double)}
+     * or its bulk variants after {@link #resistanceVersion} was {@code version}. Other caches that depend on resistances,
+     * such as pathfinding, can remember the version they were built with and use this to tell if they are outdated.
+     * @param version a value {@link #resistanceVersion} had previously
+     * @param minX inclusive lower bound on x
+     * @param minY inclusive lower bound on y
+     * @param maxX exclusive upper bound on x
+     * @param maxY exclusive upper bound on y
+     * @return true if resistances in the rectangle may have changed since version
+     */
+    public boolean changedSince(int version, int minX, int minY, int maxX, int maxY)
+    {
+        final int[] items = resistanceChanges;
+        for (int i = resistanceChangeCount * 5 - 5; i >= 0; i -= 5) {
+            if(items[i] - version <= 0)
+                return false;
+            if(items[i + 1] < maxX && minX < items[i + 3] && items[i + 2] < maxY && minY < items[i + 4])
+                return true;
+        }
+        return false;
+    }
+
+    private LightingHandler resistancesChanged(int minX, int minY, int maxX, int maxY)
+    {
+        final boolean facesCurrent = wallFaces != null && wallFacesVersion == resistanceVersion,
+                blockingCurrent = blocking != null && blockingVersion == resistanceVersion;
+        ++resistanceVersion;
+        if(blockingCurrent)
+        {
+            for (int x = minX; x < maxX; x++) {
+                for (int y = minY; y < maxY; y++) {
+                    if(resistances[x][y] >= 1.0)
+                        blocking.insert(x, y);
+                    else
+                        blocking.remove(x, y);
+                }
+            }
+            blockingVersion = resistanceVersion;
+        }
+        if(facesCurrent)
+        {
+            // a change can only affect the masks of the changed cells and their neighbors
+            findWallFaces(Math.max(0, minX - 1), Math.max(0, minY - 1),
+                    Math.min(width, maxX + 1), Math.min(height, maxY + 1));
+            wallFacesVersion = resistanceVersion;
+        }
+        final int[] items = resistanceChanges;
+        if(resistanceChangeCount >= MAX_CHANGES)
+        {
+            // merge the two oldest areas so the newest ones stay precise
+            items[6] = Math.min(items[1], items[6]);
+            items[7] = Math.min(items[2], items[7]);
+            items[8] = Math.max(items[3], items[8]);
+            items[9] = Math.max(items[4], items[9]);
+            System.arraycopy(items, 5, items, 0, items.length - 5);
+            --resistanceChangeCount;
+        }
+        final int i = resistanceChangeCount++ * 5;
+        items[i] = resistanceVersion;
+        items[i + 1] = minX;
+        items[i + 2] = minY;
+        items[i + 3] = maxX;
+        items[i + 4] = maxY;
+        if(stampCache != null)
+            stampCache.invalidate(minX, minY, maxX, maxY, resistanceVersion);
+        return this;
     }
 
     /**
@@ -183,230 +1020,1342 @@ public class LightingHandler implements Serializable {
      * @param light a Radiance object that can have a changing radius, color, and various other effects on lighting
      * @return this for chaining
      */
-    public LightingHandler addLight(int x, int y, Radiance light)
+    public LightingHandler addLight(int x, int y, Radiance light)
+    {
+        return addLight(Coord.get(x, y), light);
+    }
+    /**
+     * Adds a Radiance as a light source at the given position. Overwrites any existing Radiance at the same position.
+     * @param position the position to add the Radiance at
+     * @param light a Radiance object that can have a changing radius, color, and various other effects on lighting
+     * @return this for chaining
+     */
+    public LightingHandler addLight(Coord position, Radiance light)
+    {
+        // while moves are pending, the map is rebuilt from the index anyway
+        if(!lightsPending)
+            lights.put(position, light);
+        if(lightIndex != null)
+            lightIndex.add(position, light);
+        return this;
+    }
+
+    /**
+     * Removes a Radiance as a light source from the given position, if any is present.
+     * @param x the x-position to remove the Radiance from
+     * @param y the y-position to remove the Radiance from
+     * @return this for chaining
+     */
+    public LightingHandler removeLight(int x, int y)
+    {
+        return removeLight(Coord.get(x, y));
+    }
+    /**
+     * Removes a Radiance as a light source from the given position, if any is present.
+     * @param position the position to remove the Radiance from
+     * @return this for chaining
+     */
+    public LightingHandler removeLight(Coord position)
+    {
+        if(lightIndex().remove(position))
+            lightsPending = true;
+        return this;
+    }
+    /**
+     * If a Radiance is present at oldX,oldY, this will move it to newX,newY and overwrite any existing Radiance at
+     * newX,newY. If no Radiance is present at oldX,oldY, this does nothing.
+     * @param oldX the x-position to move a Radiance from
+     * @param oldY the y-position to move a Radiance from
+     * @param newX the x-position to move a Radiance to
+     * @param newY the y-position to move a Radiance to
+     * @return this for chaining
+     */
+    public LightingHandler moveLight(int oldX, int oldY, int newX, int newY)
+    {
+        return moveLight(Coord.get(oldX, oldY), Coord.get(newX, newY));
+    }
+    /**
+     * If a Radiance is present at oldPosition, this will move it to newPosition and overwrite any existing Radiance at
+     * newPosition. If no Radiance is present at oldPosition, this does nothing.
+     * @param oldPosition the Coord to move a Radiance from
+     * @param newPosition the Coord to move a Radiance to
+     * @return this for chaining
+     */
+    public LightingHandler moveLight(Coord oldPosition, Coord newPosition)
+    {
+        if(lightIndex().move(oldPosition, newPosition))
+            lightsPending = true;
+        return this;
+    }
+
+    /**
+     * Changes the {@link Radiance#range} of the light at the given position, if there is one, and tells
+     * {@link #lightIndex} about it right away, in constant time. This is how the range of a light in {@link #lights}
+     * should be changed; if it is assigned directly, the index keeps using the old range to find which lights reach the
+     * viewer's sight until {@link #refreshLightRanges()} is called.
+     * @param position the position of the light to change
+     * @param range the new range of the light
+     * @return this for chaining
+     */
+    public LightingHandler setLightRange(Coord position, float range)
+    {
+        final LightGrid index = lightIndex();
+        final int slot = index.slotOf(position);
+        if(slot >= 0)
+        {
+            index.light(slot).range = range;
+            index.setRange(slot, range);
+        }
+        return this;
+    }
+
+    /**
+     * Tells {@link #lightIndex} about every light whose {@link Radiance#range} was assigned directly instead of with
+     * {@link #setLightRange(Coord, float)}. This checks every light, so call it once after a batch of such changes, not
+     * every frame.
+     * @return this for chaining
+     */
+    public LightingHandler refreshLightRanges()
+    {
+        lightIndex().refreshRanges();
+        return this;
+    }
+
+    /**
+     * Brings {@link #lights} up to date with the lights moved and removed since the last call, rebuilding it once in
+     * the same order it would have had if each change were made in it directly. Call this before reading lights
+     * yourself after moving or removing lights; this does nothing if there is nothing to catch up on.
+     * @return this for chaining
+     */
+    public LightingHandler syncLights()
+    {
+        if(lightsPending)
+        {
+            lightsPending = false;
+            lightIndex.copyInto(lights);
+        }
+        return this;
+    }
+
+    /**
+     * Catches {@link #lights} up with pending moves and removals before writing it, since {@link #lightIndex} isn't
+     * serialized.
+     */
+    private void writeObject(ObjectOutputStream out) throws IOException
+    {
+        syncLights();
+        out.defaultWriteObject();
+    }
+
+    /**
+     * Rebuilds {@link #lightIndex} from {@link #lights}. You only need to call this if you put, remove, or re-key
+     * entries in lights directly, without changing how many lights there are; other changes are handled for you.
+     * Moves and removals that lights hasn't caught up on yet are applied to it first.
+     * @return this for chaining
+     */
+    public LightingHandler rebuildLightIndex()
+    {
+        syncLights();
+        lightIndex = new LightGrid(width, height, lights);
+        heldRanges = null;
+        heldBases = null;
+        heldOrders = null;
+        return this;
+    }
+
+    /**
+     * Adds a Radiance as a static light source at the given position, overwriting any static light already there. Static
+     * lights are baked once and reused each frame, so they should not move, flicker, or strobe; they always use their
+     * full {@link Radiance#range}. The bake happens again at the next update.
+     * @param x the x-position to add the Radiance at
+     * @param y the y-position to add the Radiance at
+     * @param light a Radiance that doesn't flicker or strobe
+     * @return this for chaining
+     */
+    public LightingHandler addStaticLight(int x, int y, Radiance light)
+    {
+        return addStaticLight(Coord.get(x, y), light);
+    }
+    /**
+     * Adds a Radiance as a static light source at the given position, overwriting any static light already there. Static
+     * lights are baked once and reused each frame, so they should not move, flicker, or strobe; they always use their
+     * full {@link Radiance#range}. The bake happens again at the next update.
+     * @param position the position to add the Radiance at
+     * @param light a Radiance that doesn't flicker or strobe
+     * @return this for chaining
+     */
+    public LightingHandler addStaticLight(Coord position, Radiance light)
+    {
+        staticLights.put(position, light);
+        baked = false;
+        coherentFrame = false;
+        return this;
+    }
+
+    /**
+     * Removes a static light source from the given position, if any is present; the bake happens again at the next
+     * update.
+     * @param position the position to remove the static Radiance from
+     * @return this for chaining
+     */
+    public LightingHandler removeStaticLight(Coord position)
+    {
+        if(staticLights.remove(position) != null)
+        {
+            baked = false;
+            coherentFrame = false;
+        }
+        return this;
+    }
+
+    /**
+     * Adds a Radiance as a shade at the given position, overwriting any shade already there; see {@link #shades}. Only
+     * the range, color, and flare of the Radiance are used.
+     * @param x the x-position to add the shade at
+     * @param y the y-position to add the shade at
+     * @param shade a Radiance that darkens its surroundings, usually with a dark color
+     * @return this for chaining
+     */
+    public LightingHandler addShade(int x, int y, Radiance shade)
+    {
+        return addShade(Coord.get(x, y), shade);
+    }
+    /**
+     * Adds a Radiance as a shade at the given position, overwriting any shade already there; see {@link #shades}. Only
+     * the range, color, and flare of the Radiance are used.
+     * @param position the position to add the shade at
+     * @param shade a Radiance that darkens its surroundings, usually with a dark color
+     * @return this for chaining
+     */
+    public LightingHandler addShade(Coord position, Radiance shade)
+    {
+        shades.put(position, shade);
+        return this;
+    }
+
+    /**
+     * Removes a shade from the given position, if any is present.
+     * @param x the x-position to remove the shade from
+     * @param y the y-position to remove the shade from
+     * @return this for chaining
+     */
+    public LightingHandler removeShade(int x, int y)
+    {
+        return removeShade(Coord.get(x, y));
+    }
+    /**
+     * Removes a shade from the given position, if any is present.
+     * @param position the position to remove the shade from
+     * @return this for chaining
+     */
+    public LightingHandler removeShade(Coord position)
+    {
+        shades.remove(position);
+        return this;
+    }
+
+    /**
+     * If a shade is present at oldX,oldY, this will move it to newX,newY and overwrite any existing shade at newX,newY.
+     * If no shade is present at oldX,oldY, this does nothing.
+     * @param oldX the x-position to move a shade from
+     * @param oldY the y-position to move a shade from
+     * @param newX the x-position to move a shade to
+     * @param newY the y-position to move a shade to
+     * @return this for chaining
+     */
+    public LightingHandler moveShade(int oldX, int oldY, int newX, int newY)
+    {
+        return moveShade(Coord.get(oldX, oldY), Coord.get(newX, newY));
+    }
+    /**
+     * If a shade is present at oldPosition, this will move it to newPosition and overwrite any existing shade at
+     * newPosition. If no shade is present at oldPosition, this does nothing.
+     * @param oldPosition the Coord to move a shade from
+     * @param newPosition the Coord to move a shade to
+     * @return this for chaining
+     */
+    public LightingHandler moveShade(Coord oldPosition, Coord newPosition)
+    {
+        if(shades.containsKey(oldPosition))
+            shades.alter(oldPosition, newPosition);
+        return this;
+    }
+
+    /**
+     * Adds a Radiance at the given position as a shade if its color is darker than {@link #SHADE_LIGHTNESS}, or as a
+     * light otherwise. If its color or range changes later, call {@link #refile(Coord)}. Move and remove it with
+     * {@link #moveGlow(Coord, Coord)} and {@link #removeGlow(Coord)}.
+     * @param position the position to add the glow at
+     * @param glow a Radiance that may either light or darken its surroundings
+     * @return this for chaining
+     */
+    public LightingHandler addGlow(Coord position, Radiance glow)
+    {
+        return ColorTools.channelL(glow.color) < SHADE_LIGHTNESS ? addShade(position, glow) : addLight(position, glow);
+    }
+
+    /**
+     * Moves the light or shade at the given position to {@link #shades} or {@link #lights}, whichever its color now
+     * belongs in, as {@link #addGlow(Coord, Radiance)} would choose. Call this after changing the color or range of a
+     * light or shade; a light that stays a light has its range passed to {@link #lightIndex}, as
+     * {@link #setLightRange(Coord, float)} does. This does nothing if there is no light or shade there.
+     * @param position the position of a light or shade whose color or range may have changed
+     * @return this for chaining
+     */
+    public LightingHandler refile(Coord position)
+    {
+        final Radiance shade = shades.get(position);
+        if(shade != null)
+        {
+            if(ColorTools.channelL(shade.color) >= SHADE_LIGHTNESS)
+            {
+                shades.remove(position);
+                addLight(position, shade);
+            }
+            return this;
+        }
+        final LightGrid index = lightIndex();
+        final int slot = index.slotOf(position);
+        if(slot < 0)
+            return this;
+        final Radiance light = index.light(slot);
+        if(ColorTools.channelL(light.color) < SHADE_LIGHTNESS)
+        {
+            removeLight(position);
+            addShade(position, light);
+        }
+        else
+            index.setRange(slot, light.range);
+        return this;
+    }
+
+    /**
+     * Moves the light or shade at oldPosition to newPosition, whichever map it is in, so callers don't need to know
+     * whether a glow added with {@link #addGlow(Coord, Radiance)} became a light or a shade. Does nothing if there is
+     * neither at oldPosition.
+     * @param oldPosition the Coord to move a glow from
+     * @param newPosition the Coord to move a glow to
+     * @return this for chaining
+     */
+    public LightingHandler moveGlow(Coord oldPosition, Coord newPosition)
+    {
+        return shades.containsKey(oldPosition) ? moveShade(oldPosition, newPosition)
+                : moveLight(oldPosition, newPosition);
+    }
+
+    /**
+     * Removes the light or shade at the given position, whichever map it is in; see
+     * {@link #moveGlow(Coord, Coord)}.
+     * @param position the position to remove a glow from
+     * @return this for chaining
+     */
+    public LightingHandler removeGlow(Coord position)
+    {
+        return shades.remove(position) != null ? this : removeLight(position);
+    }
+
+    /**
+     * Gets {@link #lightIndex}, building it if it hasn't been built yet or if {@link #lights} has been resized directly.
+     * @return the current, non-null light index
+     */
+    private LightGrid lightIndex()
+    {
+        if(lightIndex == null || !lightsPending && lightIndex.size != lights.size())
+            rebuildLightIndex();
+        return lightIndex;
+    }
+
+    /**
+     * Fills {@link #nearbyLights} with the slots in {@link #lightIndex} of every light positioned in {@link #noticeable},
+     * in the same order as in {@link #lights}.
+     * @return the filled IntArray of slots
+     */
+    private IntArray noticeableLights()
+    {
+        if(nearbyLights == null)
+            nearbyLights = new IntArray(32);
+        final LightGrid index = lightIndex();
+        final int minX = noticeable.xBound(true);
+        if(minX < 0)
+        {
+            nearbyLights.clear();
+            return nearbyLights;
+        }
+        index.lightsIn(minX, noticeable.yBound(true),
+                noticeable.xBound(false) + 1, noticeable.yBound(false) + 1, nearbyLights);
+        final int[] items = nearbyLights.items;
+        int kept = 0;
+        for (int i = 0, n = nearbyLights.size; i < n; i++) {
+            if(noticeable.contains(index.position(items[i])))
+                items[kept++] = items[i];
+        }
+        nearbyLights.size = kept;
+        return nearbyLights;
+    }
+
+    /**
+     * Gets the Radiance at the given position, if present, or null if there is no light source there.
+     * @param x the x-position to look up
+     * @param y the y-position to look up
+     * @return the Radiance at the given position, or null if none is present there
+     */
+    public Radiance get(int x, int y)
+    {
+        return get(Coord.get(x, y));
+    }
+    /**
+     * Gets the Radiance at the given position, if present, or null if there is no light source there.
+     * @param position the position to look up
+     * @return the Radiance at the given position, or null if none is present there
+     */
+    public Radiance get(Coord position)
+    {
+        final LightGrid index = lightIndex();
+        final int slot = index.slotOf(position);
+        return slot < 0 ? null : index.light(slot);
+    }
+
+    /**
+     * Edits {@link #colorLighting} by adding in and mixing the colors in {@link #tempColorLighting}, with the strength
+     * of light in tempColorLighting boosted by flare (which can be any finite float greater than -1f, but is usually
+     * from 0f to 1f when increasing strength).
+     * Primarily used internally, but exposed so outside code can do the same things this class can.
+     * @param flare boosts the effective strength of lighting in {@link #tempColorLighting}; usually from 0 to 1
+     */
+    public void mixColoredLighting(float flare)
+    {
+        mixColoredLighting(flare, 0, 0, width, height);
+    }
+
+    /**
+     * Edits {@link #colorLighting} by adding in and mixing the colors in {@link #tempColorLighting}, with the strength
+     * of light in tempColorLighting boosted by flare (which can be any finite float greater than -1f, but is usually
+     * from 0f to 1f when increasing strength). This overload only affects cells between {@code minX} (inclusive) and
+     * {@code maxX} (exclusive), and between {@code minY} (inclusive) and {@code maxY} (exclusive); the bounds are
+     * clamped to the map. If tempColorLighting only has light inside that rectangle, this produces the same result as
+     * {@link #mixColoredLighting(float)} while only visiting the cells a light can actually reach.
+     * Primarily used internally, but exposed so outside code can do the same things this class can.
+     * @param flare boosts the effective strength of lighting in {@link #tempColorLighting}; usually from 0 to 1
+     * @param minX inclusive lower bound on x to mix
+     * @param minY inclusive lower bound on y to mix
+     * @param maxX exclusive upper bound on x to mix
+     * @param maxY exclusive upper bound on y to mix
+     */
+    public void mixColoredLighting(float flare, int minX, int minY, int maxX, int maxY)
+    {
+        flare += 1f;
+        minX = Math.max(minX, 0);
+        minY = Math.max(minY, 0);
+        maxX = Math.min(maxX, width);
+        maxY = Math.min(maxY, height);
+        final byte[] faces = wallFaces();
+        float b0, b1, o0, o1;
+        float[] bs, bc, ts, tc, tsL = null, tsR = null;
+        double[] los, losL = null, losR = null, res;
+        int bi, ti, tiL = 0, tiR = 0, f;
+        for (int x = minX; x < maxX; x++) {
+            if (flatStorage) {
+                bs = lightStrength;
+                bc = lightColor;
+                bi = x * height;
+                // flat columns share one array, so neighbors on x are a column's height away
+                ts = tsL = tsR = tempStrength;
+                tc = tempColor;
+                ti = bi;
+                tiL = bi - height;
+                tiR = bi + height;
+            } else {
+                bs = colorLighting[0][x];
+                bc = colorLighting[1][x];
+                bi = 0;
+                ts = tempColorLighting[0][x];
+                tc = tempColorLighting[1][x];
+                ti = 0;
+                if (x > 0) tsL = tempColorLighting[0][x - 1];
+                if (x < width - 1) tsR = tempColorLighting[0][x + 1];
+            }
+            los = losResult[x];
+            res = resistances[x];
+            if (x > 0) losL = losResult[x - 1];
+            if (x < width - 1) losR = losResult[x + 1];
+            for (int y = minY, fi = x * height + minY; y < maxY; y++, fi++) {
+                if (los[y] > 0) {
+                    if (res[y] >= 1) {
+                        // only open neighbors are in the mask, so each just needs to be in line of sight and lit
+                        if ((f = faces[fi]) == 0 || !(
+                                (f & 0x02) != 0 && los[y - 1] > 0 && ts[ti + y - 1] > 0
+                                || (f & 0x40) != 0 && los[y + 1] > 0 && ts[ti + y + 1] > 0
+                                || (f & 0x08) != 0 && losL[y] > 0 && tsL[tiL + y] > 0
+                                || (f & 0x10) != 0 && losR[y] > 0 && tsR[tiR + y] > 0
+                                || (f & 0x01) != 0 && losL[y - 1] > 0 && tsL[tiL + y - 1] > 0
+                                || (f & 0x04) != 0 && losR[y - 1] > 0 && tsR[tiR + y - 1] > 0
+                                || (f & 0x20) != 0 && losL[y + 1] > 0 && tsL[tiL + y + 1] > 0
+                                || (f & 0x80) != 0 && losR[y + 1] > 0 && tsR[tiR + y + 1] > 0))
+                            continue;
+                        o0 = ts[ti + y];
+                        if(o0 > 0f) o1 = tc[ti + y];
+                        else continue;
+                    } else {
+                        o0 = ts[ti + y];
+                        o1 = tc[ti + y];
+                    }
+                    if (o0 <= 0f || o1 == 0f)
+                        continue;
+                    b0 = bs[bi + y];
+                    b1 = bc[bi + y];
+                    if (b1 == GRAY) {
+                        bc[bi + y] = o1;
+                        bs[bi + y] = Math.min(1.0f, b0 + o0 * flare);
+                    } else {
+                        if (o1 != GRAY) {
+                            float change = (o0 - b0) * 0.5f + 0.5f;
+                            final int s = NumberTools.floatToIntBits(b1), e = NumberTools.floatToIntBits(o1);
+                            if (packedBlending) {
+                                bc[bi + y] = NumberTools.intBitsToFloat(lerpPackedBits(s, e, change) & 0xFEFFFFFF);
+                            } else {
+                                final int ys = (s & 0xFF), cws = (s >>> 8) & 0xFF, cms = (s >>> 16) & 0xFF, sas = s >>> 24 & 0xFE,
+                                        ye = (e & 0xFF), cwe = (e >>> 8) & 0xFF, cme = (e >>> 16) & 0xFF, sae = e >>> 24 & 0xFE;
+                                bc[bi + y] = NumberTools.intBitsToFloat(((int) (ys + change * (ye - ys)) & 0xFF)
+                                        | (((int) (cws + change * (cwe - cws)) & 0xFF) << 8)
+                                        | (((int) (cms + change * (cme - cms)) & 0xFF) << 16)
+                                        | (((int) (sas + change * (sae - sas)) & 0xFE) << 24));
+                            }
+                            bs[bi + y] = Math.min(1.0f, b0 + o0 * change * flare);
+                        } else {
+                            bs[bi + y] = Math.min(1.0f, b0 + o0 * flare);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Edits {@link #colorLighting} by adding in and mixing the given color where the light strength in {@link #tempFOV}
+     * is greater than 0, with that strength boosted by flare (which can be any finite float greater than -1f, but is
+     * usually from 0f to 1f when increasing strength).
+     * Primarily used internally, but exposed so outside code can do the same things this class can.
+     * @param flare boosts the effective strength of lighting in {@link #tempColorLighting}; usually from 0 to 1
+     */
+    public void mixColoredLighting(float flare, float color)
+    {
+        mixColoredLighting(flare, color, 0, 0, width, height);
+    }
+
+    /**
+     * Edits {@link #colorLighting} by adding in and mixing the given color where the light strength in {@link #tempFOV}
+     * is greater than 0, with that strength boosted by flare (which can be any finite float greater than -1f, but is
+     * usually from 0f to 1f when increasing strength). This overload only affects cells between {@code minX}
+     * (inclusive) and {@code maxX} (exclusive), and between {@code minY} (inclusive) and {@code maxY} (exclusive); the
+     * bounds are clamped to the map. Because FOV never lights a cell further than its radius from the light, passing
+     * the square around a light (see {@link #mixLight(int, int, float, float, float)}) produces the same result as
+     * {@link #mixColoredLighting(float, float)} while only visiting the cells that light can actually reach.
+     * Primarily used internally, but exposed so outside code can do the same things this class can.
+     * @param flare boosts the effective strength of lighting in {@link #tempFOV}; usually from 0 to 1
+     * @param color the packed float color of the light being mixed in
+     * @param minX inclusive lower bound on x to mix
+     * @param minY inclusive lower bound on y to mix
+     * @param maxX exclusive upper bound on x to mix
+     * @param maxY exclusive upper bound on y to mix
+     */
+    public void mixColoredLighting(float flare, float color, int minX, int minY, int maxX, int maxY)
+    {
+        mixStrength(flare, color, tempFOV, null, 0, 0, minX, minY, maxX, maxY);
+    }
+
+    /**
+     * The shared implementation of the colored mixing methods that take a single color. This reads light strength from
+     * {@code strength}, where map cell x,y is at {@code strength[x - offsetX][y - offsetY]}, or if strength is null,
+     * from the 16-bit fixed-point {@code levels} of a {@link LightStamp#compact compact} LightStamp at the same
+     * position; a level lights a cell when it isn't 0, which matches the cells that are lit when strength is stored as
+     * doubles. The array used must cover every in-map cell from {@code minX - 1} to {@code maxX} inclusive and likewise
+     * for y, because lit walls depend on the light strength of their neighbors.
+     */
+    private void mixStrength(float flare, final float color, final double[][] strength, final char[][] levels,
+                             final int offsetX, final int offsetY, int minX, int minY, int maxX, int maxY)
+    {
+        flare += 1f;
+        minX = Math.max(minX, 0);
+        minY = Math.max(minY, 0);
+        maxX = Math.min(maxX, width);
+        maxY = Math.min(maxY, height);
+        final boolean packed = packedBlending;
+        final byte[] faces = wallFaces();
+        float o0;
+        float[] bs, bc;
+        double[] los, losL = null, losR = null, res, str = null, strL = null, strR = null;
+        char[] lev = null, levL = null, levR = null;
+        int bi, f;
+        for (int x = minX; x < maxX; x++) {
+            if (flatStorage) {
+                bs = lightStrength;
+                bc = lightColor;
+                bi = x * height;
+            } else {
+                bs = colorLighting[0][x];
+                bc = colorLighting[1][x];
+                bi = 0;
+            }
+            los = losResult[x];
+            res = resistances[x];
+            if (strength != null) {
+                str = strength[x - offsetX];
+                if (x > 0) strL = strength[x - 1 - offsetX];
+                if (x < width - 1) strR = strength[x + 1 - offsetX];
+            } else {
+                lev = levels[x - offsetX];
+                if (x > 0) levL = levels[x - 1 - offsetX];
+                if (x < width - 1) levR = levels[x + 1 - offsetX];
+            }
+            if (x > 0) losL = losResult[x - 1];
+            if (x < width - 1) losR = losResult[x + 1];
+            for (int y = minY, sy = minY - offsetY, fi = x * height + minY; y < maxY; y++, sy++, fi++) {
+                if (los[y] > 0) {
+                    if ((o0 = str != null ? (float) str[sy] : LightStamp.fromLevel(lev[sy])) == 0f)
+                        continue;
+                    if (res[y] >= 1 && (o0 < 0f || (f = faces[fi]) == 0
+                            || !faceLit(f, y, sy, los, losL, losR, str, strL, strR, lev, levL, levR)))
+                        continue;
+                    mixCell(bs, bc, bi + y, o0, color, flare, packed);
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks if a wall at y, with the open neighbors in the {@link #wallFaces} mask f, has an open neighbor that is in
+     * line of sight and lit, so the wall is lit from the side the viewer can see. The columns to the left and right of
+     * the wall's column are the ones ending in L and R; sy is y in the strength or levels columns, and strength is read
+     * as in {@link #lit(double[], char[], int)}. Used by {@link #mixStrength(float, float, double[][], char[][], int,
+     * int, int, int, int, int)} and {@link #mixShade(LightStamp, float, float, int, int, int, int)}.
+     */
+    private static boolean faceLit(final int f, final int y, final int sy, final double[] los, final double[] losL,
+                                   final double[] losR, final double[] str, final double[] strL, final double[] strR,
+                                   final char[] lev, final char[] levL, final char[] levR)
+    {
+        // only open neighbors are in the mask, so each just needs to be in line of sight and lit
+        return (f & 0x02) != 0 && los[y - 1] > 0 && lit(str, lev, sy - 1)
+                || (f & 0x40) != 0 && los[y + 1] > 0 && lit(str, lev, sy + 1)
+                || (f & 0x08) != 0 && losL[y] > 0 && lit(strL, levL, sy)
+                || (f & 0x10) != 0 && losR[y] > 0 && lit(strR, levR, sy)
+                || (f & 0x01) != 0 && losL[y - 1] > 0 && lit(strL, levL, sy - 1)
+                || (f & 0x04) != 0 && losR[y - 1] > 0 && lit(strR, levR, sy - 1)
+                || (f & 0x20) != 0 && losL[y + 1] > 0 && lit(strL, levL, sy + 1)
+                || (f & 0x80) != 0 && losR[y + 1] > 0 && lit(strR, levR, sy + 1);
+    }
+
+    /**
+     * Checks if a cell is lit in a column of {@link #mixStrength(float, float, double[][], char[][], int, int, int,
+     * int, int, int)}, reading strength if it is non-null or levels otherwise.
+     */
+    private static boolean lit(final double[] strength, final char[] levels, final int i)
+    {
+        return strength != null ? strength[i] > 0 : levels[i] != 0;
+    }
+
+    /**
+     * Mixes one light into the cell at index i of bs (strengths) and bc (colors), where the light has strength o0 there
+     * and color o1; the last step of {@link #mixStrength(float, float, double[][], char[][], int, int, int, int, int,
+     * int)}, for cells already known to be lit.
+     */
+    private static void mixCell(final float[] bs, final float[] bc, final int i, final float o0, final float o1,
+                                final float flare, final boolean packed)
+    {
+        final float b0 = bs[i], b1 = bc[i];
+        final float baseStrength = Math.min(1.0f, b0 + o0 * flare);
+        if (b1 == GRAY) {
+            bc[i] = o1;
+            bs[i] = baseStrength;
+        } else {
+            if (o1 != GRAY) {
+                float change = (o0 - b0) * 0.5f + 0.5f,
+                        str0 = Math.min(1.0f, b0 + o0 * change * flare);
+                final int s = NumberTools.floatToIntBits(b1), e = NumberTools.floatToIntBits(o1);
+                bs[i] = str0;
+                if (packed) {
+                    bc[i] = NumberTools.intBitsToFloat(lerpPackedBits(s, e, change) & 0xFFFFFF | 0xFE000000);
+                } else {
+                    final int ys = (s & 0xFF), cws = (s >>> 8) & 0xFF, cms = (s >>> 16) & 0xFF,// sas = s >>> 24 & 0xFE,
+                            ye = (e & 0xFF), cwe = (e >>> 8) & 0xFF, cme = (e >>> 16) & 0xFF;//, sae = e >>> 24 & 0xFE;
+                    bc[i] = NumberTools.intBitsToFloat(((int) (ys + change * (ye - ys)) & 0xFF)
+                            | (((int) (cws + change * (cwe - cws)) & 0xFF) << 8)
+                            | (((int) (cms + change * (cme - cms)) & 0xFF) << 16)
+                            | 0xFE000000);
+//                        | (((int) (str0 * (sas + change * (sae - sas))) & 0xFE) << 24));
+                }
+            } else {
+                bs[i] = baseStrength;
+            }
+        }
+    }
+
+    /**
+     * Calculates the FOV for a single light at lightX,lightY with the given range, storing it in {@link #tempFOV}, and
+     * then mixes that light into {@link #colorLighting} using
+     * {@link #mixColoredLighting(float, float, int, int, int, int)}, restricted to the square of cells within range of
+     * the light. The FOV is cast with {@link BitVision#light(GreasedRegion, int, int, double, Radius, int, int, int,
+     * int, double[][])} into only that square and a one-cell margin, so the rest of tempFOV is left holding whatever it
+     * had before, and the cost depends on the light's area rather than the map's. If {@link #openAreaStamps} is true and nothing within range of the light has any resistance, this
+     * skips the FOV calculation and only writes the falloff for an empty map into the square of tempFOV around the
+     * light, using {@link OpenAreaIndex#falloff(double[], int, int, int, int, float, Radius)}.
+     * Primarily used internally, but exposed so outside code can do the same things this class can.
+     * @param lightX the x-position of the light
+     * @param lightY the y-position of the light
+     * @param range the radius of the light, as it should be for this frame (such as from {@link Radiance#currentRange()})
+     * @param flare boosts the effective strength of the light; usually from 0 to 1
+     * @param color the packed float color of the light
+     */
+    public void mixLight(int lightX, int lightY, float range, float flare, float color)
+    {
+        mixLight(lightX, lightY, range, flare, color, 0, 0, width, height);
+    }
+
+    /**
+     * Like {@link #mixLight(int, int, float, float, float)}, but only changes the lighting of cells within the given
+     * bounds, such as the part of the map that is on-screen. Cells in the bounds get exactly the same lighting as they
+     * would from the unbounded method.
+     * @param lightX the x-position of the light
+     * @param lightY the y-position of the light
+     * @param range the radius of the light, as it should be for this frame (such as from {@link Radiance#currentRange()})
+     * @param flare boosts the effective strength of the light; usually from 0 to 1
+     * @param color the packed float color of the light
+     * @param minX inclusive lower bound on x to mix into
+     * @param minY inclusive lower bound on y to mix into
+     * @param maxX exclusive upper bound on x to mix into
+     * @param maxY exclusive upper bound on y to mix into
+     */
+    public void mixLight(int lightX, int lightY, float range, float flare, float color,
+                         int minX, int minY, int maxX, int maxY)
+    {
+        if(stampCache != null)
+        {
+            final LightStamp stamp = stampCache.acquire(this, lightX, lightY, range);
+            mixStamp(stamp, flare, color, minX, minY, maxX, maxY);
+            if(stats != null)
+                stats.count(LightingStats.CELLS_MIXED, mixedArea(stamp, minX, minY, maxX, maxY));
+            return;
+        }
+        final int reach = (int) Math.ceil(range);
+        minX = Math.max(minX, lightX - reach);
+        minY = Math.max(minY, lightY - reach);
+        maxX = Math.min(maxX, lightX + reach + 1);
+        maxY = Math.min(maxY, lightY + reach + 1);
+        if(stats != null)
+            stats.count(LightingStats.CELLS_MIXED, (long) Math.max(0, Math.min(maxX, width) - Math.max(minX, 0))
+                    * Math.max(0, Math.min(maxY, height) - Math.max(minY, 0)));
+        if(openAreaStamps && openArea().isOpen(lightX - reach, lightY - reach, lightX + reach + 1, lightY + reach + 1))
+        {
+            // nothing can cast a shadow, so write the falloff for an empty map instead of calculating FOV
+            final int startY = Math.max(0, lightY - reach - 1), h = Math.min(height, lightY + reach + 2) - startY;
+            for (int x = Math.max(0, lightX - reach - 1), ex = Math.min(width, lightX + reach + 2); x < ex; x++) {
+                OpenAreaIndex.falloff(tempFOV[x], startY, h, x - lightX, startY - lightY, range, Radius.CIRCLE);
+            }
+            mixColoredLighting(flare, color, minX, minY, maxX, maxY);
+            ++openArea.hits;
+            return;
+        }
+        if(stats != null)
+            stats.count(LightingStats.FOV_COMPUTATIONS, 1L);
+        // only the light's window is cleared and cast into, and mixing never reads past it
+        BitVision.light(blocking(), lightX, lightY, range, Radius.CIRCLE,
+                lightX - reach - 1, lightY - reach - 1, lightX + reach + 2, lightY + reach + 2, tempFOV);
+        mixColoredLighting(flare, color, minX, minY, maxX, maxY);
+    }
+
+    /**
+     * Gets how many cells {@link #mixStamp(LightStamp, float, float, int, int, int, int)} changes with the given stamp
+     * and bounds.
+     */
+    private long mixedArea(LightStamp stamp, int minX, int minY, int maxX, int maxY)
+    {
+        return (long) Math.max(0, Math.min(Math.min(maxX, width), stamp.x + stamp.reach + 1)
+                - Math.max(Math.max(minX, 0), stamp.x - stamp.reach))
+                * Math.max(0, Math.min(Math.min(maxY, height), stamp.y + stamp.reach + 1)
+                - Math.max(Math.max(minY, 0), stamp.y - stamp.reach));
+    }
+
+    /**
+     * Calculates the FOV for a single light at lightX,lightY with the given range, and stores the part of it that the
+     * light can reach (plus a one-cell margin) in {@code into}. This uses {@link #tempFOV} as scratch space, and if
+     * {@link #openAreaStamps} is true and nothing in range has any resistance, it writes the falloff for an empty map
+     * there instead of shadowcasting. The stamp
+     * can be mixed in later with {@link #mixStamp(LightStamp, float, float)}, as long as {@link #resistances} haven't
+     * changed in the meantime. The stamp is {@link LightStamp#compact compact} if {@link #compactStamps} is true.
+     * @param lightX the x-position of the light
+     * @param lightY the y-position of the light
+     * @param range the radius of the light
+     * @param into a LightStamp that will be overwritten
+     * @return into, after modification
+     */
+    public LightStamp stampLight(int lightX, int lightY, float range, LightStamp into)
+    {
+        final int reach = (int) Math.ceil(range);
+        if(openAreaStamps && openArea().isOpen(lightX - reach, lightY - reach, lightX + reach + 1, lightY + reach + 1))
+        {
+            // nothing can cast a shadow, so the FOV is the same as on an empty map
+            ++openArea.hits;
+            return stampFalloff(lightX, lightY, range, into);
+        }
+        final int h = startStamp(lightX, lightY, range, into);
+        if(stats != null)
+            stats.count(LightingStats.FOV_COMPUTATIONS, 1L);
+        BitVision.light(blocking(), lightX, lightY, range, Radius.CIRCLE,
+                into.startX, into.startY, into.endX, into.endY, tempFOV);
+        for (int x = into.startX, i = 0; x < into.endX; x++, i++) {
+            if(into.compact)
+                LightStamp.toLevels(tempFOV[x], into.startY, into.levels[i], h);
+            else
+                System.arraycopy(tempFOV[x], into.startY, into.strength[i], 0, h);
+        }
+        return into;
+    }
+
+    /**
+     * Sets the position, range, and window of a stamp for a light at lightX,lightY and makes room for its window,
+     * returning the height of the window.
+     */
+    private int startStamp(int lightX, int lightY, float range, LightStamp into)
+    {
+        final int reach = (int) Math.ceil(range);
+        into.x = lightX;
+        into.y = lightY;
+        into.range = range;
+        into.reach = reach;
+        into.version = resistanceVersion;
+        into.startX = Math.max(0, lightX - reach - 1);
+        into.startY = Math.max(0, lightY - reach - 1);
+        into.endX = Math.min(width, lightX + reach + 2);
+        into.endY = Math.min(height, lightY + reach + 2);
+        final int h = into.endY - into.startY;
+        into.compact = compactStamps;
+        into.ensureCapacity(into.endX - into.startX, h);
+        return h;
+    }
+
+    /**
+     * Fills a stamp with the falloff a light has on an empty map, ignoring resistances, without shadowcasting.
+     */
+    private LightStamp stampFalloff(int lightX, int lightY, float range, LightStamp into)
+    {
+        final int h = startStamp(lightX, lightY, range, into), dy = into.startY - lightY;
+        for (int x = into.startX, i = 0; x < into.endX; x++, i++) {
+            if(into.compact)
+                LightStamp.toLevels(OpenAreaIndex.falloff(tempFOV[x], into.startY, h, x - lightX, dy, range,
+                        Radius.CIRCLE), into.startY, into.levels[i], h);
+            else
+                OpenAreaIndex.falloff(into.strength[i], 0, h, x - lightX, dy, range, Radius.CIRCLE);
+        }
+        return into;
+    }
+
+    /**
+     * Gets the stamp for the shade at the given index in {@link #shades}, reusing the one from the last update if the
+     * shade hasn't changed. A shade with nothing but open space within its reach gets the falloff for an empty map
+     * instead of shadowcasting, even if {@link #openAreaStamps} is false; any other shade shadowcasts like a light.
+     */
+    private LightStamp shadeStamp(int index, int x, int y, float range)
+    {
+        if(shadeStamps == null || shadeStamps.length <= index)
+            shadeStamps = shadeStamps == null ? new LightStamp[Math.max(16, index + 1)]
+                    : Arrays.copyOf(shadeStamps, Math.max(index + 1, shadeStamps.length << 1));
+        LightStamp stamp = shadeStamps[index];
+        if(stamp == null)
+            shadeStamps[index] = stamp = new LightStamp();
+        else if(stamp.x == x && stamp.y == y && stamp.range == range && stamp.version == resistanceVersion
+                && stamp.compact == compactStamps)
+            return stamp;
+        final int reach = (int) Math.ceil(range);
+        if(openArea().isOpen(x - reach, y - reach, x + reach + 1, y + reach + 1))
+        {
+            ++openArea.hits;
+            return stampFalloff(x, y, range, stamp);
+        }
+        return stampLight(x, y, range, stamp);
+    }
+
+    /**
+     * Darkens the lighting with a shade whose stamp was made by {@link #shadeStamp(int, int, int, float)}, only in cells
+     * within the given bounds and in line of sight; see {@link #shades}.
+     */
+    private void mixShade(LightStamp stamp, float flare, float color, int minX, int minY, int maxX, int maxY)
+    {
+        minX = Math.max(Math.max(minX, stamp.x - stamp.reach), 0);
+        minY = Math.max(Math.max(minY, stamp.y - stamp.reach), 0);
+        maxX = Math.min(Math.min(maxX, stamp.x + stamp.reach + 1), width);
+        maxY = Math.min(Math.min(maxY, stamp.y + stamp.reach + 1), height);
+        flare += 1f;
+        final byte[] faces = wallFaces();
+        final double[][] strength = stamp.compact ? null : stamp.strength;
+        final char[][] levels = stamp.levels;
+        float[] bs, bc;
+        double[] los, losL = null, losR = null, res, str = null, strL = null, strR = null;
+        char[] lev = null, levL = null, levR = null;
+        int bi, f;
+        for (int x = minX, sx = minX - stamp.startX; x < maxX; x++, sx++) {
+            if (flatStorage) {
+                bs = lightStrength;
+                bc = lightColor;
+                bi = x * height;
+            } else {
+                bs = colorLighting[0][x];
+                bc = colorLighting[1][x];
+                bi = 0;
+            }
+            los = losResult[x];
+            res = resistances[x];
+            if (strength != null) {
+                str = strength[sx];
+                if (x > 0) strL = strength[sx - 1];
+                if (x < width - 1) strR = strength[sx + 1];
+            } else {
+                lev = levels[sx];
+                if (x > 0) levL = levels[sx - 1];
+                if (x < width - 1) levR = levels[sx + 1];
+            }
+            if (x > 0) losL = losResult[x - 1];
+            if (x < width - 1) losR = losResult[x + 1];
+            for (int y = minY, sy = minY - stamp.startY, fi = x * height + minY; y < maxY; y++, sy++, fi++) {
+                // like a light, a shade only reaches a wall through an open neighbor in line of sight
+                if (los[y] > 0 && lit(str, lev, sy) && (res[y] < 1
+                        || (f = faces[fi]) != 0 && faceLit(f, y, sy, los, losL, losR, str, strL, strR, lev, levL, levR)))
+                    shadeCell(bs, bc, bi + y, str != null ? (float) str[sy] : LightStamp.fromLevel(lev[sy]), color,
+                            flare);
+            }
+        }
+    }
+
+    /**
+     * Darkens the cell at index i of bs (strengths) and bc (colors) with a shade of strength o0 and the given color.
+     */
+    private static void shadeCell(final float[] bs, final float[] bc, final int i, final float o0, final float color,
+                                  final float flare)
+    {
+        final float b0 = bs[i], b1 = bc[i];
+        if (b1 == GRAY) {
+            bc[i] = color;
+            bs[i] = Math.min(1f, b0 + o0 * flare);
+        } else {
+            // only the lightness channel, in the low byte, moves toward the shade's by the same amount a light lerps
+            final float change = (o0 - b0) * 0.5f + 0.5f;
+            final int bits = NumberTools.floatToIntBits(b1), ys = bits & 0xFF,
+                    ye = NumberTools.floatToIntBits(color) & 0xFF;
+            if (ye < ys)
+                bc[i] = NumberTools.intBitsToFloat(bits & 0xFFFFFF00 | (int) (ys + change * (ye - ys)));
+        }
+    }
+
+    /**
+     * Mixes a light that was previously calculated with {@link #stampLight(int, int, float, LightStamp)} into
+     * {@link #colorLighting}, without recalculating its FOV. This gives the same result as
+     * {@link #mixLight(int, int, float, float, float)} with the same light, as long as the stamp is current.
+     * @param stamp a LightStamp holding the FOV of the light to mix
+     * @param flare boosts the effective strength of the light; usually from 0 to 1
+     * @param color the packed float color of the light
+     */
+    public void mixStamp(LightStamp stamp, float flare, float color)
+    {
+        mixStamp(stamp, flare, color, 0, 0, width, height);
+    }
+
+    /**
+     * Like {@link #mixStamp(LightStamp, float, float)}, but only changes the lighting of cells within the given bounds.
+     * @param stamp a LightStamp holding the FOV of the light to mix
+     * @param flare boosts the effective strength of the light; usually from 0 to 1
+     * @param color the packed float color of the light
+     * @param minX inclusive lower bound on x to mix into
+     * @param minY inclusive lower bound on y to mix into
+     * @param maxX exclusive upper bound on x to mix into
+     * @param maxY exclusive upper bound on y to mix into
+     */
+    public void mixStamp(LightStamp stamp, float flare, float color, int minX, int minY, int maxX, int maxY)
+    {
+        minX = Math.max(minX, stamp.x - stamp.reach);
+        minY = Math.max(minY, stamp.y - stamp.reach);
+        maxX = Math.min(maxX, stamp.x + stamp.reach + 1);
+        maxY = Math.min(maxY, stamp.y + stamp.reach + 1);
+        if(minX >= maxX || minY >= maxY)
+            return;
+        mixStrength(flare, color, stamp.compact ? null : stamp.strength, stamp.levels, stamp.startX, stamp.startY,
+                minX, minY, maxX, maxY);
+    }
+
+    /**
+     * Makes this cache the FOV of lights between calls to {@link #update()} and similar methods, using a
+     * {@link LightStampCache} with the given capacity, or stops caching if capacity is 0 or less. Lights that haven't
+     * moved and whose radius rounds to the same value (see {@link LightStampCache#precision}) only need to be mixed in,
+     * without recalculating FOV, which makes unchanging lights much cheaper. Because radii are rounded, flickering
+     * lights can look very slightly different than they do without a cache. If you change {@link #resistances}
+     * yourself, increment {@link #resistanceVersion} so cached FOV isn't used with the old resistances.
+     * @param capacity how many lights' FOV to cache; should be more than the number of lights usually visible
+     * @return this for chaining
+     */
+    public LightingHandler useStampCache(int capacity)
+    {
+        stampCache = capacity > 0 ? new LightStampCache(capacity) : null;
+        return this;
+    }
+
+    /**
+     * Turns {@link #compactStamps} on or off, forgetting any cached stamps and the previous update's tiles so every
+     * stamp from now on uses the new storage.
+     * @param compact true to store light strengths in stamps as 16-bit levels, false to store them as doubles
+     * @return this for chaining
+     */
+    public LightingHandler useCompactStamps(boolean compact)
+    {
+        compactStamps = compact;
+        if(stampCache != null)
+            stampCache.clear();
+        coherentFrame = false;
+        return this;
+    }
+
+    /**
+     * Makes this mix lights tile by tile using the given TileRunner, which may mix tiles in parallel, or mixes each light
+     * over the whole map in turn if runner is null. See {@link #tileRunner}.
+     * @param runner a TileRunner, such as {@link TileRunner#SERIAL} or a multi-threaded one; may be null
+     * @return this for chaining
+     */
+    public LightingHandler useTileRunner(TileRunner runner)
+    {
+        tileRunner = runner;
+        return this;
+    }
+
+    /**
+     * Turns {@link #temporalCoherence} on or off; either way, the next update mixes every tile, since this forgets
+     * what the previous update mixed.
+     * @param coherent true to reuse lighting in tiles where no light changed, false to mix every light each update
+     * @return this for chaining
+     */
+    public LightingHandler useTemporalCoherence(boolean coherent)
+    {
+        temporalCoherence = coherent;
+        coherentFrame = false;
+        return this;
+    }
+
+    /**
+     * Makes this count what each calculateFOV(), update(), updateAll(), and draw() call does in the given
+     * LightingStats, or stops counting if stats is null. See {@link #stats}.
+     * @param stats a LightingStats to record into; may be null
+     * @return this for chaining
+     */
+    public LightingHandler useStats(LightingStats stats)
+    {
+        this.stats = stats;
+        return this;
+    }
+
+    /**
+     * Makes this take its lights from the given RadianceBank instead of from {@link #lights}, or go back to using lights
+     * if bank is null. See {@link #bank}. You can pass {@code new RadianceBank(lights)} to move the current lights into
+     * a bank while keeping the order they are mixed in.
+     * @param bank a RadianceBank holding every light to mix; may be null
+     * @return this for chaining
+     */
+    public LightingHandler useBank(RadianceBank bank)
+    {
+        this.bank = bank;
+        heldRanges = null;
+        heldBases = null;
+        heldOrders = null;
+        return this;
+    }
+
+    /**
+     * Gets the time in milliseconds from {@link #clock}, or from {@link TimeUtils#millis()} if clock is null.
+     */
+    private long now()
     {
-        return addLight(Coord.get(x, y), light);
+        return clock == null ? TimeUtils.millis() : clock.millis();
     }
+
     /**
-     * Adds a Radiance as a light source at the given position. Overwrites any existing Radiance at the same position.
-     * @param position the position to add the Radiance at
-     * @param light a Radiance object that can have a changing radius, color, and various other effects on lighting
-     * @return this for chaining
+     * Evaluates the current range of every light in {@link #lights}, in order, reading {@link #clock} only once so every
+     * light uses the same time. If {@link #bank} is non-null, this instead evaluates every index of the bank, as
+     * {@link RadianceBank#currentRanges(long, float[])} does.
+     * @param into a float array to store ranges in, with the same indices as lights (or as the bank); may be null or
+     *             too small, in which case a new array is returned
+     * @return into, or a new array if into couldn't hold every range
      */
-    public LightingHandler addLight(Coord position, Radiance light)
+    public float[] currentRanges(float[] into)
     {
-        lights.put(position, light);
-        return this;
+        if(bank != null)
+            return bank.currentRanges(now(), into);
+        syncLights();
+        final int sz = lights.size();
+        if(into == null || into.length < sz)
+            into = new float[sz];
+        final long time = now();
+        for (int i = 0; i < sz; i++) {
+            into[i] = lights.getAt(i).currentRange(time);
+        }
+        return into;
     }
 
     /**
-     * Removes a Radiance as a light source from the given position, if any is present.
-     * @param x the x-position to remove the Radiance from
-     * @param y the y-position to remove the Radiance from
-     * @return this for chaining
+     * Mixes a light right away if {@link #tileRunner} is null, or otherwise calculates its FOV now and saves it to be
+     * mixed by {@link #flushLights()}. Lights are mixed in the order they are queued either way.
      */
-    public LightingHandler removeLight(int x, int y)
+    private void queueLight(int lightX, int lightY, float range, float flare, float color)
     {
-        return removeLight(Coord.get(x, y));
+        if(tileRunner == null && !startTiles && drawEditing == null)
+        {
+            mixLight(lightX, lightY, range, flare, color, clipMinX, clipMinY, clipMaxX, clipMaxY);
+            return;
+        }
+        growQueue();
+        final LightStamp stamp, own = ownStamps[queuedCount];
+        // with temporal coherence, the same light usually lands in the same queue position with the same radius
+        if(startTiles && own != null && own.x == lightX && own.y == lightY && own.version == resistanceVersion
+                && own.compact == compactStamps
+                && own.range == (stampCache == null ? range : stampCache.quantize(range)))
+            stamp = own;
+        // a stamp from the cache may be reused once the cache fills, so only rely on the cache while it has room
+        else if(stampCache != null && queuedCount < stampCache.capacity)
+            stamp = stampCache.acquire(this, lightX, lightY, range);
+        else
+        {
+            if(ownStamps[queuedCount] == null)
+                ownStamps[queuedCount] = new LightStamp();
+            stamp = stampLight(lightX, lightY, stampCache == null ? range : stampCache.quantize(range),
+                    ownStamps[queuedCount]);
+        }
+        queuedStamps[queuedCount] = stamp;
+        queuedFlares[queuedCount] = flare;
+        queuedColors[queuedCount] = color;
+        queuedShades[queuedCount] = false;
+        ++queuedCount;
     }
+
     /**
-     * Removes a Radiance as a light source from the given position, if any is present.
-     * @param position the position to remove the Radiance from
-     * @return this for chaining
+     * Makes sure the queue has room for one more light or shade.
      */
-    public LightingHandler removeLight(Coord position)
+    private void growQueue()
     {
-        lights.remove(position);
-        return this;
+        if(queuedStamps == null)
+        {
+            queuedStamps = new LightStamp[16];
+            ownStamps = new LightStamp[16];
+            queuedFlares = new float[16];
+            queuedColors = new float[16];
+            queuedShades = new boolean[16];
+        }
+        else if(queuedCount == queuedStamps.length)
+        {
+            queuedStamps = Arrays.copyOf(queuedStamps, queuedCount << 1);
+            ownStamps = Arrays.copyOf(ownStamps, queuedCount << 1);
+            queuedFlares = Arrays.copyOf(queuedFlares, queuedCount << 1);
+            queuedColors = Arrays.copyOf(queuedColors, queuedCount << 1);
+            queuedShades = Arrays.copyOf(queuedShades, queuedCount << 1);
+        }
     }
+
     /**
-     * If a Radiance is present at oldX,oldY, this will move it to newX,newY and overwrite any existing Radiance at
-     * newX,newY. If no Radiance is present at oldX,oldY, this does nothing.
-     * @param oldX the x-position to move a Radiance from
-     * @param oldY the y-position to move a Radiance from
-     * @param newX the x-position to move a Radiance to
-     * @param newY the y-position to move a Radiance to
-     * @return this for chaining
+     * Queues every shade in {@link #shades} that reaches the clipped area, after the lights, so shades darken the
+     * lighting the lights made; with cull true, only shades positioned in {@link #noticeable} are queued. Like
+     * {@link #queueLight(int, int, float, float, float)}, this mixes right away if there is no {@link #tileRunner}.
      */
-    public LightingHandler moveLight(int oldX, int oldY, int newX, int newY)
+    private void queueShades(boolean cull)
     {
-        return moveLight(Coord.get(oldX, oldY), Coord.get(newX, newY));
+        Coord pos;
+        Radiance shade;
+        LightStamp stamp;
+        for (int i = 0, sz = shades.size(); i < sz; i++) {
+            pos = shades.keyAt(i);
+            shade = shades.getAt(i);
+            final int reach = (int) Math.ceil(shade.range);
+            if(cull && !noticeable.contains(pos) || pos.x + reach < clipMinX || pos.x - reach >= clipMaxX
+                    || pos.y + reach < clipMinY || pos.y - reach >= clipMaxY)
+                continue;
+            stamp = shadeStamp(i, pos.x, pos.y, shade.range);
+            if(tileRunner == null && !startTiles && drawEditing == null)
+            {
+                mixShade(stamp, shade.flare, shade.color, clipMinX, clipMinY, clipMaxX, clipMaxY);
+                if(stats != null)
+                    stats.count(LightingStats.CELLS_MIXED, mixedArea(stamp, clipMinX, clipMinY, clipMaxX, clipMaxY));
+                continue;
+            }
+            growQueue();
+            queuedStamps[queuedCount] = stamp;
+            queuedFlares[queuedCount] = shade.flare;
+            queuedColors[queuedCount] = shade.color;
+            queuedShades[queuedCount] = true;
+            ++queuedCount;
+        }
     }
+
     /**
-     * If a Radiance is present at oldPosition, this will move it to newPosition and overwrite any existing Radiance at
-     * newPosition. If no Radiance is present at oldPosition, this does nothing.
-     * @param oldPosition the Coord to move a Radiance from
-     * @param newPosition the Coord to move a Radiance to
-     * @return this for chaining
+     * Mixes every light queued by {@link #queueLight(int, int, float, float, float)}, using {@link #tileRunner}.
      */
-    public LightingHandler moveLight(Coord oldPosition, Coord newPosition)
+    private void flushLights()
     {
-        Radiance old = lights.get(oldPosition);
-        if(old == null) return this;
-        lights.alter(oldPosition, newPosition);
-        return this;
+        // with temporal coherence or while drawing, each tile starts itself, so tiles must be visited even without lights
+        if(queuedCount == 0 && !startTiles && drawEditing == null)
+            return;
+        final int size = Math.max(1, tileSize);
+        tilesWide = (clipMaxX - clipMinX + size - 1) / size;
+        final int tileCount = tilesWide * ((clipMaxY - clipMinY + size - 1) / size);
+        if(startTiles)
+        {
+            if(tileReused == null || tileReused.length < tileCount)
+                tileReused = new boolean[tileCount];
+            else
+                Arrays.fill(tileReused, 0, tileCount, false);
+        }
+        // tiles may be mixed on several threads, so any rebuild of the wall faces has to happen before they start
+        wallFaces();
+        if(stats != null && (tileCells == null || tileCells.length < tileCount))
+            tileCells = new long[Math.max(16, tileCount)];
+        (tileRunner == null ? TileRunner.SERIAL : tileRunner).run(this, tileCount);
+        if(stats != null)
+        {
+            // each tile counted its own cells, so no two threads ever added to the same counter
+            long mixed = 0L;
+            for (int i = 0; i < tileCount; i++) {
+                mixed += tileCells[i];
+            }
+            stats.count(LightingStats.CELLS_MIXED, mixed);
+        }
+        if(startTiles)
+        {
+            reusedTiles = 0;
+            for (int i = 0; i < tileCount; i++) {
+                if(tileReused[i])
+                    ++reusedTiles;
+            }
+            rememberFrame();
+            startTiles = false;
+        }
+        queuedCount = 0;
     }
 
     /**
-     * Gets the Radiance at the given position, if present, or null if there is no light source there.
-     * @param x the x-position to look up
-     * @param y the y-position to look up
-     * @return the Radiance at the given position, or null if none is present there
+     * Gets ready for an update with {@link #temporalCoherence}: bakes the static lights if needed, and forgets the
+     * previous frame if anything that every tile depends on has changed since then. Tiles start their own lighting in
+     * {@link #mixTile(int)}, so the lighting isn't erased here.
      */
-    public Radiance get(int x, int y)
+    private void startCoherentFrame()
     {
-        return lights.get(Coord.get(x, y));
+        if(!staticLights.isEmpty() && (!baked || bakedVersion != resistanceVersion))
+            bakeStaticLights();
+        if(lastVersion != resistanceVersion || lastPacked != packedBlending || lastTileSize != tileSize
+                || lastMinX != clipMinX || lastMinY != clipMinY || lastMaxX != clipMaxX || lastMaxY != clipMaxY)
+            coherentFrame = false;
+        startTiles = true;
     }
+
     /**
-     * Gets the Radiance at the given position, if present, or null if there is no light source there.
-     * @param position the position to look up
-     * @return the Radiance at the given position, or null if none is present there
+     * Records the lights queued this frame, so the next coherent update can tell which tiles they reach are unchanged.
      */
-    public Radiance get(Coord position)
+    private void rememberFrame()
     {
-        return lights.get(position);
+        if(lastX == null || lastX.length < queuedCount)
+        {
+            final int cap = Math.max(16, queuedStamps == null ? 0 : queuedStamps.length);
+            lastX = new int[cap];
+            lastY = new int[cap];
+            lastReach = new int[cap];
+            lastRanges = new float[cap];
+            lastFlares = new float[cap];
+            lastColors = new float[cap];
+            lastShades = new boolean[cap];
+        }
+        LightStamp stamp;
+        for (int i = 0; i < queuedCount; i++) {
+            stamp = queuedStamps[i];
+            lastX[i] = stamp.x;
+            lastY[i] = stamp.y;
+            lastReach[i] = stamp.reach;
+            lastRanges[i] = stamp.range;
+            lastFlares[i] = queuedFlares[i];
+            lastColors[i] = queuedColors[i];
+            lastShades[i] = queuedShades[i];
+        }
+        lastCount = queuedCount;
+        lastVersion = resistanceVersion;
+        lastPacked = packedBlending;
+        lastTileSize = tileSize;
+        lastMinX = clipMinX;
+        lastMinY = clipMinY;
+        lastMaxX = clipMaxX;
+        lastMaxY = clipMaxY;
+        coherentFrame = true;
     }
 
     /**
-     * Edits {@link #colorLighting} by adding in and mixing the colors in {@link #tempColorLighting}, with the strength
-     * of light in tempColorLighting boosted by flare (which can be any finite float greater than -1f, but is usually
-     * from 0f to 1f when increasing strength).
-     * Primarily used internally, but exposed so outside code can do the same things this class can.
-     * @param flare boosts the effective strength of lighting in {@link #tempColorLighting}; usually from 0 to 1
+     * Checks if the lights queued this frame that reach the given tile are the same, in the same order and with the same
+     * radius, color, and flare, as the lights that reached it in the previous frame.
      */
-    public void mixColoredLighting(float flare)
+    private boolean tileUnchanged(int minX, int minY, int maxX, int maxY)
     {
-        float[][][] basis = colorLighting, other = tempColorLighting;
-        flare += 1f;
-        float b0, b1, o0, o1;
-        for (int x = 0; x < width; x++) {
-            for (int y = 0; y < height; y++) {
-                if (losResult[x][y] > 0) {
-                    if (resistances[x][y] >= 1) {
-                        o0 = 0f;
-                        if (y > 0) {
-                            if ((losResult[x][y - 1] > 0 && other[0][x][y - 1] > 0 && resistances[x][y - 1] < 1)
-                                    || (x > 0 && losResult[x - 1][y - 1] > 0 && other[0][x - 1][y - 1] > 0 && resistances[x - 1][y - 1] < 1)
-                                    || (x < width - 1 && losResult[x + 1][y - 1] > 0 && other[0][x + 1][y - 1] > 0 && resistances[x + 1][y - 1] < 1)) {
-                                o0 = other[0][x][y];
-                            }
-                        }
-                        if (y < height - 1) {
-                            if ((losResult[x][y + 1] > 0 && other[0][x][y + 1] > 0 && resistances[x][y + 1] < 1)
-                                    || (x > 0 && losResult[x - 1][y + 1] > 0 && other[0][x - 1][y + 1] > 0 && resistances[x - 1][y + 1] < 1)
-                                    || (x < width - 1 && losResult[x + 1][y + 1] > 0 && other[0][x + 1][y + 1] > 0 && resistances[x + 1][y + 1] < 1)) {
-                                o0 = other[0][x][y];
-                            }
-                        }
-                        if (x > 0 && losResult[x - 1][y] > 0 && other[0][x - 1][y] > 0 && resistances[x - 1][y] < 1) {
-                            o0 = other[0][x][y];
-                        }
-                        if (x < width - 1 && losResult[x + 1][y] > 0 && other[0][x + 1][y] > 0 && resistances[x + 1][y] < 1) {
-                            o0 = other[0][x][y];
-                        }
-                        if(o0 > 0f) o1 = other[1][x][y];
-                        else continue;
-                    } else {
-                        o0 = other[0][x][y];
-                        o1 = other[1][x][y];
-                    }
-                    if (o0 <= 0f || o1 == 0f)
-                        continue;
-                    b0 = basis[0][x][y];
-                    b1 = basis[1][x][y];
-                    if (b1 == GRAY) {
-                        basis[1][x][y] = o1;
-                        basis[0][x][y] = Math.min(1.0f, b0 + o0 * flare);
-                    } else {
-                        if (o1 != GRAY) {
-                            float change = (o0 - b0) * 0.5f + 0.5f;
-                            final int s = NumberTools.floatToIntBits(b1), e = NumberTools.floatToIntBits(o1),
-                                    ys = (s & 0xFF), cws = (s >>> 8) & 0xFF, cms = (s >>> 16) & 0xFF, sas = s >>> 24 & 0xFE,
-                                    ye = (e & 0xFF), cwe = (e >>> 8) & 0xFF, cme = (e >>> 16) & 0xFF, sae = e >>> 24 & 0xFE;
-                            basis[1][x][y] = NumberTools.intBitsToFloat(((int) (ys + change * (ye - ys)) & 0xFF)
-                                    | (((int) (cws + change * (cwe - cws)) & 0xFF) << 8)
-                                    | (((int) (cms + change * (cme - cms)) & 0xFF) << 16)
-                                    | (((int) (sas + change * (sae - sas)) & 0xFE) << 24));
-                            basis[0][x][y] = Math.min(1.0f, b0 + o0 * change * flare);
-                        } else {
-                            basis[0][x][y] = Math.min(1.0f, b0 + o0 * flare);
-                        }
-                    }
-                }
-            }
+        int p = 0;
+        LightStamp stamp;
+        for (int i = 0; i < queuedCount; i++) {
+            stamp = queuedStamps[i];
+            if(stamp.x - stamp.reach >= maxX || stamp.x + stamp.reach < minX
+                    || stamp.y - stamp.reach >= maxY || stamp.y + stamp.reach < minY)
+                continue;
+            while (p < lastCount && (lastX[p] - lastReach[p] >= maxX || lastX[p] + lastReach[p] < minX
+                    || lastY[p] - lastReach[p] >= maxY || lastY[p] + lastReach[p] < minY))
+                ++p;
+            if(p == lastCount || lastX[p] != stamp.x || lastY[p] != stamp.y || lastRanges[p] != stamp.range
+                    || lastShades[p] != queuedShades[i] || lastFlares[p] != queuedFlares[i]
+                    || NumberTools.floatToIntBits(lastColors[p]) != NumberTools.floatToIntBits(queuedColors[i]))
+                return false;
+            ++p;
+        }
+        for (; p < lastCount; p++) {
+            if(lastX[p] - lastReach[p] < maxX && lastX[p] + lastReach[p] >= minX
+                    && lastY[p] - lastReach[p] < maxY && lastY[p] + lastReach[p] >= minY)
+                return false;
         }
+        return true;
     }
 
     /**
-     * Edits {@link #colorLighting} by adding in and mixing the given color where the light strength in {@link #tempFOV}
-     * is greater than 0, with that strength boosted by flare (which can be any finite float greater than -1f, but is
-     * usually from 0f to 1f when increasing strength).
-     * Primarily used internally, but exposed so outside code can do the same things this class can.
-     * @param flare boosts the effective strength of lighting in {@link #tempColorLighting}; usually from 0 to 1
+     * Mixes every light queued during the current update into one tile of the map, in the order they were queued. This
+     * is only meant to be called by a {@link TileRunner} while this is updating; it only writes to the lighting in the
+     * given tile, so different tiles can be mixed at the same time on different threads.
+     * @param tile which tile to mix, from 0 to one less than the tileCount given to the TileRunner
      */
-    public void mixColoredLighting(float flare, float color)
+    public void mixTile(int tile)
     {
-        final float[][][] basis = colorLighting;
-        final double[][] otherStrength = tempFOV;
-        flare += 1f;
-        float b0, b1, o0, o1;
-        for (int x = 0; x < width; x++) {
-            for (int y = 0; y < height; y++) {
-                if (losResult[x][y] > 0) {
-                    if (resistances[x][y] >= 1) {
-                        o0 = 0f;
-                        if (y > 0) {
-                            if ((losResult[x][y - 1] > 0 && otherStrength[x][y - 1] > 0 && resistances[x][y - 1] < 1)
-                                    || (x > 0 && losResult[x - 1][y - 1] > 0 && otherStrength[x - 1][y - 1] > 0 && resistances[x - 1][y - 1] < 1)
-                                    || (x < width - 1 && losResult[x + 1][y - 1] > 0 && otherStrength[x + 1][y - 1] > 0 && resistances[x + 1][y - 1] < 1)) {
-                                o0 = (float) otherStrength[x][y];
-                            }
-                        }
-                        if (y < height - 1) {
-                            if ((losResult[x][y + 1] > 0 && otherStrength[x][y + 1] > 0 && resistances[x][y + 1] < 1)
-                                    || (x > 0 && losResult[x - 1][y + 1] > 0 && otherStrength[x - 1][y + 1] > 0 && resistances[x - 1][y + 1] < 1)
-                                    || (x < width - 1 && losResult[x + 1][y + 1] > 0 && otherStrength[x + 1][y + 1] > 0 && resistances[x + 1][y + 1] < 1)) {
-                                o0 = (float) otherStrength[x][y];
-                            }
-                        }
-                        if (x > 0 && losResult[x - 1][y] > 0 && otherStrength[x - 1][y] > 0 && resistances[x - 1][y] < 1) {
-                            o0 = (float) otherStrength[x][y];
-                        }
-                        if (x < width - 1 && losResult[x + 1][y] > 0 && otherStrength[x + 1][y] > 0 && resistances[x + 1][y] < 1) {
-                            o0 = (float) otherStrength[x][y];
-                        }
-                        if(o0 > 0f) o1 = color;
-                        else continue;
-                    } else {
-                        if((o0 = (float) otherStrength[x][y]) != 0) o1 = color;
-                        else continue;
-                    }
-                    b0 = basis[0][x][y];
-                    b1 = basis[1][x][y];
-                    final float baseStrength = Math.min(1.0f, b0 + o0 * flare);
-                    if (b1 == GRAY) {
-                        basis[1][x][y] = o1;
-                        basis[0][x][y] = baseStrength;
-                    } else {
-                        if (o1 != GRAY) {
-                            float change = (o0 - b0) * 0.5f + 0.5f,
-                                    str = Math.min(1.0f, b0 + o0 * change * flare);
-                            final int s = NumberTools.floatToIntBits(b1), e = NumberTools.floatToIntBits(o1),
-                                    ys = (s & 0xFF), cws = (s >>> 8) & 0xFF, cms = (s >>> 16) & 0xFF,// sas = s >>> 24 & 0xFE,
-                                    ye = (e & 0xFF), cwe = (e >>> 8) & 0xFF, cme = (e >>> 16) & 0xFF;//, sae = e >>> 24 & 0xFE;
-                            basis[0][x][y] = str;
-                            basis[1][x][y] = NumberTools.intBitsToFloat(((int) (ys + change * (ye - ys)) & 0xFF)
-                                    | (((int) (cws + change * (cwe - cws)) & 0xFF) << 8)
-                                    | (((int) (cms + change * (cme - cms)) & 0xFF) << 16)
-                                    | 0xFE000000);
-//                                    | (((int) (str * (sas + change * (sae - sas))) & 0xFE) << 24));
-                        } else {
-                            basis[0][x][y] = baseStrength;
-                        }
-                    }
-                }
+        final int size = Math.max(1, tileSize),
+                tileX = clipMinX + (tile % tilesWide) * size, tileY = clipMinY + (tile / tilesWide) * size,
+                tileEndX = Math.min(clipMaxX, tileX + size), tileEndY = Math.min(clipMaxY, tileY + size);
+        final boolean counting = stats != null && tileCells != null && tile < tileCells.length;
+        if(counting)
+            tileCells[tile] = 0L;
+        if(startTiles)
+        {
+            if(coherentFrame && tileUnchanged(tileX, tileY, tileEndX, tileEndY))
+            {
+                tileReused[tile] = true;
+                if(drawEditing != null)
+                    drawCells(drawEditing, drawStable, drawLightness, tileX, tileY, tileEndX, tileEndY);
+                return;
             }
         }
+        if(startTiles || drawEditing != null)
+        {
+            if(staticLights.isEmpty())
+                eraseLighting(tileX, tileY, tileEndX, tileEndY);
+            else
+                transferBaked(false, tileX, tileY, tileEndX, tileEndY);
+        }
+        for (int i = 0; i < queuedCount; i++) {
+            if(queuedShades[i])
+                mixShade(queuedStamps[i], queuedFlares[i], queuedColors[i], tileX, tileY, tileEndX, tileEndY);
+            else
+                mixStamp(queuedStamps[i], queuedFlares[i], queuedColors[i], tileX, tileY, tileEndX, tileEndY);
+            if(counting)
+                tileCells[tile] += mixedArea(queuedStamps[i], tileX, tileY, tileEndX, tileEndY);
+        }
+        // the tile's lighting is still in cache here, so drawing it now avoids a second pass over the whole clip
+        if(drawEditing != null)
+            drawCells(drawEditing, drawStable, drawLightness, tileX, tileY, tileEndX, tileEndY);
     }
 
     /**
@@ -419,18 +2368,208 @@ public class LightingHandler implements Serializable {
      */
     public void update()
     {
-        Radiance radiance;
-        eraseColoredLighting(colorLighting);
-        final int sz = lights.size();
+        update(0, 0, width, height);
+    }
+
+    /**
+     * Like {@link #update()}, but only changes lighting within the given bounds, usually the part of the map that is
+     * on-screen, so the cost depends on the size of that area rather than the size of the map. Lights outside the
+     * bounds are still mixed if their current radius reaches into the bounds, so lighting inside the bounds is the same
+     * as {@link #update()} would produce; lighting outside the bounds is left as it was. This is usually followed by
+     * {@link #draw(float[][], float[][], int, int, int, int)} with the same bounds.
+     * @param minX inclusive lower bound on x to update
+     * @param minY inclusive lower bound on y to update
+     * @param maxX exclusive upper bound on x to update
+     * @param maxY exclusive upper bound on y to update
+     */
+    public void update(int minX, int minY, int maxX, int maxY)
+    {
+        if(stats != null)
+            stats.begin(LightingStats.UPDATE);
+        try {
+            clip(minX, minY, maxX, maxY);
+            if(temporalCoherence)
+                startCoherentFrame();
+            else if(drawEditing == null)
+                startLighting(clipMinX, clipMinY, clipMaxX, clipMaxY);
+            // when drawing, each tile starts its own lighting in mixTile(), so only the baking happens here
+            else if(!staticLights.isEmpty() && (!baked || bakedVersion != resistanceVersion))
+                bakeStaticLights();
+            final int sz = gatherLights(now());
+            final boolean budgeted = scheduleLights(sz);
+            final int steps = Math.max(1, coherenceSteps);
+            float range;
+            int reach, slot, lx, ly;
+            boolean deferred;
+            refreshedLights = deferredLights = 0;
+            for (int i = 0; i < sz; i++) {
+                slot = frameSlots[i];
+                lx = frameX[i];
+                ly = frameY[i];
+                deferred = false;
+                if(!budgeted)
+                    range = frameRanges[i];
+                else if(refreshing[i] || heldOrders[slot] != frameOrders[i] || heldBases[slot] != frameBases[i])
+                {
+                    heldRanges[slot] = range = frameRanges[i];
+                    heldBases[slot] = frameBases[i];
+                    heldOrders[slot] = frameOrders[i];
+                }
+                else
+                {
+                    range = heldRanges[slot];
+                    deferred = true;
+                }
+                if(temporalCoherence)
+                    range = Math.round(range * steps) / (float) steps;
+                reach = (int) Math.ceil(range);
+                if(lx + reach < clipMinX || lx - reach >= clipMaxX || ly + reach < clipMinY || ly - reach >= clipMaxY)
+                    continue;
+                if(deferred)
+                    ++deferredLights;
+                else
+                    ++refreshedLights;
+                queueLight(lx, ly, range, frameFlares[i], frameColors[i]);
+            }
+            queueShades(true);
+            flushLights();
+            ++frameCount;
+        } finally {
+            if(stats != null)
+                stats.end();
+        }
+    }
+
+    /**
+     * Copies the position, qualities, and range of every light positioned in {@link #noticeable} into the frame arrays,
+     * in the order they should be mixed, taking lights from {@link #bank} if it is non-null or from {@link #lights}
+     * otherwise. frameSlots holds the slot in {@link #lightIndex} or the index in the bank, and frameOrders holds
+     * something that changes when a different light takes over that slot or index.
+     * @param time the time to evaluate flicker and strobe at, or a negative number to use each light's full range
+     * @return how many lights were gathered
+     */
+    private int gatherLights(long time)
+    {
+        final int capacity = bank != null ? bank.size : lightIndex().size;
+        if(stats != null)
+            stats.count(LightingStats.LIGHTS_CONSIDERED, capacity);
+        if(frameSlots == null || frameSlots.length < capacity)
+        {
+            final int cap = Math.max(16, capacity);
+            frameSlots = new int[cap];
+            frameOrders = new int[cap];
+            frameX = new int[cap];
+            frameY = new int[cap];
+            frameRanges = new float[cap];
+            frameBases = new float[cap];
+            frameFlares = new float[cap];
+            frameColors = new float[cap];
+            frameWeights = new float[cap];
+        }
+        int n = 0;
+        if(bank != null)
+        {
+            final RadianceBank b = bank;
+            final int[] handles = b.handles, xs = b.x, ys = b.y;
+            for (int i = 0, lim = b.limit; i < lim; i++) {
+                if(handles[i] < 0 || !noticeable.contains(xs[i], ys[i]))
+                    continue;
+                frameSlots[n] = i;
+                frameOrders[n] = handles[i];
+                frameX[n] = xs[i];
+                frameY[n] = ys[i];
+                frameBases[n] = b.range[i];
+                frameFlares[n] = b.flare[i];
+                frameColors[n] = b.color[i];
+                frameWeights[n] = 1f + Math.abs(b.flicker[i]) + Math.abs(b.strobe[i]);
+                frameRanges[n] = time < 0L ? b.range[i] : b.currentRange(i, time);
+                ++n;
+            }
+            if(stats != null)
+                stats.count(LightingStats.LIGHTS_CULLED, capacity - n);
+            return n;
+        }
+        final IntArray nearby = noticeableLights();
+        final int[] slots = nearby.items;
         Coord pos;
+        Radiance radiance;
+        for (int sz = nearby.size; n < sz; n++) {
+            final int slot = slots[n];
+            pos = lightIndex.position(slot);
+            radiance = lightIndex.light(slot);
+            frameSlots[n] = slot;
+            frameOrders[n] = lightIndex.order(slot);
+            frameX[n] = pos.x;
+            frameY[n] = pos.y;
+            frameBases[n] = radiance.range;
+            frameFlares[n] = radiance.flare;
+            frameColors[n] = radiance.color;
+            frameWeights[n] = 1f + Math.abs(radiance.flicker) + Math.abs(radiance.strobe);
+            frameRanges[n] = time < 0L ? radiance.range : radiance.currentRange(time);
+        }
+        if(stats != null)
+            stats.count(LightingStats.LIGHTS_CULLED, capacity - n);
+        return n;
+    }
+
+    /**
+     * If {@link #lightBudget} is positive, this decides which of the lights gathered by {@link #gatherLights(long)} get
+     * their radius refreshed this frame, storing that in refreshing with the same indices, and makes room to hold their
+     * radii.
+     * @param sz how many lights were gathered
+     * @return true if the budget is in use, or false if every light should be refreshed without holding radii
+     */
+    private boolean scheduleLights(int sz)
+    {
+        if(lightBudget <= 0)
+            return false;
+        if(refreshing == null || refreshing.length < sz)
+        {
+            refreshing = new boolean[Math.max(sz, 16)];
+            ranking = new long[refreshing.length];
+        }
+        int slotLimit = heldRanges == null ? 0 : heldRanges.length;
+        final int[] slots = frameSlots;
         for (int i = 0; i < sz; i++) {
-            pos = lights.keyAt(i);
-            if(!noticeable.contains(pos))
-                continue;
-            radiance = lights.getAt(i);
-            FOV.reuseFOV(resistances, tempFOV, pos.x, pos.y, radiance.currentRange());
-            mixColoredLighting(radiance.flare, radiance.color);
+            final int slot = slots[i];
+            if(slot >= slotLimit)
+                slotLimit = Math.max(slot + 1, slotLimit << 1);
+            int dx = frameX[i] - viewerX, dy = frameY[i] - viewerY, dist = dx * dx + dy * dy;
+            // with shared vision, a light is ranked by its distance to the closest viewer
+            for (int v = 0; v < sharedViewerCount; v += 2) {
+                dx = frameX[i] - sharedViewers[v];
+                dy = frameY[i] - sharedViewers[v + 1];
+                dist = Math.min(dist, dx * dx + dy * dy);
+            }
+            // lower is better; flickering and strobing lights change the most between frames, so they rank higher
+            final float score = (dist + 1f) / frameWeights[i];
+            ranking[i] = (long) NumberTools.floatToIntBits(score) << 32 | i;
+            refreshing[i] = false;
+        }
+        if(heldRanges == null || heldRanges.length < slotLimit)
+        {
+            final int old = heldRanges == null ? 0 : heldRanges.length;
+            heldRanges = heldRanges == null ? new float[slotLimit] : Arrays.copyOf(heldRanges, slotLimit);
+            heldBases = heldBases == null ? new float[slotLimit] : Arrays.copyOf(heldBases, slotLimit);
+            heldOrders = heldOrders == null ? new int[slotLimit] : Arrays.copyOf(heldOrders, slotLimit);
+            Arrays.fill(heldOrders, old, slotLimit, -1);
+        }
+        if(sz <= lightBudget)
+        {
+            Arrays.fill(refreshing, 0, sz, true);
+            return true;
+        }
+        Arrays.sort(ranking, 0, sz);
+        for (int i = 0; i < lightBudget; i++) {
+            refreshing[(int) ranking[i]] = true;
         }
+        final int interval = Math.max(1, deferredInterval);
+        for (int i = lightBudget; i < sz; i++) {
+            final int index = (int) ranking[i];
+            if((slots[index] + frameCount) % interval == 0)
+                refreshing[index] = true;
+        }
+        return true;
     }
     /**
      * Typically called every frame when there isn't a single viewer, this updates the flicker and strobe effects of
@@ -442,35 +2581,51 @@ public class LightingHandler implements Serializable {
      */
     public void updateAll()
     {
-        Radiance radiance;
-        for (int x = 0; x < width; x++) {
-            PER_CELL:
-            for (int y = 0; y < height; y++) {
-                for (int xx = Math.max(0, x - 1), xi = 0; xi < 3 && xx < width; xi++, xx++) {
-                    for (int yy = Math.max(0, y - 1), yi = 0; yi < 3 && yy < height; yi++, yy++) {
-                        if(resistances[xx][yy] < 1.0){
-                            losResult[x][y] = 1.0;
-                            continue PER_CELL;
-                        }
-                    }
+        syncLights();
+        if(stats != null)
+        {
+            stats.begin(LightingStats.UPDATE_ALL);
+            stats.count(LightingStats.LIGHTS_CONSIDERED, bank != null ? bank.size : lights.size());
+        }
+        try {
+            Radiance radiance;
+            nearOpen().writeDoublesInto(losResult, 1.0);
+            clip(0, 0, width, height);
+            coherentFrame = false;
+            baked = false;
+            bakeEverything = true;
+            startLighting(0, 0, width, height);
+            final long time = now();
+            if(bank != null)
+            {
+                final RadianceBank b = bank;
+                for (int i = 0, lim = b.limit; i < lim; i++) {
+                    if(b.isLive(i))
+                        queueLight(b.x[i], b.y[i], b.currentRange(i, time), b.flare[i], b.color[i]);
                 }
             }
-        }
-        eraseColoredLighting(colorLighting);
-        final int sz = lights.size();
-        Coord pos;
-        for (int i = 0; i < sz; i++) {
-            pos = lights.keyAt(i);
-            radiance = lights.getAt(i);
-            FOV.reuseFOV(resistances, tempFOV, pos.x, pos.y, radiance.currentRange());
-            mixColoredLighting(radiance.flare, radiance.color);
-        }
-        for (int x = 0; x < width; x++) {
-            for (int y = 0; y < height; y++) {
-                if (losResult[x][y] > 0.0) {
-                    fovResult[x][y] = MathUtils.clamp(losResult[x][y] + colorLighting[0][x][y], 0, 1);
+            final int sz = bank != null ? 0 : lights.size();
+            Coord pos;
+            for (int i = 0; i < sz; i++) {
+                pos = lights.keyAt(i);
+                radiance = lights.getAt(i);
+                queueLight(pos.x, pos.y, radiance.currentRange(time), radiance.flare, radiance.color);
+            }
+            queueShades(false);
+            flushLights();
+            visibleCells.empty();
+            for (int x = 0; x < width; x++) {
+                for (int y = 0; y < height; y++) {
+                    if (losResult[x][y] > 0.0) {
+                        fovResult[x][y] = MathUtils.clamp(losResult[x][y] + getLightStrength(x, y), 0, 1);
+                    }
+                    if (fovResult[x][y] > 0.0)
+                        visibleCells.insert(x, y);
                 }
             }
+        } finally {
+            if(stats != null)
+                stats.end();
         }
     }
     /**
@@ -499,8 +2654,8 @@ public class LightingHandler implements Serializable {
      */
     public void updateUI(int lightX, int lightY, Radiance radiance)
     {
-        FOV.reuseFOV(resistances, tempFOV, lightX, lightY, radiance.currentRange());
-        mixColoredLighting(radiance.flare, radiance.color);
+        coherentFrame = false;
+        mixLight(lightX, lightY, radiance.currentRange(now()), radiance.flare, radiance.color);
     }
 
     /**
@@ -523,16 +2678,117 @@ public class LightingHandler implements Serializable {
      * @param stableBackgrounds a 2D float array of packed colors, here YCwCm+Sat format, which will stay the same
      */
     public void draw(float[][] editingBackgrounds, float[][] stableBackgrounds)
+    {
+        draw(editingBackgrounds, stableBackgrounds, 0, 0, width, height);
+    }
+    /**
+     * Like {@link #draw(float[][], float[][])}, but only changes cells within the given bounds, usually the part of
+     * the map that is on-screen and the same bounds given to {@link #update(int, int, int, int)}.
+     * @param editingBackgrounds a 2D float array of packed colors, here YCwCm+Sat format, which will be overwritten
+     * @param stableBackgrounds a 2D float array of packed colors, here YCwCm+Sat format, which will stay the same
+     * @param minX inclusive lower bound on x to draw
+     * @param minY inclusive lower bound on y to draw
+     * @param maxX exclusive upper bound on x to draw
+     * @param maxY exclusive upper bound on y to draw
+     */
+    public void draw(float[][] editingBackgrounds, float[][] stableBackgrounds, int minX, int minY, int maxX, int maxY)
+    {
+        drawLit(editingBackgrounds, stableBackgrounds, 0f, minX, minY, maxX, maxY);
+    }
+
+    /**
+     * Like {@link #draw(float[][], float[][], int, int, int, int)}, but also lightens each drawn color by
+     * {@code lightness} as {@link #updateAndDraw(float[][], float[][], float, int, int, int, int)} does, for when the
+     * lighting was already updated some other way, such as by {@link AsyncLighting}.
+     * @param editingBackgrounds a 2D float array of packed colors, here Oklab format, which will be overwritten
+     * @param stableBackgrounds a 2D float array of packed colors, here Oklab format, which will stay the same
+     * @param lightness how much to lighten each drawn cell, from 0 (no change) to 1 (white)
+     * @param minX inclusive lower bound on x to draw
+     * @param minY inclusive lower bound on y to draw
+     * @param maxX exclusive upper bound on x to draw
+     * @param maxY exclusive upper bound on y to draw
+     */
+    public void draw(float[][] editingBackgrounds, float[][] stableBackgrounds, float lightness,
+                     int minX, int minY, int maxX, int maxY)
+    {
+        drawLit(editingBackgrounds, stableBackgrounds, lightness, minX, minY, maxX, maxY);
+    }
+
+    /**
+     * Does the work of {@link #update(int, int, int, int)} followed by {@link #draw(float[][], float[][], int, int, int, int)},
+     * and also lightens each drawn color by {@code lightness} as {@link ColorTools#lighten(float, float)} would. The
+     * bounds are split into tiles of {@link #tileSize} cells, even without a {@link #tileRunner}, and each tile is
+     * started, has its lights mixed, and is drawn and lightened before the next tile is touched, so there is no separate
+     * erase pass or draw pass over the whole bounds. This is meant for render loops that would otherwise update, then
+     * draw, then lighten every cell again as they render it; the colors this writes to editingBackgrounds can be given
+     * to a batch as-is, and are the same as update() followed by draw() with the same lightness would produce. With
+     * {@link #useStats(LightingStats)}, the whole call counts as one {@link LightingStats#UPDATE}.
+     * @param editingBackgrounds a 2D float array of packed colors, here Oklab format, which will be overwritten
+     * @param stableBackgrounds a 2D float array of packed colors, here Oklab format, which will stay the same
+     * @param lightness how much to lighten each drawn cell, from 0 (no change) to 1 (white)
+     * @param minX inclusive lower bound on x to update and draw
+     * @param minY inclusive lower bound on y to update and draw
+     * @param maxX exclusive upper bound on x to update and draw
+     * @param maxY exclusive upper bound on y to update and draw
+     */
+    public void updateAndDraw(float[][] editingBackgrounds, float[][] stableBackgrounds, float lightness,
+                              int minX, int minY, int maxX, int maxY)
+    {
+        drawEditing = editingBackgrounds;
+        drawStable = stableBackgrounds;
+        drawLightness = lightness;
+        try {
+            update(minX, minY, maxX, maxY);
+        } finally {
+            drawEditing = drawStable = null;
+        }
+    }
+
+    /**
+     * The shared implementation of the bounded draw methods; lightness is as in
+     * {@link #updateAndDraw(float[][], float[][], float, int, int, int, int)}, and 0 skips lightening.
+     */
+    private void drawLit(float[][] editingBackgrounds, float[][] stableBackgrounds, float lightness,
+                         int minX, int minY, int maxX, int maxY)
+    {
+        if(stats != null)
+            stats.begin(LightingStats.DRAW);
+        try {
+            drawCells(editingBackgrounds, stableBackgrounds, lightness, Math.max(minX, 0), Math.max(minY, 0),
+                    Math.min(maxX, width), Math.min(maxY, height));
+        } finally {
+            if(stats != null)
+                stats.end();
+        }
+    }
+
+    /**
+     * Lerps and lightens the colors of the cells in the given bounds, which must be in the map, for
+     * {@link #drawLit(float[][], float[][], float, int, int, int, int)} or for one tile in {@link #mixTile(int)}.
+     */
+    private void drawCells(float[][] editingBackgrounds, float[][] stableBackgrounds, float lightness,
+                           int minX, int minY, int maxX, int maxY)
     {
         float current;
-        for (int x = 0; x < width; x++) {
-            for (int y = 0; y < height; y++) {
+        float[] bs, bc;
+        int bi;
+        for (int x = minX; x < maxX; x++) {
+            if (flatStorage) {
+                bs = lightStrength;
+                bc = lightColor;
+                bi = x * height;
+            } else {
+                bs = colorLighting[0][x];
+                bc = colorLighting[1][x];
+                bi = 0;
+            }
+            for (int y = minY; y < maxY; y++) {
                 if (losResult[x][y] > 0.0 && fovResult[x][y] > 0.0) {
                     current = stableBackgrounds[x][y];
                     if(current == 0f)
                         current = backgroundColor;
-                    editingBackgrounds[x][y] = FloatColors.lerpFloatColors(current,
-                            colorLighting[1][x][y], colorLighting[0][x][y]);
+                    current = FloatColors.lerpFloatColors(current, bc[bi + y], bs[bi + y]);
+                    editingBackgrounds[x][y] = lightness == 0f ? current : ColorTools.lighten(current, lightness);
                 }
             }
         }
@@ -593,41 +2849,199 @@ public class LightingHandler implements Serializable {
      */
     public double[][] calculateFOV(int viewerX, int viewerY, int minX, int minY, int maxX, int maxY)
     {
-        Radiance radiance;
         minX = MathUtils.clamp(minX, 0, width);
         maxX = MathUtils.clamp(maxX, 0, width);
         minY = MathUtils.clamp(minY, 0, height);
         maxY = MathUtils.clamp(maxY, 0, height);
-        FOV.reuseFOV(resistances, fovResult, viewerX, viewerY, viewerRange, radiusStrategy);
-        eraseColoredLighting(colorLighting);
-        final int sz = lights.size();
+        this.viewerX = viewerX;
+        this.viewerY = viewerY;
+        if(stats != null)
+        {
+            stats.begin(LightingStats.CALCULATE_FOV);
+            stats.count(LightingStats.FOV_COMPUTATIONS, 1L);
+        }
+        try {
+            sharedViewerCount = 0;
+            // one shadowcast each for sight and line of sight fills both the bits and the doubles
+            ArrayTools.fill(fovResult, 0.0);
+            ArrayTools.fill(losResult, 0.0);
+            final GreasedRegion blocking = blocking();
+            BitVision.fov(blocking, viewerX, viewerY, viewerRange, radiusStrategy, visibleCells, fovResult);
+            BitVision.los(blocking, viewerX, viewerY, minX, minY, maxX, maxY, noticeable, losResult);
+            lightVisible(minX, minY, maxX, maxY);
+            return fovResult;
+        } finally {
+            if(stats != null)
+                stats.end();
+        }
+    }
+
+    /**
+     * Like {@link #calculateFOV(int, int)}, but for a group of viewers that share vision, such as a squad of allies; a
+     * cell is visible if any viewer can see it, and each light is mixed only once for the whole group rather than once
+     * per viewer. With one viewer, this is the same as {@link #calculateFOV(Coord)}. This should be called any time any
+     * of the viewers moves to a different cell, before {@link #update()} is called. Sets {@link #fovResult},
+     * {@link #losResult}, {@link #visibleCells}, and {@link #noticeable} based on all the viewers together.
+     * @param viewers the positions of every viewer sharing vision; should have at least one item
+     * @return the calculated FOV 2D array, which is also stored in {@link #fovResult}
+     */
+    public double[][] calculateFOV(Coord... viewers)
+    {
+        return calculateFOV(viewers, 0, 0, width, height);
+    }
+
+    /**
+     * Like {@link #calculateFOV(int, int, int, int, int, int)}, but for a group of viewers that share vision, such as a
+     * squad of allies; a cell is visible if any viewer can see it, and each light is mixed only once for the whole
+     * group rather than once per viewer. Each viewer still needs its own FOV and line of sight, but each is one
+     * shadowcast that merges its bits into {@link #visibleCells} and noticeable and its doubles into the cells it
+     * reaches, so {@link #noticeable} is found once for the union and the work grows only with the extra area the
+     * group can see. With one viewer, this is the same as the single-viewer overload.
+     * @param viewers the positions of every viewer sharing vision; should have at least one item
+     * @param minX inclusive lower bound on x to calculate
+     * @param minY inclusive lower bound on y to calculate
+     * @param maxX exclusive upper bound on x to calculate
+     * @param maxY exclusive upper bound on y to calculate
+     * @return the calculated FOV 2D array, which is also stored in {@link #fovResult}
+     */
+    public double[][] calculateFOV(Coord[] viewers, int minX, int minY, int maxX, int maxY)
+    {
+        if(viewers.length == 0)
+        {
+            // no one is looking, so nothing is seen
+            ArrayTools.fill(fovResult, 0.0);
+            ArrayTools.fill(losResult, 0.0);
+            visibleCells.empty();
+            noticeable.empty();
+            sharedViewerCount = 0;
+            return fovResult;
+        }
+        if(viewers.length == 1)
+            return calculateFOV(viewers[0].x, viewers[0].y, minX, minY, maxX, maxY);
+        minX = MathUtils.clamp(minX, 0, width);
+        maxX = MathUtils.clamp(maxX, 0, width);
+        minY = MathUtils.clamp(minY, 0, height);
+        maxY = MathUtils.clamp(maxY, 0, height);
+        if(stats != null)
+        {
+            stats.begin(LightingStats.CALCULATE_FOV);
+            stats.count(LightingStats.FOV_COMPUTATIONS, viewers.length);
+        }
+        try {
+            viewerX = viewers[0].x;
+            viewerY = viewers[0].y;
+            ArrayTools.fill(fovResult, 0.0);
+            ArrayTools.fill(losResult, 0.0);
+            final GreasedRegion blocking = blocking();
+            BitVision.fov(blocking, viewerX, viewerY, viewerRange, radiusStrategy, visibleCells, fovResult);
+            BitVision.los(blocking, viewerX, viewerY, minX, minY, maxX, maxY, noticeable, losResult);
+            if(sharedViewers == null || sharedViewers.length < viewers.length * 2 - 2)
+                sharedViewers = new int[viewers.length * 2];
+            if(sharedCells == null)
+                sharedCells = new GreasedRegion(width, height);
+            sharedViewerCount = 0;
+            for (int v = 1; v < viewers.length; v++) {
+                final int vx = viewers[v].x, vy = viewers[v].y;
+                sharedViewers[sharedViewerCount++] = vx;
+                sharedViewers[sharedViewerCount++] = vy;
+                // the cells merge as bits, and the casts only touch the doubles of cells this viewer reaches, keeping
+                // the strongest value any viewer has for each
+                BitVision.fov(blocking, vx, vy, viewerRange, radiusStrategy, sharedCells, fovResult);
+                visibleCells.or(sharedCells);
+                BitVision.los(blocking, vx, vy, minX, minY, maxX, maxY, sharedCells, losResult);
+                noticeable.or(sharedCells);
+            }
+            lightVisible(minX, minY, maxX, maxY);
+            return fovResult;
+        } finally {
+            if(stats != null)
+                stats.end();
+        }
+    }
+
+    /**
+     * The part of calculateFOV() that comes after the viewer or viewers have set {@link #fovResult},
+     * {@link #losResult}, and {@link #visibleCells} from their own sight, and have left the cells in line of sight in
+     * {@link #noticeable}: grows noticeable to the cells lights could reach line of sight from, mixes every light in
+     * it, and adds the light to fovResult and visibleCells.
+     */
+    private void lightVisible(int minX, int minY, int maxX, int maxY)
+    {
+        clip(0, 0, width, height);
+        coherentFrame = false;
         float maxRange = 0, range;
+        if(bank != null)
+        {
+            final RadianceBank b = bank;
+            int lx, ly;
+            for (int i = 0, lim = b.limit; i < lim; i++) {
+                range = b.range[i];
+                if(range > maxRange && b.isLive(i) && (lx = b.x[i]) + range >= minX && lx - range < maxX
+                        && (ly = b.y[i]) + range >= minY && ly - range < maxY)
+                    maxRange = range;
+            }
+        }
+        else
+        {
+            final LightGrid index = lightIndex();
+            final IntArray nearby = index.lightsReaching(minX, minY, maxX, maxY,
+                    nearbyLights == null ? (nearbyLights = new IntArray(32)) : nearbyLights);
+            for (int i = 0, sz = nearby.size; i < sz; i++) {
+                maxRange = Math.max(maxRange, index.light(nearby.get(i)).range);
+            }
+        }
         Coord pos;
-        for (int i = 0; i < sz; i++) {
-            pos = lights.keyAt(i);
-            range = lights.getAt(i).range;
-            if(range > maxRange && 
-                    pos.x + range >= minX && pos.x - range < maxX && pos.y + range >= minY && pos.y - range < maxY) 
+        for (int i = 0, sz = staticLights.size(); i < sz; i++) {
+            pos = staticLights.keyAt(i);
+            range = staticLights.getAt(i).range;
+            if(range > maxRange &&
+                    pos.x + range >= minX && pos.x - range < maxX && pos.y + range >= minY && pos.y - range < maxY)
                 maxRange = range;
         }
-        FOV.reuseLOS(resistances, losResult, viewerX, viewerY, minX, minY, maxX, maxY);
-        noticeable.refill(losResult, 0.0001, Double.POSITIVE_INFINITY).expand8way((int) Math.ceil(maxRange));
-        for (int i = 0; i < sz; i++) {
-            pos = lights.keyAt(i);
-            if(!noticeable.contains(pos))
-                continue;
-            radiance = lights.getAt(i);
-            FOV.reuseFOV(resistances, tempFOV, pos.x, pos.y, radiance.range);
-            mixColoredLighting(radiance.flare, radiance.color);
+        for (int i = 0, sz = shades.size(); i < sz; i++) {
+            pos = shades.keyAt(i);
+            range = shades.getAt(i).range;
+            if(range > maxRange &&
+                    pos.x + range >= minX && pos.x - range < maxX && pos.y + range >= minY && pos.y - range < maxY)
+                maxRange = range;
         }
+        noticeable.expand8way((int) Math.ceil(maxRange));
+        // mixing only lights cells in line of sight, so the static lights need baking again for the new viewer
+        baked = false;
+        bakeEverything = false;
+        startLighting(0, 0, width, height);
+        for (int i = 0, sz = gatherLights(-1L); i < sz; i++) {
+            queueLight(frameX[i], frameY[i], frameBases[i], frameFlares[i], frameColors[i]);
+        }
+        queueShades(true);
+        flushLights();
+        // the viewer's own sight, already on bits, plus any lit cell in line of sight is what fovResult shows
         for (int x = Math.max(0, minX); x < maxX && x < width; x++) {
             for (int y = Math.max(0, minY); y < maxY && y < height; y++) {
                 if (losResult[x][y] > 0.0) {
-                    fovResult[x][y] = MathUtils.clamp(fovResult[x][y] + colorLighting[0][x][y], 0.0, 1.0);
+                    if((fovResult[x][y] = MathUtils.clamp(fovResult[x][y] + getLightStrength(x, y), 0.0, 1.0)) > 0.0)
+                        visibleCells.insert(x, y);
                 }
             }
         }
-        return fovResult;
+    }
+
+    /**
+     * Linearly interpolates all four byte channels of two packed colors (as int bits) at once, by splitting the channels
+     * into two pairs of 16-bit lanes and doing one multiply-add per pair; {@code change} is converted to a fixed-point
+     * weight from 0 to 256. Each channel of the result differs by at most 1 from
+     * {@code (int) (start + change * (end - start))} computed in float math for that channel, as long as change is
+     * between 0 and 1 inclusive. Used by the mixing methods when {@link #packedBlending} is true.
+     * @param start the packed color bits to start from, as from {@link NumberTools#floatToIntBits(float)}
+     * @param end the packed color bits to move toward
+     * @param change how far to move from start toward end, from 0 to 1
+     * @return the packed color bits for the interpolated color
+     */
+    public static int lerpPackedBits(final int start, final int end, final float change)
+    {
+        final int w = (int) (change * 256f), v = 256 - w;
+        return ((start & 0xFF00FF) * v + (end & 0xFF00FF) * w) >>> 8 & 0xFF00FF
+                | ((start >>> 8 & 0xFF00FF) * v + (end >>> 8 & 0xFF00FF) * w) & 0xFF00FF00;
     }
 
     /**
@@ -0,0 +1,280 @@
+package com.github.tommyettinger;
+
+import com.badlogic.gdx.utils.TimeUtils;
+
+/**
+ * Counts what a {@link LightingHandler} does on each call to calculateFOV(), update(), updateAll(), and draw(), so a
+ * HUD or a logger can show why lighting is slow on some level. Give one to a LightingHandler with
+ * {@link LightingHandler#useStats(LightingStats)}; a LightingHandler without one doesn't count anything.
+ * <br>
+ * Each call is one of the operations {@link #CALCULATE_FOV}, {@link #UPDATE}, {@link #UPDATE_ALL}, or {@link #DRAW},
+ * and records each counter: {@link #LIGHTS_CONSIDERED}, {@link #LIGHTS_CULLED}, {@link #FOV_COMPUTATIONS},
+ * {@link #CELLS_MIXED}, and {@link #NANOS}. The last {@link #window} calls of each operation are kept, so
+ * {@link #min(int, int)}, {@link #average(int, int)}, and {@link #max(int, int)} roll over that many calls. None of the
+ * methods here allocate, and {@link #snapshot(int, Snapshot)} copies everything about one operation into a reusable
+ * {@link Snapshot}. A call made inside another counted call counts as part of the outer call; updateAndDraw() draws
+ * each tile as it is mixed, so all of its work counts as one {@link #UPDATE}.
+ */
+public class LightingStats {
+    /**
+     * The operation for {@link LightingHandler#calculateFOV(int, int)} and its overloads.
+     */
+    public static final int CALCULATE_FOV = 0;
+    /**
+     * The operation for {@link LightingHandler#update()} and its overloads.
+     */
+    public static final int UPDATE = 1;
+    /**
+     * The operation for {@link LightingHandler#updateAll()}.
+     */
+    public static final int UPDATE_ALL = 2;
+    /**
+     * The operation for {@link LightingHandler#draw(float[][])} and its overloads.
+     */
+    public static final int DRAW = 3;
+    /**
+     * How many operations are counted.
+     */
+    public static final int OPERATIONS = 4;
+
+    /**
+     * The counter for how many lights the LightingHandler had when the call started.
+     */
+    public static final int LIGHTS_CONSIDERED = 0;
+    /**
+     * The counter for how many lights were skipped because they weren't in {@link LightingHandler#noticeable}.
+     */
+    public static final int LIGHTS_CULLED = 1;
+    /**
+     * The counter for how many times FOV was calculated by shadowcasting, for lights or viewers; lights that used a
+     * cached stamp or a falloff for an empty map don't count.
+     */
+    public static final int FOV_COMPUTATIONS = 2;
+    /**
+     * The counter for how many cells had a light mixed into them, counting a cell once per light that reached it.
+     */
+    public static final int CELLS_MIXED = 3;
+    /**
+     * The counter for how long the call took, in nanoseconds.
+     */
+    public static final int NANOS = 4;
+    /**
+     * How many counters each operation has.
+     */
+    public static final int COUNTERS = 5;
+
+    /**
+     * How many of the most recent calls of each operation are kept for the rolling statistics.
+     */
+    public final int window;
+
+    // history[(operation * COUNTERS + counter) * window + call % window]
+    private final long[] history;
+    private final long[] calls;
+    private final long[] current;
+    private int currentOperation, depth;
+    private long startNanos;
+
+    /**
+     * Makes a LightingStats that keeps the last 60 calls of each operation, about a second of frames.
+     */
+    public LightingStats()
+    {
+        this(60);
+    }
+
+    /**
+     * Makes a LightingStats that keeps the given number of recent calls of each operation.
+     * @param window how many calls the rolling minimum, average, and maximum cover; at least 1
+     */
+    public LightingStats(int window)
+    {
+        this.window = Math.max(1, window);
+        history = new long[OPERATIONS * COUNTERS * this.window];
+        calls = new long[OPERATIONS];
+        current = new long[COUNTERS];
+    }
+
+    /**
+     * Starts counting a call of the given operation, unless a call is already being counted, in which case the
+     * counts go to that call instead. Each call to this must be matched by a call to {@link #end()}, made in a
+     * {@code finally} block, so a call that throws doesn't leave every later call counted as part of it.
+     * @param operation one of {@link #CALCULATE_FOV}, {@link #UPDATE}, {@link #UPDATE_ALL}, or {@link #DRAW}
+     */
+    public void begin(int operation)
+    {
+        if(depth++ != 0)
+            return;
+        currentOperation = operation;
+        for (int i = 0; i < COUNTERS; i++) {
+            current[i] = 0L;
+        }
+        startNanos = TimeUtils.nanoTime();
+    }
+
+    /**
+     * Adds to a counter of the call being counted; does nothing if no call is being counted.
+     * @param counter one of the counters, such as {@link #CELLS_MIXED}
+     * @param amount how much to add
+     */
+    public void count(int counter, long amount)
+    {
+        if(depth != 0)
+            current[counter] += amount;
+    }
+
+    /**
+     * Finishes counting the call started by the matching {@link #begin(int)}, recording it if it was the outermost.
+     */
+    public void end()
+    {
+        if(depth == 0 || --depth != 0)
+            return;
+        current[NANOS] = TimeUtils.nanoTime() - startNanos;
+        final int place = (int) (calls[currentOperation]++ % window);
+        for (int i = 0, o = currentOperation * COUNTERS * window + place; i < COUNTERS; i++, o += window) {
+            history[o] = current[i];
+        }
+    }
+
+    /**
+     * Gets how many times the given operation has been recorded since this was made or {@link #reset()}.
+     * @param operation one of the operations, such as {@link #UPDATE}
+     * @return how many calls of that operation have been recorded
+     */
+    public long calls(int operation)
+    {
+        return calls[operation];
+    }
+
+    /**
+     * Gets a counter from the most recent call of the given operation, or 0 if there hasn't been one.
+     * @param operation one of the operations, such as {@link #UPDATE}
+     * @param counter one of the counters, such as {@link #NANOS}
+     * @return the value that counter had for the last call
+     */
+    public long last(int operation, int counter)
+    {
+        final long n = calls[operation];
+        return n == 0L ? 0L : history[(operation * COUNTERS + counter) * window + (int) ((n - 1L) % window)];
+    }
+
+    /**
+     * Gets the smallest value a counter had over the last {@link #window} calls of the given operation, or 0 if there
+     * haven't been any.
+     * @param operation one of the operations, such as {@link #UPDATE}
+     * @param counter one of the counters, such as {@link #NANOS}
+     * @return the smallest value of that counter in the window
+     */
+    public long min(int operation, int counter)
+    {
+        final int n = (int) Math.min(calls[operation], window), o = (operation * COUNTERS + counter) * window;
+        if(n == 0)
+            return 0L;
+        long m = history[o];
+        for (int i = 1; i < n; i++) {
+            m = Math.min(m, history[o + i]);
+        }
+        return m;
+    }
+
+    /**
+     * Gets the largest value a counter had over the last {@link #window} calls of the given operation, or 0 if there
+     * haven't been any.
+     * @param operation one of the operations, such as {@link #UPDATE}
+     * @param counter one of the counters, such as {@link #NANOS}
+     * @return the largest value of that counter in the window
+     */
+    public long max(int operation, int counter)
+    {
+        final int n = (int) Math.min(calls[operation], window), o = (operation * COUNTERS + counter) * window;
+        long m = 0L;
+        for (int i = 0; i < n; i++) {
+            m = Math.max(m, history[o + i]);
+        }
+        return m;
+    }
+
+    /**
+     * Gets the mean value a counter had over the last {@link #window} calls of the given operation, or 0 if there
+     * haven't been any.
+     * @param operation one of the operations, such as {@link #UPDATE}
+     * @param counter one of the counters, such as {@link #NANOS}
+     * @return the average of that counter in the window
+     */
+    public double average(int operation, int counter)
+    {
+        final int n = (int) Math.min(calls[operation], window), o = (operation * COUNTERS + counter) * window;
+        if(n == 0)
+            return 0.0;
+        long sum = 0L;
+        for (int i = 0; i < n; i++) {
+            sum += history[o + i];
+        }
+        return sum / (double) n;
+    }
+
+    /**
+     * Copies everything recorded about one operation into a Snapshot, without allocating if into is non-null.
+     * @param operation one of the operations, such as {@link #UPDATE}
+     * @param into a Snapshot to overwrite, or null to make a new one
+     * @return into after modification, or a new Snapshot if into was null
+     */
+    public Snapshot snapshot(int operation, Snapshot into)
+    {
+        if(into == null)
+            into = new Snapshot();
+        into.operation = operation;
+        into.calls = calls[operation];
+        for (int i = 0; i < COUNTERS; i++) {
+            into.last[i] = last(operation, i);
+            into.min[i] = min(operation, i);
+            into.average[i] = average(operation, i);
+            into.max[i] = max(operation, i);
+        }
+        return into;
+    }
+
+    /**
+     * Forgets every recorded call.
+     */
+    public void reset()
+    {
+        for (int i = 0; i < OPERATIONS; i++) {
+            calls[i] = 0L;
+        }
+        depth = 0;
+    }
+
+    /**
+     * Everything a {@link LightingStats} knows about one operation at the time {@link #snapshot(int, Snapshot)} was
+     * called. Each array is indexed by counter, such as {@link #NANOS}, and the arrays are made once, so one Snapshot
+     * can be filled every frame.
+     */
+    public static class Snapshot {
+        /**
+         * Which operation this describes, such as {@link #UPDATE}.
+         */
+        public int operation;
+        /**
+         * How many calls of the operation had been recorded.
+         */
+        public long calls;
+        /**
+         * The counters from the most recent call.
+         */
+        public final long[] last = new long[COUNTERS];
+        /**
+         * The smallest value of each counter over the window.
+         */
+        public final long[] min = new long[COUNTERS];
+        /**
+         * The mean value of each counter over the window.
+         */
+        public final double[] average = new double[COUNTERS];
+        /**
+         * The largest value of each counter over the window.
+         */
+        public final long[] max = new long[COUNTERS];
+    }
+}
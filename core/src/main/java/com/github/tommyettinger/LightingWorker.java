@@ -0,0 +1,27 @@
+package com.github.tommyettinger;
+
+/**
+ * Runs the lighting jobs of an {@link AsyncLighting}, possibly on another thread. An implementation must run each job
+ * given to {@link #execute(Runnable)} exactly once, either before returning or later on some other thread; AsyncLighting
+ * never gives it a new job until the previous one has finished, so one worker thread is enough.
+ * <br>
+ * The core module only has {@link #INLINE}, since GWT can't use threads; the desktop module has a thread-based
+ * implementation.
+ */
+public interface LightingWorker {
+    /**
+     * Runs the given job now or later, on any thread.
+     * @param job a lighting job from an AsyncLighting
+     */
+    void execute(Runnable job);
+
+    /**
+     * Runs every job right away on the current thread; lighting is then always current, but is not computed ahead.
+     */
+    LightingWorker INLINE = new LightingWorker() {
+        @Override
+        public void execute(Runnable job) {
+            job.run();
+        }
+    };
+}
@@ -0,0 +1,112 @@
+package com.github.tommyettinger;
+
+import squidpony.squidgrid.Radius;
+
+/**
+ * Finds lights that have nothing in their way, so {@link LightingHandler#stampLight(int, int, float, LightStamp)} can
+ * write a falloff directly instead of shadowcasting. This keeps a summed-area table counting the cells with any
+ * resistance, so checking whether a rectangle is completely open takes four lookups no matter how big it is.
+ * Shadowcasting only stops at obstructions, so on a window with no resistance it produces exactly what
+ * {@link #falloff(double[], int, int, int, int, float, Radius)} writes, for any range, without caching anything.
+ * <br>
+ * The table is rebuilt by {@link #refresh(double[][], int)} when the resistances it was built from change.
+ */
+public class OpenAreaIndex {
+    public final int width, height;
+    /**
+     * The {@link LightingHandler#resistanceVersion} the table was built with, or -1 if it hasn't been built.
+     */
+    public int version = -1;
+    /**
+     * How many lights got a falloff written instead of being shadowcast; only counted by {@link LightingHandler}.
+     */
+    public int hits;
+
+    // sums[x * (height + 1) + y] counts the obstructed cells with positions below x and below y
+    private final int[] sums;
+
+    /**
+     * Makes an OpenAreaIndex for a map with the given size; call {@link #refresh(double[][], int)} before using it.
+     * @param width the width of the map, in cells
+     * @param height the height of the map, in cells
+     */
+    public OpenAreaIndex(int width, int height)
+    {
+        this.width = width;
+        this.height = height;
+        sums = new int[(width + 1) * (height + 1)];
+    }
+
+    /**
+     * Rebuilds the summed-area table from the given resistances if version differs from {@link #version}.
+     * @param resistances the resistance map, such as {@link LightingHandler#resistances}
+     * @param version the version of resistances, such as {@link LightingHandler#resistanceVersion}
+     * @return this for chaining
+     */
+    public OpenAreaIndex refresh(double[][] resistances, int version)
+    {
+        if(version == this.version)
+            return this;
+        final int h = height + 1;
+        for (int x = 0; x < width; x++) {
+            final double[] column = resistances[x];
+            int run = 0;
+            for (int y = 0, i = (x + 1) * h + 1; y < height; y++, i++) {
+                if(column[y] != 0.0)
+                    ++run;
+                sums[i] = sums[i - h] + run;
+            }
+        }
+        this.version = version;
+        return this;
+    }
+
+    /**
+     * Checks whether every cell in the given bounds has a resistance of 0; the bounds are clamped to the map.
+     * @param minX inclusive lower bound on x
+     * @param minY inclusive lower bound on y
+     * @param maxX exclusive upper bound on x
+     * @param maxY exclusive upper bound on y
+     * @return true if no cell in the bounds obstructs light at all
+     */
+    public boolean isOpen(int minX, int minY, int maxX, int maxY)
+    {
+        minX = Math.max(minX, 0);
+        minY = Math.max(minY, 0);
+        maxX = Math.min(maxX, width);
+        maxY = Math.min(maxY, height);
+        if(minX >= maxX || minY >= maxY)
+            return true;
+        final int h = height + 1;
+        return sums[maxX * h + maxY] - sums[minX * h + maxY] - sums[maxX * h + minY] + sums[minX * h + minY] == 0;
+    }
+
+    /**
+     * Writes part of one column of the FOV that a light with the given range and Radius has on an empty map, which is
+     * what shadowcasting gives when nothing is in the way: {@code 1.0 - strategy.radius(dx, dy) / range} for cells
+     * within range, 0.0 past it, and {@code Math.min(1.0, range)} on the light itself. This doesn't allocate or cache
+     * anything, so a flickering light whose range changes every frame costs the same as a steady one.
+     * @param column the column to write into, such as a column of {@link LightingHandler#tempFOV}
+     * @param start the first index in column to write
+     * @param count how many cells to write
+     * @param dx the x-distance from the light to this column
+     * @param dy the y-distance from the light to the cell written at start
+     * @param range the radius of the light
+     * @param strategy how distance is measured, as FOV uses it
+     * @return column, after modification
+     */
+    public static double[] falloff(double[] column, int start, int count, int dx, int dy, float range,
+                                   Radius strategy)
+    {
+        // the same decay and comparison FOV uses, so every value matches to the last bit
+        final double radius = range, decay = 1.0 / radius;
+        double d;
+        for (int i = start, end = start + count; i < end; i++, dy++) {
+            if(dx == 0 && dy == 0)
+                column[i] = Math.min(1.0, radius);
+            else
+                column[i] = (d = strategy.radius(dx, dy)) <= radius ? 1.0 - decay * d : 0.0;
+        }
+        return column;
+    }
+}
@@ -31,7 +31,7 @@ public class Populace extends OrderedMap<Coord, Creature> {
 
     public Creature place(Creature creature) {
         creature.configureMap(dl);
-        dl.lighting.addLight(creature.moth.end, creature.glow);
+        dl.lighting.addGlow(creature.moth.end, creature.glow);
         OrderedSet<Coord> faction = factions.get(creature.faction);
         if(faction == null)
             factions.put(creature.faction, faction = new OrderedSet<>(64, CrossHash.mildHasher));
@@ -77,7 +77,7 @@ public class Populace extends OrderedMap<Coord, Creature> {
         creature.moth.end = goal;
         creature.moth.change = 0f;
         alterCarefully(startingPosition, goal);
-        dl.lighting.moveLight(startingPosition, goal);
+        dl.lighting.moveGlow(startingPosition, goal);
         return null;
     }
 
@@ -98,7 +98,7 @@ public class Populace extends OrderedMap<Coord, Creature> {
         Creature creature = super.remove(k);
         if(creature != null)
             factions.get(creature.faction).remove(k);
-        dl.lighting.removeLight((Coord) k);
+        dl.lighting.removeGlow((Coord) k);
         
         return creature;
     }
@@ -229,7 +229,37 @@ public class Radiance implements Serializable {
      */
     public float currentRange()
     {
-        final float time = (TimeUtils.millis() & 0x3ffffL) * 0x1.9p-9f;
+        return currentRange(TimeUtils.millis());
+    }
+
+    /**
+     * Provides the calculated current range adjusted for flicker and strobe at the given time in milliseconds, such as
+     * from a {@link LightClock}. This is what {@link #currentRange()} uses with the current time, but giving the same
+     * time for every light in a frame avoids reading the clock once per light and makes results repeatable.
+     * @param millis the time in milliseconds to evaluate flicker and strobe at
+     * @return the range at the given time, adjusting for flicker and strobe
+     */
+    public float currentRange(long millis)
+    {
+        return currentRange(range, flicker, strobe, delay, flare, seed, millis);
+    }
+
+    /**
+     * The calculation behind {@link #currentRange(long)}, taking each field of a Radiance separately so lights stored
+     * some other way, such as in a {@link RadianceBank}, change in exactly the same way.
+     * @param range the full range, as in {@link #range}
+     * @param flicker the rate of random change, as in {@link #flicker}
+     * @param strobe the rate of regular change, as in {@link #strobe}
+     * @param delay the delay for flicker and strobe, as in {@link #delay}
+     * @param flare the minimum fraction of range, as in {@link #flare}
+     * @param seed the seed for flicker, as in {@link #seed}
+     * @param millis the time in milliseconds to evaluate flicker and strobe at
+     * @return the range at the given time, adjusting for flicker and strobe
+     */
+    public static float currentRange(float range, float flicker, float strobe, float delay, float flare, int seed,
+                                     long millis)
+    {
+        final float time = (millis & 0x3ffffL) * 0x1.9p-9f;
         float current = range;
         if(flicker != 0f) 
             current *= NumberTools.swayRandomized(seed, time * flicker + delay) * 0.25f + 0.75f;
@@ -238,6 +268,25 @@ public class Radiance implements Serializable {
         return Math.max(current, range * flare);
     }
 
+    /**
+     * Evaluates {@link #currentRange(long)} for the first {@code count} items of {@code lights} at one shared time,
+     * storing the ranges in {@code into} at the same indices.
+     * @param lights an array of Radiance; null items get a range of 0
+     * @param count how many items of lights to evaluate
+     * @param millis the time in milliseconds to evaluate flicker and strobe at, such as from {@link LightClock#millis()}
+     * @param into a float array with length at least count, or null to allocate one
+     * @return into, after modification, or a new array if into was null or too small
+     */
+    public static float[] currentRanges(Radiance[] lights, int count, long millis, float[] into)
+    {
+        if(into == null || into.length < count)
+            into = new float[count];
+        for (int i = 0; i < count; i++) {
+            into[i] = lights[i] == null ? 0f : lights[i].currentRange(millis);
+        }
+        return into;
+    }
+
     /**
      * Makes a chain of Radiance objects that will pulse in a sequence, expanding from one to the next.
      * This chain is an array of Radiance where the order matters.
@@ -302,14 +351,72 @@ public class Radiance implements Serializable {
 
     public String serializeToString()
     {
-        return  "{" + StringKit.hex(NumberTools.floatToIntBits(range)) +
-                "," + StringKit.hex(NumberTools.floatToIntBits(color)) +
-                "," + StringKit.hex(NumberTools.floatToIntBits(flicker)) +
-                "," + StringKit.hex(NumberTools.floatToIntBits(strobe)) + 
-                "," + StringKit.hex(NumberTools.floatToIntBits(delay)) +
-                "," + StringKit.hex(NumberTools.floatToIntBits(flare)) +
-                "," + StringKit.hex(seed) +
-                "}";
+        return appendTo(new StringBuilder(64)).toString();
+    }
+
+    /**
+     * Appends this in the same form as {@link #serializeToString()} to text, without making any intermediate Strings.
+     * {@link RadianceCodec} uses this to write many lights at once.
+     * @param text the StringBuilder to append to
+     * @return text, for chaining
+     */
+    public StringBuilder appendTo(StringBuilder text)
+    {
+        return appendTo(text, range, color, flicker, strobe, delay, flare, seed);
+    }
+
+    /**
+     * The work behind {@link #appendTo(StringBuilder)}, taking each field of a Radiance separately so lights stored
+     * some other way, such as in a {@link RadianceBank}, are written in exactly the same form.
+     * @param text the StringBuilder to append to
+     * @param range the full range, as in {@link #range}
+     * @param color the packed float color, as in {@link #color}
+     * @param flicker the rate of random change, as in {@link #flicker}
+     * @param strobe the rate of regular change, as in {@link #strobe}
+     * @param delay the delay for flicker and strobe, as in {@link #delay}
+     * @param flare the minimum fraction of range, as in {@link #flare}
+     * @param seed the seed for flicker, as in {@link #seed}
+     * @return text, for chaining
+     */
+    public static StringBuilder appendTo(StringBuilder text, float range, float color, float flicker, float strobe,
+                                         float delay, float flare, int seed)
+    {
+        text.append('{');
+        RadianceCodec.appendHex(text, NumberTools.floatToIntBits(range), 8);
+        text.append(',');
+        RadianceCodec.appendHex(text, NumberTools.floatToIntBits(color), 8);
+        text.append(',');
+        RadianceCodec.appendHex(text, NumberTools.floatToIntBits(flicker), 8);
+        text.append(',');
+        RadianceCodec.appendHex(text, NumberTools.floatToIntBits(strobe), 8);
+        text.append(',');
+        RadianceCodec.appendHex(text, NumberTools.floatToIntBits(delay), 8);
+        text.append(',');
+        RadianceCodec.appendHex(text, NumberTools.floatToIntBits(flare), 8);
+        text.append(',');
+        RadianceCodec.appendHex(text, seed, 8);
+        return text.append('}');
+    }
+
+    /**
+     * Reads a Radiance in the form {@link #serializeToString()} produces, starting at offset in text, into an existing
+     * Radiance instead of making a new one. This doesn't check the text; there must be 64 chars from offset on, in the
+     * right form. Hex digits can be upper or lower case.
+     * @param text text holding a serialized Radiance at offset
+     * @param offset where the opening brace is
+     * @param into the Radiance to overwrite
+     * @return into, after modification
+     */
+    public static Radiance parse(CharSequence text, int offset, Radiance into)
+    {
+        into.range = NumberTools.intBitsToFloat(RadianceCodec.readHex(text, offset + 1, 8));
+        into.color = NumberTools.intBitsToFloat(RadianceCodec.readHex(text, offset + 10, 8));
+        into.flicker = NumberTools.intBitsToFloat(RadianceCodec.readHex(text, offset + 19, 8));
+        into.strobe = NumberTools.intBitsToFloat(RadianceCodec.readHex(text, offset + 28, 8));
+        into.delay = NumberTools.intBitsToFloat(RadianceCodec.readHex(text, offset + 37, 8));
+        into.flare = NumberTools.intBitsToFloat(RadianceCodec.readHex(text, offset + 46, 8));
+        into.seed = RadianceCodec.readHex(text, offset + 55, 8);
+        return into;
     }
     
     public static Radiance deserializeFromString(String data)
@@ -0,0 +1,362 @@
+package com.github.tommyettinger;
+
+import squidpony.squidmath.Coord;
+import squidpony.squidmath.OrderedMap;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Stores many lights as parallel primitive arrays instead of as {@link Radiance} objects in a map, so a level can have
+ * tens of thousands of lights without one object (plus a map entry and a Coord key) per light. Each light lives at an
+ * index, and every field a Radiance has is kept in the array of the same name at that index, along with its position
+ * in {@link #x} and {@link #y}. A {@link LightingHandler} with a non-null {@link LightingHandler#bank} takes all of its
+ * lights from a RadianceBank instead of from {@link LightingHandler#lights}; see
+ * {@link LightingHandler#useBank(RadianceBank)}.
+ * <br>
+ * Adding a light returns a handle, an int that identifies that light until it is removed; the low 24 bits of a handle
+ * are its index and the next 7 bits count how many times that index has been reused, so a handle kept after its light
+ * was removed won't affect a different light that later gets the same index. Indices from {@link #limit} onward are
+ * unused; indices below it are in use if {@link #isLive(int)} returns true. Removing a light frees its index, and the
+ * most recently freed index is the first reused, so the index order (which is the order lights are mixed in) matches
+ * the order lights were added only until some are removed. Lights can share a position.
+ * <br>
+ * The arrays are public so code that changes many lights at once can edit them in place; they may be replaced with
+ * larger arrays when lights are added, so don't keep references to them across calls to {@link #add(int, int, Radiance)}.
+ */
+public class RadianceBank implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The most lights a RadianceBank can hold at once, since handles use 24 bits for the index.
+     */
+    public static final int MAX_LIGHTS = 1 << 24;
+
+    /**
+     * The {@link Radiance#range} of each light.
+     */
+    public float[] range;
+    /**
+     * The {@link Radiance#color} of each light.
+     */
+    public float[] color;
+    /**
+     * The {@link Radiance#flicker} of each light.
+     */
+    public float[] flicker;
+    /**
+     * The {@link Radiance#strobe} of each light.
+     */
+    public float[] strobe;
+    /**
+     * The {@link Radiance#delay} of each light.
+     */
+    public float[] delay;
+    /**
+     * The {@link Radiance#flare} of each light.
+     */
+    public float[] flare;
+    /**
+     * The {@link Radiance#seed} of each light.
+     */
+    public int[] seed;
+    /**
+     * The x-position of each light.
+     */
+    public int[] x;
+    /**
+     * The y-position of each light.
+     */
+    public int[] y;
+    /**
+     * The handle of the light at each index, or a negative number if that index is free.
+     */
+    public int[] handles;
+    /**
+     * How many lights this holds.
+     */
+    public int size;
+    /**
+     * One more than the highest index that has ever held a light; every live light has an index less than this.
+     */
+    public int limit;
+
+    private int[] freeIndices;
+    private int freeCount;
+
+    /**
+     * Makes an empty RadianceBank with room for 64 lights before it needs to grow.
+     */
+    public RadianceBank()
+    {
+        this(64);
+    }
+
+    /**
+     * Makes an empty RadianceBank with room for the given number of lights before it needs to grow.
+     * @param capacity how many lights this should have room for initially
+     */
+    public RadianceBank(int capacity)
+    {
+        capacity = Math.max(capacity, 1);
+        range = new float[capacity];
+        color = new float[capacity];
+        flicker = new float[capacity];
+        strobe = new float[capacity];
+        delay = new float[capacity];
+        flare = new float[capacity];
+        seed = new int[capacity];
+        x = new int[capacity];
+        y = new int[capacity];
+        handles = new int[capacity];
+        freeIndices = new int[capacity];
+    }
+
+    /**
+     * Makes a RadianceBank holding a copy of every light in the given map, in the map's order, so the lights get the
+     * indices 0 to {@code lights.size() - 1} and are mixed in the same order they would be from the map. Later changes
+     * to the Radiance objects in the map don't affect this.
+     * @param lights a map of positions to lights, such as {@link LightingHandler#lights}
+     */
+    public RadianceBank(OrderedMap<Coord, Radiance> lights)
+    {
+        this(lights.size());
+        for (int i = 0, sz = lights.size(); i < sz; i++) {
+            add(lights.keyAt(i), lights.getAt(i));
+        }
+    }
+
+    private void ensureCapacity(int capacity)
+    {
+        if(capacity <= range.length)
+            return;
+        capacity = Math.max(capacity, range.length << 1);
+        range = Arrays.copyOf(range, capacity);
+        color = Arrays.copyOf(color, capacity);
+        flicker = Arrays.copyOf(flicker, capacity);
+        strobe = Arrays.copyOf(strobe, capacity);
+        delay = Arrays.copyOf(delay, capacity);
+        flare = Arrays.copyOf(flare, capacity);
+        seed = Arrays.copyOf(seed, capacity);
+        x = Arrays.copyOf(x, capacity);
+        y = Arrays.copyOf(y, capacity);
+        handles = Arrays.copyOf(handles, capacity);
+        freeIndices = Arrays.copyOf(freeIndices, capacity);
+    }
+
+    /**
+     * Adds a light with the given position and qualities, which are the same as the fields of {@link Radiance}.
+     * @param x the x-position of the light
+     * @param y the y-position of the light
+     * @param range how far the light extends; see {@link Radiance#range}
+     * @param color the packed float color of the light; see {@link Radiance#color}
+     * @param flicker the rate of random change to range; see {@link Radiance#flicker}
+     * @param strobe the rate of regular change to range; see {@link Radiance#strobe}
+     * @param delay the delay for flicker and strobe; see {@link Radiance#delay}
+     * @param flare the minimum fraction of range; see {@link Radiance#flare}
+     * @param seed the seed for flicker; see {@link Radiance#seed}
+     * @return the handle of the new light, used to change or remove it later
+     */
+    public int add(int x, int y, float range, float color, float flicker, float strobe, float delay, float flare,
+                   int seed)
+    {
+        final int index, handle;
+        if(freeCount > 0)
+        {
+            index = freeIndices[--freeCount];
+            // the reuse count is in bits 24 to 30, and wraps around without touching the sign bit
+            handle = (~handles[index] + (1 << 24) & 0x7F000000) | index;
+        }
+        else
+        {
+            if(limit >= MAX_LIGHTS)
+                throw new IllegalStateException("A RadianceBank can't hold more than " + MAX_LIGHTS + " lights");
+            index = limit++;
+            ensureCapacity(limit);
+            handle = index;
+        }
+        this.range[index] = range;
+        this.color[index] = color;
+        this.flicker[index] = flicker;
+        this.strobe[index] = strobe;
+        this.delay[index] = delay;
+        this.flare[index] = flare;
+        this.seed[index] = seed;
+        this.x[index] = x;
+        this.y[index] = y;
+        handles[index] = handle;
+        ++size;
+        return handle;
+    }
+
+    /**
+     * Adds a light at the given position, copying every field of the given Radiance.
+     * @param x the x-position of the light
+     * @param y the y-position of the light
+     * @param light the Radiance to copy; this doesn't keep a reference to it
+     * @return the handle of the new light, used to change or remove it later
+     */
+    public int add(int x, int y, Radiance light)
+    {
+        return add(x, y, light.range, light.color, light.flicker, light.strobe, light.delay, light.flare, light.seed);
+    }
+
+    /**
+     * Adds a light at the given position, copying every field of the given Radiance.
+     * @param position the position of the light
+     * @param light the Radiance to copy; this doesn't keep a reference to it
+     * @return the handle of the new light, used to change or remove it later
+     */
+    public int add(Coord position, Radiance light)
+    {
+        return add(position.x, position.y, light);
+    }
+
+    /**
+     * Gets the index of the light with the given handle, or -1 if that light was removed or never existed.
+     * @param handle a handle returned by {@link #add(int, int, Radiance)} or a related method
+     * @return the index of that light in each array, or -1 if the handle isn't current
+     */
+    public int indexOf(int handle)
+    {
+        final int index = handle & 0xFFFFFF;
+        return handle >= 0 && index < limit && handles[index] == handle ? index : -1;
+    }
+
+    /**
+     * Checks if the light with the given handle is still in this.
+     * @param handle a handle returned by {@link #add(int, int, Radiance)} or a related method
+     * @return true if that light hasn't been removed
+     */
+    public boolean contains(int handle)
+    {
+        return indexOf(handle) >= 0;
+    }
+
+    /**
+     * Checks if the given index holds a light.
+     * @param index an index from 0 (inclusive) to {@link #limit} (exclusive)
+     * @return true if a light is at that index
+     */
+    public boolean isLive(int index)
+    {
+        return handles[index] >= 0;
+    }
+
+    /**
+     * Removes the light with the given handle, if it is still present, freeing its index for reuse.
+     * @param handle a handle returned by {@link #add(int, int, Radiance)} or a related method
+     * @return true if a light was removed
+     */
+    public boolean remove(int handle)
+    {
+        final int index = indexOf(handle);
+        if(index < 0)
+            return false;
+        handles[index] = ~handle;
+        freeIndices[freeCount++] = index;
+        --size;
+        return true;
+    }
+
+    /**
+     * Moves the light with the given handle to a new position, if it is still present; it keeps its index and handle.
+     * @param handle a handle returned by {@link #add(int, int, Radiance)} or a related method
+     * @param x the new x-position
+     * @param y the new y-position
+     * @return true if a light was moved
+     */
+    public boolean move(int handle, int x, int y)
+    {
+        final int index = indexOf(handle);
+        if(index < 0)
+            return false;
+        this.x[index] = x;
+        this.y[index] = y;
+        return true;
+    }
+
+    /**
+     * Copies every field of the given Radiance into the light with the given handle, if it is still present.
+     * @param handle a handle returned by {@link #add(int, int, Radiance)} or a related method
+     * @param light the Radiance to copy from
+     * @return true if a light was changed
+     */
+    public boolean set(int handle, Radiance light)
+    {
+        final int index = indexOf(handle);
+        if(index < 0)
+            return false;
+        range[index] = light.range;
+        color[index] = light.color;
+        flicker[index] = light.flicker;
+        strobe[index] = light.strobe;
+        delay[index] = light.delay;
+        flare[index] = light.flare;
+        seed[index] = light.seed;
+        return true;
+    }
+
+    /**
+     * Copies the light with the given handle into a Radiance, if it is still present.
+     * @param handle a handle returned by {@link #add(int, int, Radiance)} or a related method
+     * @param into a Radiance to overwrite, or null to make a new one
+     * @return into after modification, or a new Radiance if into was null, or null if the handle isn't current
+     */
+    public Radiance get(int handle, Radiance into)
+    {
+        final int index = indexOf(handle);
+        if(index < 0)
+            return null;
+        if(into == null)
+            into = new Radiance();
+        into.range = range[index];
+        into.color = color[index];
+        into.flicker = flicker[index];
+        into.strobe = strobe[index];
+        into.delay = delay[index];
+        into.flare = flare[index];
+        into.seed = seed[index];
+        return into;
+    }
+
+    /**
+     * Gets the range of the light at the given index at the given time, exactly as
+     * {@link Radiance#currentRange(long)} would for a Radiance with the same fields.
+     * @param index an index of a live light, from 0 (inclusive) to {@link #limit} (exclusive)
+     * @param millis the time in milliseconds to evaluate flicker and strobe at, such as from {@link LightClock#millis()}
+     * @return the range at the given time, adjusting for flicker and strobe
+     */
+    public float currentRange(int index, long millis)
+    {
+        return Radiance.currentRange(range[index], flicker[index], strobe[index], delay[index], flare[index],
+                seed[index], millis);
+    }
+
+    /**
+     * Evaluates {@link #currentRange(int, long)} for every index below {@link #limit} at one shared time, storing the
+     * ranges in {@code into} at the same indices; free indices get a range of 0.
+     * @param millis the time in milliseconds to evaluate flicker and strobe at, such as from {@link LightClock#millis()}
+     * @param into a float array with length at least {@link #limit}, or null to allocate one
+     * @return into, after modification, or a new array if into was null or too small
+     */
+    public float[] currentRanges(long millis, float[] into)
+    {
+        if(into == null || into.length < limit)
+            into = new float[limit];
+        for (int i = 0; i < limit; i++) {
+            into[i] = handles[i] < 0 ? 0f : currentRange(i, millis);
+        }
+        return into;
+    }
+
+    /**
+     * Removes every light. Handles from before this is called are not reliably detected as removed afterwards.
+     */
+    public void clear()
+    {
+        size = 0;
+        limit = 0;
+        freeCount = 0;
+    }
+}
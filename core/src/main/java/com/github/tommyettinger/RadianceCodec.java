@@ -0,0 +1,243 @@
+package com.github.tommyettinger;
+
+import squidpony.squidmath.Coord;
+import squidpony.squidmath.NumberTools;
+import squidpony.squidmath.OrderedMap;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads and writes long lists of lights, as text or as bytes, without allocating anything per light. Level files
+ * with thousands of lights can be loaded straight into a {@link RadianceBank}, or one light at a time into a reused
+ * {@link Radiance} with {@link #readLight(CharSequence, int, Radiance)}.
+ * <br>
+ * As text, each light is a record of {@link #TEXT_RECORD_LENGTH} chars: its x and y as 4 hex digits each, then the
+ * light in the same form as {@link Radiance#serializeToString()}, such as
+ * {@code 000A0003{40400000,FE7F7FFF,00000000,00000000,00000000,00000000,0000002A}}. Records are written one per
+ * line, and when reading, any whitespace between records is skipped, so files edited on any platform can be read.
+ * Hex digits can be upper or lower case when reading; they are written in upper case.
+ * <br>
+ * As bytes, each light is a record of {@link LightingCodec#RECORD_BYTES}, the same as the records a
+ * {@link LightingCodec} uses: its x and y as chars, its six float fields as float bits, and its seed, in the byte order
+ * of the ByteBuffer.
+ */
+public final class RadianceCodec {
+    /**
+     * How many chars one light takes as text, not counting the line break after it.
+     */
+    public static final int TEXT_RECORD_LENGTH = 72;
+
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    private RadianceCodec()
+    {
+    }
+
+    /**
+     * Appends one light at x,y to text as a record, followed by a line break.
+     * @param text the StringBuilder to append to
+     * @param x the x-position of the light, from 0 to 65535
+     * @param y the y-position of the light, from 0 to 65535
+     * @param light the light to write
+     * @return text, for chaining
+     */
+    public static StringBuilder appendLight(StringBuilder text, int x, int y, Radiance light)
+    {
+        appendHex(text, x, 4);
+        appendHex(text, y, 4);
+        return light.appendTo(text).append('\n');
+    }
+
+    /**
+     * Appends every light in a map to text, in the map's order, one record per line.
+     * @param text the StringBuilder to append to
+     * @param lights a map of positions to lights, such as {@link LightingHandler#lights} after
+     *               {@link LightingHandler#syncLights()}
+     * @return text, for chaining
+     */
+    public static StringBuilder appendLights(StringBuilder text, OrderedMap<Coord, Radiance> lights)
+    {
+        final int n = lights.size();
+        text.ensureCapacity(text.length() + n * (TEXT_RECORD_LENGTH + 1));
+        for (int i = 0; i < n; i++) {
+            final Coord pos = lights.keyAt(i);
+            appendLight(text, pos.x, pos.y, lights.getAt(i));
+        }
+        return text;
+    }
+
+    /**
+     * Appends every light in a bank to text, in index order, one record per line.
+     * @param text the StringBuilder to append to
+     * @param bank the RadianceBank to write
+     * @return text, for chaining
+     */
+    public static StringBuilder appendLights(StringBuilder text, RadianceBank bank)
+    {
+        text.ensureCapacity(text.length() + bank.size * (TEXT_RECORD_LENGTH + 1));
+        for (int i = 0; i < bank.limit; i++) {
+            if(!bank.isLive(i))
+                continue;
+            appendHex(text, bank.x[i], 4);
+            appendHex(text, bank.y[i], 4);
+            Radiance.appendTo(text, bank.range[i], bank.color[i], bank.flicker[i], bank.strobe[i], bank.delay[i],
+                    bank.flare[i], bank.seed[i]).append('\n');
+        }
+        return text;
+    }
+
+    /**
+     * Reads the light in the record at offset into a reused Radiance; the position of the light can be read with
+     * {@link #readX(CharSequence, int)} and {@link #readY(CharSequence, int)}. This doesn't check that the record is
+     * valid; see {@link #isRecord(CharSequence, int)}.
+     * @param text text holding a record at offset
+     * @param offset where the record starts
+     * @param into the Radiance to overwrite
+     * @return into, after modification
+     */
+    public static Radiance readLight(CharSequence text, int offset, Radiance into)
+    {
+        return Radiance.parse(text, offset + 8, into);
+    }
+
+    /**
+     * Reads the x-position of the light in the record at offset.
+     * @param text text holding a record at offset
+     * @param offset where the record starts
+     * @return the x-position of the light
+     */
+    public static int readX(CharSequence text, int offset)
+    {
+        return readHex(text, offset, 4);
+    }
+
+    /**
+     * Reads the y-position of the light in the record at offset.
+     * @param text text holding a record at offset
+     * @param offset where the record starts
+     * @return the y-position of the light
+     */
+    public static int readY(CharSequence text, int offset)
+    {
+        return readHex(text, offset + 4, 4);
+    }
+
+    /**
+     * Checks if a whole record starts at offset, by checking its length and where its braces are.
+     * @param text the text to check
+     * @param offset where a record might start
+     * @return true if text has a record at offset
+     */
+    public static boolean isRecord(CharSequence text, int offset)
+    {
+        return offset >= 0 && offset + TEXT_RECORD_LENGTH <= text.length() && text.charAt(offset + 8) == '{'
+                && text.charAt(offset + TEXT_RECORD_LENGTH - 1) == '}';
+    }
+
+    /**
+     * Finds the next record at or after offset, skipping whitespace, or returns -1 if the text has no more records.
+     * @param text the text to search
+     * @param offset where to start looking
+     * @return where the next record starts, or -1 if there isn't one
+     */
+    public static int nextRecord(CharSequence text, int offset)
+    {
+        final int length = text.length();
+        while (offset < length && text.charAt(offset) <= ' ') {
+            ++offset;
+        }
+        return isRecord(text, offset) ? offset : -1;
+    }
+
+    /**
+     * Reads every record from offset onward into bank, adding each light in the order it appears. Reading stops at
+     * the end of the text, or at the first thing that isn't whitespace or a whole record. Nothing is allocated per light,
+     * though the bank may grow; give it enough capacity up front to avoid that.
+     * @param text text holding records, such as from {@link #appendLights(StringBuilder, RadianceBank)}
+     * @param offset where to start reading
+     * @param bank the RadianceBank to add lights to
+     * @return how many lights were added
+     */
+    public static int readLights(CharSequence text, int offset, RadianceBank bank)
+    {
+        int count = 0;
+        while ((offset = nextRecord(text, offset)) >= 0) {
+            final int r = offset + 9;
+            bank.add(readHex(text, offset, 4), readHex(text, offset + 4, 4),
+                    NumberTools.intBitsToFloat(readHex(text, r, 8)),
+                    NumberTools.intBitsToFloat(readHex(text, r + 9, 8)),
+                    NumberTools.intBitsToFloat(readHex(text, r + 18, 8)),
+                    NumberTools.intBitsToFloat(readHex(text, r + 27, 8)),
+                    NumberTools.intBitsToFloat(readHex(text, r + 36, 8)),
+                    NumberTools.intBitsToFloat(readHex(text, r + 45, 8)),
+                    readHex(text, r + 54, 8));
+            offset += TEXT_RECORD_LENGTH;
+            ++count;
+        }
+        return count;
+    }
+
+    /**
+     * Writes every light in a bank to buffer as byte records, in index order, starting at the buffer's position.
+     * @param buffer a ByteBuffer with at least {@code bank.size * LightingCodec.RECORD_BYTES} bytes remaining
+     * @param bank the RadianceBank to write
+     * @return buffer, for chaining
+     */
+    public static ByteBuffer writeLights(ByteBuffer buffer, RadianceBank bank)
+    {
+        for (int i = 0; i < bank.limit; i++) {
+            if(!bank.isLive(i))
+                continue;
+            buffer.putChar((char) bank.x[i]);
+            buffer.putChar((char) bank.y[i]);
+            buffer.putFloat(bank.range[i]);
+            buffer.putFloat(bank.color[i]);
+            buffer.putFloat(bank.flicker[i]);
+            buffer.putFloat(bank.strobe[i]);
+            buffer.putFloat(bank.delay[i]);
+            buffer.putFloat(bank.flare[i]);
+            buffer.putInt(bank.seed[i]);
+        }
+        return buffer;
+    }
+
+    /**
+     * Reads count byte records from buffer into bank, starting at the buffer's position and advancing it. Nothing is
+     * allocated per light, though the bank may grow.
+     * @param buffer a ByteBuffer holding records, such as from {@link #writeLights(ByteBuffer, RadianceBank)}
+     * @param count how many records to read
+     * @param bank the RadianceBank to add lights to
+     * @return bank, for chaining
+     */
+    public static RadianceBank readLights(ByteBuffer buffer, int count, RadianceBank bank)
+    {
+        for (int i = 0; i < count; i++) {
+            bank.add(buffer.getChar(), buffer.getChar(), buffer.getFloat(), buffer.getFloat(), buffer.getFloat(),
+                    buffer.getFloat(), buffer.getFloat(), buffer.getFloat(), buffer.getInt());
+        }
+        return bank;
+    }
+
+    /**
+     * Appends the low digits * 4 bits of value to text as upper-case hex, most significant digit first.
+     */
+    static void appendHex(StringBuilder text, int value, int digits)
+    {
+        for (int shift = digits - 1 << 2; shift >= 0; shift -= 4) {
+            text.append(HEX_DIGITS[value >>> shift & 15]);
+        }
+    }
+
+    /**
+     * Reads digits hex digits of either case from text, starting at offset; doesn't check that they are hex digits.
+     */
+    static int readHex(CharSequence text, int offset, int digits)
+    {
+        int value = 0;
+        for (int i = offset, end = offset + digits; i < end; i++) {
+            final int c = text.charAt(i);
+            value = value << 4 | (c <= '9' ? c - '0' : (c | 0x20) - 'a' + 10);
+        }
+        return value;
+    }
+}
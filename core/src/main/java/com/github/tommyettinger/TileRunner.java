@@ -0,0 +1,34 @@
+package com.github.tommyettinger;
+
+/**
+ * Runs the tiles of a {@link LightingHandler}'s light mixing, possibly in parallel. A LightingHandler with a non-null
+ * {@link LightingHandler#tileRunner} first calculates the FOV of every light it needs to mix, then splits the map into
+ * square tiles and calls {@link #run(LightingHandler, int)}; an implementation must call
+ * {@link LightingHandler#mixTile(int)} exactly once for each tile from 0 (inclusive) to tileCount (exclusive), in any
+ * order and on any threads, and must not return until all of those calls have finished. Each tile only writes to its
+ * own cells and mixes lights in the same order as the serial code does, so the results are identical no matter how the
+ * tiles are scheduled.
+ * <br>
+ * The core module only has {@link #SERIAL}, since GWT can't use threads; the desktop module has a ForkJoinPool-based
+ * implementation.
+ */
+public interface TileRunner {
+    /**
+     * Mixes each tile of the given LightingHandler by calling {@link LightingHandler#mixTile(int)} once per tile.
+     * @param handler the LightingHandler to mix lights in
+     * @param tileCount how many tiles there are; tiles are numbered from 0 to tileCount - 1
+     */
+    void run(LightingHandler handler, int tileCount);
+
+    /**
+     * Mixes every tile one after another on the current thread; mostly useful for testing.
+     */
+    TileRunner SERIAL = new TileRunner() {
+        @Override
+        public void run(LightingHandler handler, int tileCount) {
+            for (int i = 0; i < tileCount; i++) {
+                handler.mixTile(i);
+            }
+        }
+    };
+}
@@ -0,0 +1,1134 @@
+package com.github.tommyettinger;
+
+import com.github.tommyettinger.colorful.oklab.Palette;
+import org.junit.Assert;
+import org.junit.Test;
+import squidpony.ArrayTools;
+import squidpony.squidgrid.FOV;
+import squidpony.squidgrid.Radius;
+import squidpony.squidmath.Coord;
+import squidpony.squidmath.GreasedRegion;
+import squidpony.squidmath.NumberTools;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Tests for {@link LightingHandler} and the classes it uses.
+ */
+public class LightingTests {
+    /**
+     * The per-channel float lerp that {@link LightingHandler#lerpPackedBits(int, int, float)} replaces.
+     */
+    private static int lerpChannel(int start, int end, float change)
+    {
+        return (int) (start + change * (end - start)) & 0xFF;
+    }
+
+    @Test
+    public void testPackedBlendErrorBound() {
+        long state = 0x9E3779B97F4A7C15L;
+        for (int i = 0; i < 200000; i++) {
+            state = state * 0xD1342543DE82EF95L + 1L;
+            final int s = (int) (state >>> 32), e = (int) state;
+            final float change = (i & 1023) / 1023f;
+            final int packed = LightingHandler.lerpPackedBits(s, e, change);
+            for (int shift = 0; shift < 32; shift += 8) {
+                final int expected = lerpChannel(s >>> shift & 0xFF, e >>> shift & 0xFF, change),
+                        actual = packed >>> shift & 0xFF;
+                Assert.assertTrue("channel at bit " + shift + " was " + actual + " but should be near " + expected,
+                        Math.abs(expected - actual) <= 1);
+            }
+        }
+    }
+
+    @Test
+    public void testPackedBlendEndpoints() {
+        final int s = 0xFE123456, e = 0xFE89ABCD;
+        Assert.assertEquals(s, LightingHandler.lerpPackedBits(s, e, 0f));
+        Assert.assertEquals(e, LightingHandler.lerpPackedBits(s, e, 1f));
+        Assert.assertEquals(s, LightingHandler.lerpPackedBits(s, s, 0.37f));
+    }
+
+    @Test
+    public void testManualClockIsRepeatable() {
+        final double[][] resistances = new double[30][20];
+        final LightingHandler lighting = new LightingHandler(resistances);
+        final LightClock.Manual clock = new LightClock.Manual(1000L);
+        lighting.clock = clock;
+        for (int i = 0; i < 6; i++) {
+            lighting.addLight(3 + i * 4, 5 + i * 2, new Radiance(4f, Palette.WHITE, 1.5f, 0.7f, 0f, 0f, i));
+        }
+        lighting.calculateFOV(15, 10);
+        final float[][] ranges = new float[5][], strengths = new float[5][30 * 20], colors = new float[5][30 * 20];
+        // the second run rewinds the clock and replays the same frames on the same handler
+        for (int run = 0; run < 2; run++) {
+            clock.time = 1000L;
+            for (int frame = 0; frame < 5; frame++) {
+                clock.advance(37L);
+                lighting.update();
+                if(run == 0)
+                    ranges[frame] = lighting.currentRanges(null);
+                else
+                    Assert.assertArrayEquals(ranges[frame], lighting.currentRanges(null), 0f);
+                for (int x = 0, i = 0; x < 30; x++) {
+                    for (int y = 0; y < 20; y++, i++) {
+                        if(run == 0)
+                        {
+                            strengths[frame][i] = lighting.getLightStrength(x, y);
+                            colors[frame][i] = lighting.getLightColor(x, y);
+                        }
+                        else
+                        {
+                            Assert.assertEquals(strengths[frame][i], lighting.getLightStrength(x, y), 0f);
+                            Assert.assertEquals(colors[frame][i], lighting.getLightColor(x, y), 0f);
+                        }
+                    }
+                }
+            }
+        }
+        // the lights flicker, so a replay that ignored the clock would not match
+        Assert.assertTrue(ranges[0][0] != ranges[1][0]);
+        final Radiance[] radiances = new Radiance[6];
+        for (int i = 0; i < 6; i++) {
+            radiances[i] = lighting.lights.getAt(i);
+        }
+        final float[] current = Radiance.currentRanges(radiances, 6, clock.time, null);
+        for (int i = 0; i < 6; i++) {
+            Assert.assertEquals(radiances[i].currentRange(clock.time), current[i], 0f);
+        }
+    }
+
+    @Test
+    public void testBankMatchesLights() {
+        final double[][] resistances = new double[30][20];
+        for (int x = 0; x < 30; x++) {
+            resistances[x][0] = resistances[x][19] = resistances[x][9] = 1.0;
+        }
+        resistances[12][9] = 0.0;
+        final LightingHandler mapped = new LightingHandler(resistances), banked = new LightingHandler(resistances);
+        final LightClock.Manual clock = new LightClock.Manual(500L);
+        mapped.clock = clock;
+        banked.clock = clock;
+        final RadianceBank bank = new RadianceBank(2);
+        banked.useBank(bank);
+        final int[] handles = new int[8];
+        for (int i = 0; i < 8; i++) {
+            final Radiance light = new Radiance(3f + i % 3, Palette.WHITE, i * 0.3f, 0f, 0f, 0.1f, i);
+            mapped.addLight(2 + i * 3, 3 + i * 2, light);
+            handles[i] = bank.add(2 + i * 3, 3 + i * 2, light);
+        }
+        mapped.moveLight(2, 3, 5, 14);
+        Assert.assertTrue(bank.move(handles[0], 5, 14));
+        mapped.removeLight(11, 9);
+        Assert.assertTrue(bank.remove(handles[3]));
+        Assert.assertFalse(bank.contains(handles[3]));
+        Assert.assertFalse(bank.remove(handles[3]));
+        Assert.assertEquals(7, bank.size);
+        for (int frame = 0; frame < 3; frame++) {
+            mapped.calculateFOV(12, 8);
+            banked.calculateFOV(12, 8);
+            clock.advance(41L);
+            mapped.update();
+            banked.update();
+            for (int x = 0; x < 30; x++) {
+                for (int y = 0; y < 20; y++) {
+                    Assert.assertEquals(mapped.fovResult[x][y], banked.fovResult[x][y], 0.0);
+                    Assert.assertEquals(mapped.getLightStrength(x, y), banked.getLightStrength(x, y), 0f);
+                    Assert.assertEquals(mapped.getLightColor(x, y), banked.getLightColor(x, y), 0f);
+                }
+            }
+        }
+        final int reused = bank.add(1, 1, new Radiance(2f));
+        Assert.assertEquals(handles[3] & 0xFFFFFF, bank.indexOf(reused));
+        Assert.assertNotEquals(handles[3], reused);
+        Assert.assertFalse(bank.contains(handles[3]));
+        Assert.assertEquals(2f, bank.get(reused, null).range, 0f);
+    }
+
+    /**
+     * Asserts that two handlers have exactly the same lighting and line of sight in every cell.
+     */
+    private static void assertSameLighting(String step, LightingHandler expected, LightingHandler actual)
+    {
+        for (int x = 0; x < expected.width; x++) {
+            for (int y = 0; y < expected.height; y++) {
+                Assert.assertEquals(step + " at " + x + "," + y, expected.fovResult[x][y], actual.fovResult[x][y], 0.0);
+                Assert.assertEquals(step + " at " + x + "," + y,
+                        expected.getLightStrength(x, y), actual.getLightStrength(x, y), 0f);
+                Assert.assertEquals(step + " at " + x + "," + y,
+                        expected.getLightColor(x, y), actual.getLightColor(x, y), 0f);
+            }
+        }
+    }
+
+    @Test
+    public void testFlatStorageMatchesNested() {
+        final double[][] resistances = new double[50][36];
+        for (int x = 0; x < 50; x++) {
+            for (int y = 0; y < 36; y++) {
+                if((x * 7 + y * 3) % 23 == 0 || x == 0 || y == 0 || x == 49 || y == 35)
+                    resistances[x][y] = 1.0;
+            }
+        }
+        for (int y = 4; y < 30; y++) {
+            resistances[25][y] = y == 17 ? 0.5 : 1.0;
+        }
+        final LightingHandler nested = new LightingHandler(resistances), flat = new LightingHandler(resistances),
+                nestedTiled = new LightingHandler(resistances), flatTiled = new LightingHandler(resistances);
+        final LightingHandler[] all = {nested, flat, nestedTiled, flatTiled};
+        final LightClock.Manual clock = new LightClock.Manual(700L);
+        flat.useFlatStorage(true);
+        flatTiled.useFlatStorage(true).useTileRunner(TileRunner.SERIAL);
+        nestedTiled.useTileRunner(TileRunner.SERIAL);
+        nestedTiled.tileSize = flatTiled.tileSize = 8;
+        final float[] colors = {Palette.WHITE, Palette.ANGEL_WING, Palette.COAL_BLACK};
+        for (LightingHandler lighting : all) {
+            lighting.clock = clock;
+            lighting.viewerRange = 60.0;
+            for (int i = 0; i < 14; i++) {
+                lighting.addLight(2 + i * 3, 2 + (i * 13) % 32,
+                        new Radiance(2.5f + (i % 4) * 1.5f, colors[i % 3], (i & 1) * 0.8f, 0f, 0f, 0.3f, i));
+            }
+            lighting.addStaticLight(40, 8, new Radiance(5f, Palette.ANGEL_WING, 0f, 0f, 0f, 0.2f, 20));
+            lighting.addShade(12, 20, new Radiance(3f, Palette.COAL_BLACK, 0f, 0f, 0f, 0.35f, 21));
+            lighting.addShade(27, 17, new Radiance(4f, Palette.COAL_BLACK, 0f, 0f, 0f, 0.35f, 22));
+            lighting.calculateFOV(20, 17);
+        }
+        final float[][][] drawn = new float[4][50][36];
+        final float[][] backgrounds = new float[50][36];
+        ArrayTools.fill(backgrounds, Palette.GRAY);
+        for (int frame = 0; frame < 4; frame++) {
+            if(frame > 0)
+            {
+                clock.advance(61L);
+                for (LightingHandler lighting : all) {
+                    lighting.update();
+                }
+            }
+            for (int i = 0; i < 4; i++) {
+                all[i].draw(drawn[i], backgrounds);
+            }
+            assertSameLighting("frame " + frame, nested, flat);
+            assertSameLighting("tiled frame " + frame, nestedTiled, flatTiled);
+            for (int x = 0; x < 50; x++) {
+                Assert.assertArrayEquals(drawn[0][x], drawn[1][x], 0f);
+                Assert.assertArrayEquals(drawn[2][x], drawn[3][x], 0f);
+            }
+        }
+    }
+
+    @Test
+    public void testStampCacheFollowsResistanceChanges() {
+        final double[][] resistances = new double[40][30];
+        for (int x = 0; x < 40; x++) {
+            for (int y = 0; y < 30; y++) {
+                if(x == 0 || y == 0 || x == 39 || y == 29 || x == 20)
+                    resistances[x][y] = 1.0;
+            }
+        }
+        final LightingHandler cached = new LightingHandler(ArrayTools.copy(resistances)),
+                uncached = new LightingHandler(ArrayTools.copy(resistances));
+        final LightingHandler[] both = {cached, uncached};
+        cached.useStampCache(64);
+        for (LightingHandler lighting : both) {
+            lighting.clock = new LightClock.Manual(300L);
+            lighting.viewerRange = 80.0;
+            // lights in open space would skip the cache for ready-made falloffs
+            lighting.openAreaStamps = false;
+            // whole-number radii, so the cache's quantized radii are exact
+            lighting.addLight(10, 10, new Radiance(4f, Palette.WHITE, 0f, 0f, 0f, 0.2f, 1));
+            lighting.addLight(15, 15, new Radiance(5f, Palette.ANGEL_WING, 0f, 0f, 0f, 0.3f, 2));
+            lighting.addLight(25, 12, new Radiance(3f, Palette.WHITE, 0f, 0f, 0f, 0.2f, 3));
+            lighting.addLight(30, 20, new Radiance(4f, Palette.COAL_BLACK, 0f, 0f, 0f, 0.35f, 4));
+            lighting.addLight(5, 25, new Radiance(3f, Palette.WHITE, 0f, 0f, 0f, 0.2f, 5));
+            lighting.calculateFOV(18, 15);
+        }
+        assertSameLighting("start", uncached, cached);
+
+        // opening a door in the wall column only discards the stamps near it, so the far light is still a hit
+        int hits = cached.stampCache.hits;
+        for (LightingHandler lighting : both) {
+            lighting.setResistance(20, 15, 0.0);
+            lighting.calculateFOV(18, 15);
+        }
+        assertSameLighting("setResistance", uncached, cached);
+        Assert.assertTrue(cached.stampCache.hits > hits);
+
+        final GreasedRegion rubble = new GreasedRegion(40, 30);
+        rubble.insert(14, 12).insert(15, 12).insert(16, 12).insert(26, 14);
+        for (LightingHandler lighting : both) {
+            lighting.setResistances(rubble, 1.0);
+            lighting.calculateFOV(18, 15);
+        }
+        assertSameLighting("setResistances(GreasedRegion)", uncached, cached);
+
+        final double[][] patch = new double[3][4];
+        patch[1][1] = 1.0;
+        patch[2][3] = 0.5;
+        for (LightingHandler lighting : both) {
+            lighting.setResistances(8, 8, patch);
+            lighting.calculateFOV(18, 15);
+        }
+        assertSameLighting("setResistances(int, int, double[][])", uncached, cached);
+
+        // editing resistances directly and bumping the version has to discard every stamp
+        for (LightingHandler lighting : both) {
+            lighting.resistances[20][8] = 0.0;
+            lighting.resistances[11][12] = 1.0;
+            lighting.resistanceVersion++;
+            lighting.calculateFOV(18, 15);
+        }
+        assertSameLighting("resistanceVersion++", uncached, cached);
+    }
+
+    @Test
+    public void testChangedSinceTracksAreas() {
+        final LightingHandler lighting = new LightingHandler(new double[150][10]);
+        final int start = lighting.resistanceVersion;
+        lighting.setResistance(1, 1, 1.0);
+        lighting.setResistance(3, 1, 1.0);
+        Assert.assertTrue(lighting.changedSince(start, 1, 1, 2, 2));
+        Assert.assertTrue(lighting.changedSince(start, 0, 0, 150, 10));
+        Assert.assertFalse(lighting.changedSince(start, 2, 1, 3, 2));
+        Assert.assertFalse(lighting.changedSince(start, 1, 2, 150, 10));
+        Assert.assertFalse(lighting.changedSince(lighting.resistanceVersion, 0, 0, 150, 10));
+        // setting a cell to the resistance it already has isn't a change
+        final int same = lighting.resistanceVersion;
+        lighting.setResistance(1, 1, 1.0);
+        Assert.assertEquals(same, lighting.resistanceVersion);
+
+        int middle = 0;
+        for (int i = 2; i < LightingHandler.MAX_CHANGES + 6; i++) {
+            lighting.setResistance(1 + i * 2, 1, 1.0);
+            if(i == 40)
+                middle = lighting.resistanceVersion;
+        }
+        Assert.assertEquals(LightingHandler.MAX_CHANGES, lighting.resistanceChangeCount);
+        // the oldest areas were merged, so the gap between the first two edits now counts as changed
+        Assert.assertTrue(lighting.changedSince(start, 2, 1, 3, 2));
+        Assert.assertTrue(lighting.changedSince(start, 1, 1, 2, 2));
+        // newer areas are still kept apart
+        Assert.assertFalse(lighting.changedSince(start, 2 + 60 * 2, 1, 3 + 60 * 2, 2));
+        Assert.assertTrue(lighting.changedSince(start, 1 + 60 * 2, 1, 2 + 60 * 2, 2));
+        Assert.assertFalse(lighting.changedSince(start, 1, 2, 150, 10));
+        // and only changes after the given version count
+        Assert.assertFalse(lighting.changedSince(middle, 1 + 20 * 2, 1, 2 + 20 * 2, 2));
+        Assert.assertTrue(lighting.changedSince(middle, 1 + 50 * 2, 1, 2 + 50 * 2, 2));
+    }
+
+    @Test
+    public void testLightIndexDefersMapChanges() {
+        final LightingHandler lighting = new LightingHandler(new double[40][30]);
+        final Radiance a = new Radiance(2f), b = new Radiance(3f), c = new Radiance(2.5f), d = new Radiance(1.5f),
+                e = new Radiance(2f);
+        lighting.addLight(5, 5, a).addLight(10, 5, b).addLight(15, 5, c).addLight(20, 5, d);
+        lighting.moveLight(10, 5, 30, 25).removeLight(15, 5).addLight(35, 2, e);
+        // the index knows about every change before the map catches up
+        Assert.assertSame(b, lighting.get(30, 25));
+        Assert.assertNull(lighting.get(10, 5));
+        Assert.assertNull(lighting.get(15, 5));
+        lighting.syncLights();
+        final Coord[] positions = {Coord.get(5, 5), Coord.get(30, 25), Coord.get(20, 5), Coord.get(35, 2)};
+        final Radiance[] radiances = {a, b, d, e};
+        Assert.assertEquals(positions.length, lighting.lights.size());
+        for (int i = 0; i < positions.length; i++) {
+            Assert.assertEquals(positions[i], lighting.lights.keyAt(i));
+            Assert.assertSame(radiances[i], lighting.lights.getAt(i));
+        }
+        // outside the calculated area, the light is only found if the index knows how far it reaches
+        lighting.calculateFOV(24, 25, 0, 0, 27, 30);
+        Assert.assertEquals(0f, lighting.getLightStrength(25, 25), 0f);
+        lighting.setLightRange(Coord.get(30, 25), 8f);
+        Assert.assertEquals(8f, b.range, 0f);
+        lighting.calculateFOV(24, 25, 0, 0, 27, 30);
+        Assert.assertTrue(lighting.getLightStrength(25, 25) > 0f);
+        // shrinking it again, then growing it by assigning the range directly, is caught up on by refreshLightRanges()
+        lighting.setLightRange(Coord.get(30, 25), 3f);
+        lighting.calculateFOV(24, 25, 0, 0, 27, 30);
+        Assert.assertEquals(0f, lighting.getLightStrength(25, 25), 0f);
+        b.range = 8f;
+        lighting.refreshLightRanges();
+        lighting.calculateFOV(24, 25, 0, 0, 27, 30);
+        Assert.assertTrue(lighting.getLightStrength(25, 25) > 0f);
+    }
+
+    @Test
+    public void testBudgetCountsOnlyMixedLights() {
+        final LightingHandler lighting = new LightingHandler(new double[60][20]);
+        lighting.clock = new LightClock.Manual(1000L);
+        lighting.viewerRange = 80.0;
+        lighting.lightBudget = 2;
+        for (int i = 0; i < 10; i++) {
+            lighting.addLight(3 + i * 6, 10, new Radiance(2f, Palette.WHITE, 1f, 0f, 0f, 0f, i));
+        }
+        lighting.calculateFOV(30, 10);
+        for (int frame = 0; frame < 3; frame++) {
+            lighting.update(0, 0, 20, 20);
+            // only the lights at x = 3, 9, 15, and 21 can reach the updated area
+            Assert.assertEquals(4, lighting.refreshedLights + lighting.deferredLights);
+        }
+        Assert.assertTrue(lighting.deferredLights > 0);
+    }
+
+    @Test
+    public void testTemporalCoherenceMatchesFreshFrames() {
+        final double[][] resistances = new double[70][40];
+        for (int y = 0; y < 40; y++) {
+            resistances[35][y] = y == 20 ? 0.0 : 1.0;
+        }
+        final LightingHandler coherent = new LightingHandler(resistances), fresh = new LightingHandler(resistances),
+                plain = new LightingHandler(resistances);
+        final LightClock.Manual clock = new LightClock.Manual(2000L);
+        coherent.clock = clock;
+        fresh.clock = clock;
+        plain.clock = clock;
+        coherent.viewerRange = fresh.viewerRange = plain.viewerRange = 80.0;
+        coherent.tileSize = fresh.tileSize = plain.tileSize = 8;
+        coherent.useTemporalCoherence(true);
+        for (int i = 0; i < 10; i++) {
+            // only the first light flickers, so tiles it can't reach should be reused
+            final float flicker = i == 0 ? 2f : 0f;
+            coherent.addLight(4 + i * 6, 6 + i * 3, new Radiance(4.5f, Palette.WHITE, flicker, 0f, 0f, 0f, i));
+            fresh.addLight(4 + i * 6, 6 + i * 3, new Radiance(4.5f, Palette.WHITE, flicker, 0f, 0f, 0f, i));
+            // without coherence, the first light is given each frame's rounded radius by hand instead of flickering
+            plain.addLight(4 + i * 6, 6 + i * 3, new Radiance(4.5f, Palette.WHITE, 0f, 0f, 0f, 0f, i));
+        }
+        coherent.calculateFOV(30, 20);
+        fresh.calculateFOV(30, 20);
+        plain.calculateFOV(30, 20);
+        final Coord flickering = Coord.get(4, 6);
+        int reused = 0;
+        for (int frame = 0; frame < 8; frame++) {
+            clock.advance(53L);
+            if(frame == 5)
+            {
+                coherent.moveLight(40, 24, 41, 25);
+                fresh.moveLight(40, 24, 41, 25);
+                plain.moveLight(40, 24, 41, 25);
+            }
+            coherent.update();
+            fresh.useTemporalCoherence(true);
+            fresh.update();
+            plain.setLightRange(flickering, Math.round(coherent.get(flickering).currentRange(clock.time)
+                    * coherent.coherenceSteps) / (float) coherent.coherenceSteps);
+            plain.update();
+            if(frame > 0)
+                reused += coherent.reusedTiles;
+            Assert.assertEquals(0, fresh.reusedTiles);
+            for (int x = 0; x < 70; x++) {
+                for (int y = 0; y < 40; y++) {
+                    Assert.assertEquals(fresh.getLightStrength(x, y), coherent.getLightStrength(x, y), 0f);
+                    Assert.assertEquals(fresh.getLightColor(x, y), coherent.getLightColor(x, y), 0f);
+                    Assert.assertEquals(plain.getLightStrength(x, y), coherent.getLightStrength(x, y), 0f);
+                    Assert.assertEquals(plain.getLightColor(x, y), coherent.getLightColor(x, y), 0f);
+                }
+            }
+        }
+        Assert.assertTrue(reused > 0);
+    }
+
+    @Test
+    public void testUpdateAndDrawMatchesSeparatePasses() {
+        final double[][] resistances = new double[60][40];
+        for (int y = 0; y < 40; y++) {
+            resistances[30][y] = y == 20 ? 0.0 : 1.0;
+        }
+        final float[][] backgrounds = new float[60][40];
+        for (int x = 0; x < 60; x++) {
+            for (int y = 0; y < 40; y++) {
+                backgrounds[x][y] = (x + y & 3) == 0 ? 0f : Palette.GRAY;
+            }
+        }
+        final LightClock.Manual clock = new LightClock.Manual(500L);
+        for (int mode = 0; mode < 3; mode++) {
+            final LightingHandler fused = new LightingHandler(resistances), separate = new LightingHandler(resistances);
+            fused.clock = separate.clock = clock;
+            fused.tileSize = separate.tileSize = 8;
+            if(mode == 1)
+            {
+                fused.useTileRunner(TileRunner.SERIAL);
+                separate.useTileRunner(TileRunner.SERIAL);
+            }
+            else if(mode == 2)
+            {
+                fused.useTemporalCoherence(true);
+                separate.useTemporalCoherence(true);
+            }
+            for (int i = 0; i < 8; i++) {
+                fused.addLight(4 + i * 7, 5 + i * 4, new Radiance(4f, Palette.WHITE, 1.5f, 0f, 0f, 0f, i));
+                separate.addLight(4 + i * 7, 5 + i * 4, new Radiance(4f, Palette.WHITE, 1.5f, 0f, 0f, 0f, i));
+            }
+            fused.addStaticLight(12, 12, new Radiance(5f, Palette.WHITE, 0f, 0f, 0f, 0f));
+            separate.addStaticLight(12, 12, new Radiance(5f, Palette.WHITE, 0f, 0f, 0f, 0f));
+            fused.calculateFOV(20, 20);
+            separate.calculateFOV(20, 20);
+            final float[][] fusedDrawn = new float[60][40], separateDrawn = new float[60][40];
+            for (int frame = 0; frame < 4; frame++) {
+                clock.advance(37L);
+                fused.updateAndDraw(fusedDrawn, backgrounds, 0.125f, 3, 2, 45, 35);
+                separate.update(3, 2, 45, 35);
+                separate.draw(separateDrawn, backgrounds, 0.125f, 3, 2, 45, 35);
+                for (int x = 0; x < 60; x++) {
+                    for (int y = 0; y < 40; y++) {
+                        Assert.assertEquals(separateDrawn[x][y], fusedDrawn[x][y], 0f);
+                        Assert.assertEquals(separate.getLightStrength(x, y), fused.getLightStrength(x, y), 0f);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testOpenAreaStampsMatchShadowcasting() {
+        final double[][] resistances = new double[40][30];
+        for (int y = 4; y < 26; y++) {
+            resistances[20][y] = 1.0;
+        }
+        resistances[8][8] = 0.5;
+        final LightingHandler open = new LightingHandler(resistances), cast = new LightingHandler(resistances),
+                openCached = new LightingHandler(resistances), castCached = new LightingHandler(resistances);
+        final LightingHandler[] all = {open, cast, openCached, castCached};
+        final LightClock.Manual clock = new LightClock.Manual(200L);
+        cast.openAreaStamps = castCached.openAreaStamps = false;
+        openCached.useStampCache(64);
+        castCached.useStampCache(64);
+        for (LightingHandler lighting : all) {
+            lighting.clock = clock;
+            lighting.viewerRange = 50.0;
+            // half of the lights flicker, so the falloff is written for a different range almost every frame
+            for (int i = 0; i < 12; i++) {
+                final float range = 1.5f + (i % 5) * 1.25f;
+                lighting.addLight(3 + i * 3, 2 + (i * 7) % 26,
+                        new Radiance(range, Palette.WHITE, (i & 1) * 0.6f, 0f, 0f, 0.2f, i));
+            }
+            lighting.calculateFOV(10, 15);
+        }
+        for (int frame = 0; frame < 5; frame++) {
+            if(frame > 0)
+            {
+                clock.advance(53L);
+                for (LightingHandler lighting : all) {
+                    lighting.update();
+                }
+            }
+            for (int x = 0; x < 40; x++) {
+                for (int y = 0; y < 30; y++) {
+                    Assert.assertEquals(cast.fovResult[x][y], open.fovResult[x][y], 0.0);
+                    Assert.assertEquals(cast.getLightStrength(x, y), open.getLightStrength(x, y), 0f);
+                    Assert.assertEquals(cast.getLightColor(x, y), open.getLightColor(x, y), 0f);
+                    Assert.assertEquals(castCached.getLightStrength(x, y), openCached.getLightStrength(x, y), 0f);
+                    Assert.assertEquals(castCached.getLightColor(x, y), openCached.getLightColor(x, y), 0f);
+                }
+            }
+        }
+        Assert.assertTrue(open.openArea.hits > 0);
+        Assert.assertTrue(openCached.openArea.hits > 0);
+        Assert.assertNull(cast.openArea);
+        Assert.assertNull(castCached.openArea);
+    }
+
+    @Test
+    public void testCompactStampsMatchDoubles() {
+        Assert.assertEquals(0, LightStamp.toLevel(0.0));
+        Assert.assertEquals(1, LightStamp.toLevel(1e-9));
+        Assert.assertEquals(65535, LightStamp.toLevel(1.0));
+        final double[][] resistances = new double[60][40];
+        for (int x = 0; x < 60; x++) {
+            for (int y = 0; y < 40; y++) {
+                if((x * 5 + y * 3) % 17 == 0 || x == 0 || y == 0 || x == 59 || y == 39)
+                    resistances[x][y] = 1.0;
+            }
+        }
+        final LightingHandler compact = new LightingHandler(resistances), exact = new LightingHandler(resistances);
+        compact.viewerRange = exact.viewerRange = 70.0;
+        compact.useStampCache(64).useTileRunner(TileRunner.SERIAL).useCompactStamps(true);
+        exact.useStampCache(64).useTileRunner(TileRunner.SERIAL);
+        final float[] colors = {Palette.WHITE, Palette.ANGEL_WING, Palette.COAL_BLACK};
+        for (int i = 0; i < 15; i++) {
+            final float range = 2.5f + (i % 4) * 1.5f;
+            compact.addLight(2 + i * 4, 2 + (i * 11) % 36, new Radiance(range, colors[i % 3], 0f, 0f, 0f, 0.3f, i));
+            exact.addLight(2 + i * 4, 2 + (i * 11) % 36, new Radiance(range, colors[i % 3], 0f, 0f, 0f, 0.3f, i));
+        }
+        compact.calculateFOV(30, 20);
+        exact.calculateFOV(30, 20);
+        for (int x = 0; x < 60; x++) {
+            for (int y = 0; y < 40; y++) {
+                Assert.assertEquals(exact.getLightStrength(x, y), compact.getLightStrength(x, y), 0.001f);
+                final int e = Float.floatToIntBits(exact.getLightColor(x, y)),
+                        c = Float.floatToIntBits(compact.getLightColor(x, y));
+                // the same cells are lit, and each channel is off by at most one step
+                Assert.assertEquals("at " + x + "," + y, e == Float.floatToIntBits(Palette.GRAY),
+                        c == Float.floatToIntBits(Palette.GRAY));
+                for (int shift = 0; shift < 32; shift += 8) {
+                    Assert.assertTrue("at " + x + "," + y, Math.abs((e >>> shift & 0xFF) - (c >>> shift & 0xFF)) <= 1);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testShadesOnlyDarken() {
+        final double[][] resistances = new double[40][30];
+        for (int x = 0; x < 40; x++) {
+            for (int y = 0; y < 30; y++) {
+                if(x == 0 || y == 0 || x == 39 || y == 29)
+                    resistances[x][y] = 1.0;
+            }
+        }
+        final LightingHandler plain = new LightingHandler(resistances), tiled = new LightingHandler(resistances),
+                unshaded = new LightingHandler(resistances), darkLight = new LightingHandler(resistances);
+        final LightClock.Manual clock = new LightClock.Manual(500L);
+        plain.clock = tiled.clock = unshaded.clock = darkLight.clock = clock;
+        plain.viewerRange = tiled.viewerRange = unshaded.viewerRange = darkLight.viewerRange = 80.0;
+        final LightingStats stats = new LightingStats(4);
+        plain.useStats(stats);
+        // with nothing in the way, lights would skip FOV too, so only shades get ready-made falloffs here
+        plain.openAreaStamps = tiled.openAreaStamps = unshaded.openAreaStamps = darkLight.openAreaStamps = false;
+        tiled.useTileRunner(TileRunner.SERIAL).useTemporalCoherence(true);
+        tiled.tileSize = 8;
+        for (LightingHandler lighting : new LightingHandler[]{plain, tiled, unshaded, darkLight}) {
+            lighting.addLight(10, 10, new Radiance(5f, Palette.WHITE, 0f, 0f, 0f, 0.2f, 1));
+        }
+        for (LightingHandler lighting : new LightingHandler[]{plain, tiled}) {
+            lighting.addShade(12, 10, new Radiance(3f, Palette.COAL_BLACK, 0f, 0f, 0f, 0.35f, 2));
+            lighting.addShade(30, 20, new Radiance(3f, Palette.COAL_BLACK, 0f, 0f, 0f, 0.35f, 3));
+        }
+        // before shades, a creature glow was mixed as a dark light like this one
+        darkLight.addLight(12, 10, new Radiance(3f, Palette.COAL_BLACK, 0f, 0f, 0f, 0.35f, 2));
+        plain.calculateFOV(10, 12);
+        tiled.calculateFOV(10, 12);
+        unshaded.calculateFOV(10, 12);
+        darkLight.calculateFOV(10, 12);
+        // a cell no light reaches takes the shade's color, as it would from a light
+        Assert.assertEquals(Palette.COAL_BLACK, plain.getLightColor(30, 20), 0f);
+        Assert.assertTrue(plain.getLightStrength(30, 20) > 0f);
+        // a lit cell keeps its strength, hue, and saturation, and only gets darker
+        for (int x = 8; x < 16; x++) {
+            final int lit = Float.floatToIntBits(unshaded.getLightColor(x, 10)),
+                    shaded = Float.floatToIntBits(plain.getLightColor(x, 10));
+            Assert.assertEquals(unshaded.getLightStrength(x, 10), plain.getLightStrength(x, 10), 0f);
+            Assert.assertEquals(lit & 0xFFFFFF00, shaded & 0xFFFFFF00);
+            Assert.assertTrue((shaded & 0xFF) <= (lit & 0xFF));
+            // and it darkens about as much as the dark light did, not all the way to black
+            final int dark = Float.floatToIntBits(darkLight.getLightColor(x, 10));
+            Assert.assertTrue("at " + x + ",10", Math.abs((shaded & 0xFF) - (dark & 0xFF)) <= 2);
+        }
+        Assert.assertTrue((Float.floatToIntBits(plain.getLightColor(12, 10)) & 0xFF)
+                < (Float.floatToIntBits(unshaded.getLightColor(12, 10)) & 0xFF));
+        for (int frame = 0; frame < 6; frame++) {
+            clock.advance(40L);
+            if(frame == 3)
+            {
+                plain.moveShade(30, 20, 31, 20);
+                tiled.moveShade(30, 20, 31, 20);
+            }
+            plain.update();
+            tiled.update();
+            // shades in open space use a ready-made falloff, so only the light runs FOV
+            Assert.assertEquals(1L, stats.last(LightingStats.UPDATE, LightingStats.FOV_COMPUTATIONS));
+            for (int x = 0; x < 40; x++) {
+                for (int y = 0; y < 30; y++) {
+                    Assert.assertEquals(plain.getLightStrength(x, y), tiled.getLightStrength(x, y), 0f);
+                    Assert.assertEquals(plain.getLightColor(x, y), tiled.getLightColor(x, y), 0f);
+                }
+            }
+        }
+        Assert.assertEquals(Palette.COAL_BLACK, plain.getLightColor(31, 20), 0f);
+        // a shade that brightens is refiled as a light, and lit as one from the next update on
+        plain.shades.get(Coord.get(31, 20)).color = Palette.WHITE;
+        plain.refile(Coord.get(31, 20));
+        plain.update();
+        Assert.assertFalse(plain.shades.containsKey(Coord.get(31, 20)));
+        Assert.assertNotNull(plain.get(31, 20));
+        Assert.assertEquals(Palette.WHITE, plain.getLightColor(31, 20), 0f);
+        // moveGlow() and removeGlow() find it among the lights now
+        plain.moveGlow(Coord.get(31, 20), Coord.get(32, 20));
+        Assert.assertNull(plain.get(31, 20));
+        Assert.assertNotNull(plain.get(32, 20));
+        // and refile() turns it back into a shade once it darkens again
+        plain.get(32, 20).color = Palette.COAL_BLACK;
+        plain.refile(Coord.get(32, 20));
+        Assert.assertNull(plain.get(32, 20));
+        Assert.assertTrue(plain.shades.containsKey(Coord.get(32, 20)));
+        plain.moveGlow(Coord.get(32, 20), Coord.get(33, 20));
+        Assert.assertTrue(plain.shades.containsKey(Coord.get(33, 20)));
+        plain.removeGlow(Coord.get(33, 20));
+        Assert.assertFalse(plain.shades.containsKey(Coord.get(33, 20)));
+        Assert.assertNull(plain.get(33, 20));
+    }
+
+    @Test
+    public void testShadesStayBehindWalls() {
+        final double[][] resistances = new double[30][20];
+        for (int x = 0; x < 30; x++) {
+            for (int y = 0; y < 20; y++) {
+                if(x == 0 || y == 0 || x == 29 || y == 19 || x == 15)
+                    resistances[x][y] = 1.0;
+            }
+        }
+        final LightingHandler shaded = new LightingHandler(resistances), unshaded = new LightingHandler(resistances);
+        for (LightingHandler lighting : new LightingHandler[]{shaded, unshaded}) {
+            lighting.clock = new LightClock.Manual(500L);
+            lighting.viewerRange = 80.0;
+            lighting.addLight(12, 10, new Radiance(4f, Palette.WHITE, 0f, 0f, 0f, 0.2f, 1));
+            lighting.calculateFOV(10, 10);
+        }
+        shaded.addShade(16, 10, new Radiance(3f, Palette.COAL_BLACK, 0f, 0f, 0f, 0.35f, 2));
+        shaded.calculateFOV(10, 10);
+        // the wall column hides the shade, so nothing the viewer sees changes, not even the wall facing the viewer
+        for (int x = 0; x <= 15; x++) {
+            for (int y = 0; y < 20; y++) {
+                Assert.assertEquals(unshaded.fovResult[x][y], shaded.fovResult[x][y], 0.0);
+                Assert.assertEquals(unshaded.visibleCells.contains(x, y), shaded.visibleCells.contains(x, y));
+                Assert.assertEquals(unshaded.getLightStrength(x, y), shaded.getLightStrength(x, y), 0f);
+                Assert.assertEquals(unshaded.getLightColor(x, y), shaded.getLightColor(x, y), 0f);
+            }
+        }
+        // from the shade's side of the wall, it still tints the cells no light reaches, and the wall facing it
+        shaded.calculateFOV(20, 10);
+        Assert.assertEquals(Palette.COAL_BLACK, shaded.getLightColor(17, 10), 0f);
+        Assert.assertEquals(Palette.COAL_BLACK, shaded.getLightColor(15, 10), 0f);
+    }
+
+    @Test
+    public void testCodecRoundTrip() throws IOException {
+        final double[][] resistances = new double[45][35];
+        for (int x = 0; x < 45; x++) {
+            for (int y = 0; y < 35; y++) {
+                if(x == 0 || y == 0 || x == 44 || y == 34 || (x * 3 + y * 7) % 19 == 0)
+                    resistances[x][y] = 1.0;
+                else if((x + y) % 23 == 0)
+                    resistances[x][y] = 0.3;
+            }
+        }
+        final LightingHandler original = new LightingHandler(resistances, Palette.LEAD, Radius.DIAMOND, 9.5);
+        for (int i = 0; i < 2000; i++) {
+            original.addLight(1 + i % 43, 1 + (i / 43) % 33, new Radiance(1.5f + (i % 7) * 0.5f, Palette.ANGEL_WING,
+                    (i & 1) * 0.8f, (i & 2) * 0.3f, i * 0.01f, 0.1f, i * 0x9E3779B9));
+        }
+        original.addStaticLight(20, 20, new Radiance(3f, Palette.WHITE, 0f, 0f, 0f, 0f, 77));
+        final LightingCodec codec = new LightingCodec(64);
+        final ByteBuffer buffer = ByteBuffer.allocate(codec.encode(original).size + 5);
+        buffer.put((byte) 1);
+        codec.write(buffer);
+        buffer.flip();
+        buffer.get();
+        final LightingHandler decoded = new LightingCodec(64).read(buffer).decode();
+        Assert.assertEquals(original.radiusStrategy, decoded.radiusStrategy);
+        Assert.assertEquals(original.viewerRange, decoded.viewerRange, 0.0);
+        Assert.assertEquals(original.backgroundColor, decoded.backgroundColor, 0f);
+        for (int x = 0; x < 45; x++) {
+            Assert.assertArrayEquals(original.resistances[x], decoded.resistances[x], 0.0);
+        }
+        Assert.assertEquals(original.lights.size(), decoded.lights.size());
+        for (int i = 0; i < original.lights.size(); i++) {
+            Assert.assertEquals(original.lights.keyAt(i), decoded.lights.keyAt(i));
+            Assert.assertEquals(original.lights.getAt(i), decoded.lights.getAt(i));
+        }
+        Assert.assertEquals(original.staticLights.getAt(0), decoded.staticLights.get(Coord.get(20, 20)));
+        final LightClock.Manual clock = new LightClock.Manual(500L);
+        original.clock = decoded.clock = clock;
+        original.calculateFOV(10, 10);
+        decoded.calculateFOV(10, 10);
+        for (int x = 0; x < 45; x++) {
+            for (int y = 0; y < 35; y++) {
+                Assert.assertEquals(original.getLightStrength(x, y), decoded.getLightStrength(x, y), 0f);
+                Assert.assertEquals(original.getLightColor(x, y), decoded.getLightColor(x, y), 0f);
+            }
+        }
+
+        // too many distinct resistances for the palette, and lights in a bank with a freed index
+        for (int x = 0; x < 45; x++) {
+            for (int y = 0; y < 35; y++) {
+                resistances[x][y] = (x * 35 + y) / 2000.0;
+            }
+        }
+        final RadianceBank bank = new RadianceBank();
+        final int removed = bank.add(3, 4, new Radiance(2f));
+        bank.add(5, 6, new Radiance(4f, Palette.WHITE, 0.5f, 0f, 0f, 0f, 12));
+        bank.add(7, 8, new Radiance(3f, Palette.COAL_BLACK, 0f, 0f, 0f, 0f, 34));
+        bank.remove(removed);
+        original.useBank(bank);
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        codec.encode(original).write(new DataOutputStream(bytes));
+        final LightingHandler banked = codec.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())))
+                .decode();
+        for (int x = 0; x < 45; x++) {
+            Assert.assertArrayEquals(original.resistances[x], banked.resistances[x], 0.0);
+        }
+        Assert.assertEquals(2, banked.bank.size);
+        Assert.assertEquals(bank.get(bank.handles[1], null), banked.bank.get(0, null));
+        Assert.assertEquals(bank.get(bank.handles[2], null), banked.bank.get(1, null));
+        Assert.assertEquals(7, banked.bank.x[1]);
+        Assert.assertEquals(8, banked.bank.y[1]);
+    }
+
+    @Test
+    public void testRadianceCodecRoundTrip() {
+        final Radiance light = new Radiance(3f, NumberTools.intBitsToFloat(0xFE7F7FFF), 0f, 0f, 0f, 0f, 42);
+        final String serialized = light.serializeToString();
+        Assert.assertEquals("{40400000,FE7F7FFF,00000000,00000000,00000000,00000000,0000002A}", serialized);
+        Assert.assertEquals(light, Radiance.deserializeFromString(serialized));
+        Assert.assertEquals(light, Radiance.parse(serialized.toLowerCase(), 0, new Radiance()));
+
+        final LightingHandler lighting = new LightingHandler(new double[300][300]);
+        for (int i = 0; i < 500; i++) {
+            lighting.addLight(i % 300, i / 300 * 7 + 3, new Radiance(i * 0.25f, Palette.ANGEL_WING, i * 0.5f, 0.125f,
+                    0.75f, 0.1f, i * 0x9E3779B9));
+        }
+        final RadianceBank bank = new RadianceBank(lighting.lights);
+        bank.remove(bank.handles[3]);
+        final StringBuilder text = RadianceCodec.appendLights(new StringBuilder("header\r\n"), lighting.lights);
+        // the bank reads the same records as the map wrote, then the bank's own records with the removed light gone
+        final RadianceBank read = new RadianceBank(1000);
+        Assert.assertEquals(500, RadianceCodec.readLights(text, 8, read));
+        Assert.assertEquals(499, RadianceCodec.readLights(RadianceCodec.appendLights(new StringBuilder(), bank), 0,
+                read));
+        final Radiance reused = new Radiance();
+        for (int i = 0, offset = 8; i < 500; i++, offset += RadianceCodec.TEXT_RECORD_LENGTH + 1) {
+            Assert.assertEquals(lighting.lights.getAt(i), read.get(read.handles[i], reused));
+            Assert.assertEquals(lighting.lights.keyAt(i), Coord.get(read.x[i], read.y[i]));
+            Assert.assertEquals(lighting.lights.getAt(i), RadianceCodec.readLight(text, offset, reused));
+            Assert.assertEquals(read.x[i], RadianceCodec.readX(text, offset));
+            Assert.assertEquals(read.y[i], RadianceCodec.readY(text, offset));
+        }
+        for (int i = 0, j = 500; i < 500; i++) {
+            if(i != 3)
+                Assert.assertEquals(lighting.lights.getAt(i), read.get(read.handles[j++], reused));
+        }
+
+        final ByteBuffer buffer = ByteBuffer.allocate(bank.size * LightingCodec.RECORD_BYTES);
+        RadianceCodec.writeLights(buffer, bank).flip();
+        final RadianceBank fromBytes = RadianceCodec.readLights(buffer, bank.size, new RadianceBank());
+        Assert.assertEquals(499, fromBytes.size);
+        for (int i = 0, j = 0; i < 500; i++) {
+            if(i == 3)
+                continue;
+            Assert.assertEquals(lighting.lights.getAt(i), fromBytes.get(fromBytes.handles[j], reused));
+            Assert.assertEquals(lighting.lights.keyAt(i), Coord.get(fromBytes.x[j], fromBytes.y[j]));
+            ++j;
+        }
+    }
+
+    @Test
+    public void testRadianceCodecBulkRoundTrip() {
+        final int count = 100000;
+        final RadianceBank bank = new RadianceBank(count);
+        for (int i = 0; i < count; i++) {
+            bank.add(i % 1000, i / 1000, 1f + (i & 15), Palette.WHITE, (i & 1) * 0.5f, 0f, 0f, 0f, i);
+        }
+        final StringBuilder text = RadianceCodec.appendLights(new StringBuilder(), bank);
+        final ByteBuffer buffer = ByteBuffer.allocate(count * LightingCodec.RECORD_BYTES);
+        final RadianceBank into = new RadianceBank(count * 2);
+        Assert.assertEquals(count, RadianceCodec.readLights(text, 0, into));
+        RadianceCodec.writeLights(buffer, bank).flip();
+        RadianceCodec.readLights(buffer, count, into);
+        Assert.assertEquals(count * 2, into.size);
+        final StringBuilder single = new StringBuilder();
+        for (int i = 0; i < count; i += 997) {
+            Assert.assertEquals(bank.range[i], into.range[i], 0f);
+            Assert.assertEquals(bank.flicker[i], into.flicker[i], 0f);
+            Assert.assertEquals(bank.seed[i], into.seed[count + i]);
+            Assert.assertEquals(bank.x[i], into.x[count + i]);
+            // a bank record is written exactly as the same light would be on its own
+            single.setLength(0);
+            RadianceCodec.appendLight(single, bank.x[i], bank.y[i], new Radiance(bank.range[i], bank.color[i],
+                    bank.flicker[i], bank.strobe[i], bank.delay[i], bank.flare[i], bank.seed[i]));
+            Assert.assertEquals(single.toString(), text.substring(i * (RadianceCodec.TEXT_RECORD_LENGTH + 1),
+                    (i + 1) * (RadianceCodec.TEXT_RECORD_LENGTH + 1)));
+        }
+    }
+
+    @Test
+    public void testVisibleCellsMatchFOV() {
+        final double[][] resistances = new double[50][90];
+        for (int x = 0; x < 50; x++) {
+            for (int y = 0; y < 90; y++) {
+                if((x * 7 + y * 13) % 11 == 0 || x == 0 || y == 0 || x == 49 || y == 89)
+                    resistances[x][y] = 1.0;
+            }
+        }
+        // an infinite resistance blocks sight like any other resistance of 1.0 or more
+        resistances[25][45] = Double.POSITIVE_INFINITY;
+        final LightingHandler lighting = new LightingHandler(resistances);
+        lighting.viewerRange = 30.0;
+        lighting.addLight(20, 70, new Radiance(5f, Palette.WHITE));
+        Assert.assertTrue(lighting.blocking().contains(25, 45));
+        final double[][] expectedFOV = new double[50][90], expectedLOS = new double[50][90],
+                light = new double[50][90];
+        final GreasedRegion cells = new GreasedRegion(50, 90);
+        for (int i = 0; i < 4; i++) {
+            final int vx = 10 + i * 9, vy = 20 + i * 17;
+            lighting.calculateFOV(vx, vy);
+            for (int x = 0; x < 50; x++) {
+                for (int y = 0; y < 90; y++) {
+                    Assert.assertEquals("at " + x + "," + y, lighting.fovResult[x][y] > 0.0,
+                            lighting.visibleCells.contains(x, y));
+                }
+            }
+            // the single shadowcast that fills the bits must also fill the doubles FOV would have
+            FOV.reuseFOV(resistances, expectedFOV, vx, vy, 30.0, Radius.CIRCLE);
+            ArrayTools.fill(light, 0.0);
+            BitVision.fov(lighting.blocking(), vx, vy, 30.0, Radius.CIRCLE, cells, light);
+            for (int x = 0; x < 50; x++) {
+                for (int y = 0; y < 90; y++) {
+                    Assert.assertEquals("at " + x + "," + y, Math.max(expectedFOV[x][y], 0.0), light[x][y], 0.0);
+                    Assert.assertEquals("at " + x + "," + y, expectedFOV[x][y] > 0.0, cells.contains(x, y));
+                }
+            }
+            // a light cast into only its own window matches FOV there and leaves the rest of the array alone
+            final int lx = vx + 3, ly = vy - 2;
+            final double radius = 4.5 + i;
+            final int reach = (int) Math.ceil(radius);
+            FOV.reuseFOV(resistances, expectedFOV, lx, ly, radius, Radius.CIRCLE);
+            ArrayTools.fill(light, -1.0);
+            BitVision.light(lighting.blocking(), lx, ly, radius, Radius.CIRCLE,
+                    lx - reach - 1, ly - reach - 1, lx + reach + 2, ly + reach + 2, light);
+            for (int x = 0; x < 50; x++) {
+                for (int y = 0; y < 90; y++) {
+                    if(Math.abs(x - lx) <= reach + 1 && Math.abs(y - ly) <= reach + 1)
+                        Assert.assertEquals("at " + x + "," + y, Math.max(expectedFOV[x][y], 0.0), light[x][y], 0.0);
+                    else
+                        Assert.assertEquals("at " + x + "," + y, -1.0, light[x][y], 0.0);
+                }
+            }
+            // line of sight, both over the whole map and clipped to bounds that may not hold the viewer
+            for (int clip = 0; clip < 2; clip++) {
+                final int minX = clip * 12, minY = clip * 30, maxX = 50 - clip * 9, maxY = 90 - clip * 25;
+                FOV.reuseLOS(resistances, expectedLOS, vx, vy, minX, minY, maxX, maxY);
+                ArrayTools.fill(light, 0.0);
+                BitVision.los(lighting.blocking(), vx, vy, minX, minY, maxX, maxY, cells, light);
+                for (int x = 0; x < 50; x++) {
+                    for (int y = 0; y < 90; y++) {
+                        Assert.assertEquals("at " + x + "," + y, expectedLOS[x][y], light[x][y], 0.0);
+                        Assert.assertEquals("at " + x + "," + y, expectedLOS[x][y] > 0.0, cells.contains(x, y));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testUpdateAllLineOfSightMatchesWindowScan() {
+        // walls fill the two low rows and columns, with a few cells open just past them, where the old scan's window
+        // reached two cells in from the edge
+        final double[][] resistances = new double[30][20];
+        for (int x = 0; x < 30; x++) {
+            for (int y = 0; y < 20; y++) {
+                if(x < 2 || y < 2 || x == 29 || y == 19 || (x * 5 + y * 3) % 7 == 0)
+                    resistances[x][y] = 1.0;
+            }
+        }
+        resistances[2][2] = 0.0;
+        resistances[2][9] = 1.0;
+        resistances[2][10] = 0.0;
+        resistances[17][2] = 0.0;
+        resistances[18][2] = 1.0;
+        final LightingHandler lighting = new LightingHandler(resistances);
+        lighting.addLight(10, 10, new Radiance(4f, Palette.WHITE));
+        lighting.updateAll();
+        for (int x = 0; x < 30; x++) {
+            for (int y = 0; y < 20; y++) {
+                // the nested loop updateAll() used before it expanded a GreasedRegion
+                boolean expected = false;
+                for (int xx = Math.max(0, x - 1), xi = 0; xi < 3 && xx < 30 && !expected; xi++, xx++) {
+                    for (int yy = Math.max(0, y - 1), yi = 0; yi < 3 && yy < 20; yi++, yy++) {
+                        if(resistances[xx][yy] < 1.0)
+                        {
+                            expected = true;
+                            break;
+                        }
+                    }
+                }
+                Assert.assertEquals("at " + x + "," + y, expected, lighting.losResult[x][y] > 0.0);
+            }
+        }
+        // the low edges really do depend on the wider window there
+        Assert.assertTrue(lighting.losResult[0][0] > 0.0);
+        Assert.assertTrue(lighting.losResult[0][10] > 0.0);
+        Assert.assertTrue(lighting.losResult[17][0] > 0.0);
+    }
+
+    @Test
+    public void testSharedVisionMatchesEachViewer() {
+        // two rooms sealed from each other, so each viewer's half should light exactly as if it were alone
+        final double[][] resistances = new double[60][30];
+        for (int x = 0; x < 60; x++) {
+            for (int y = 0; y < 30; y++) {
+                if(x == 0 || y == 0 || x == 59 || y == 29 || x == 30 || (x == 15 && y > 8 && y < 20))
+                    resistances[x][y] = 1.0;
+            }
+        }
+        final LightingHandler shared = new LightingHandler(resistances), left = new LightingHandler(resistances),
+                right = new LightingHandler(resistances);
+        final LightClock.Manual clock = new LightClock.Manual(300L);
+        shared.clock = left.clock = right.clock = clock;
+        shared.viewerRange = left.viewerRange = right.viewerRange = 20.0;
+        for (int i = 0; i < 8; i++) {
+            final Radiance light = new Radiance(3f + i % 4, Palette.WHITE, i % 3 * 0.5f, 0f, 0f, 0.15f, i);
+            shared.addLight(4 + i * 7, 5 + i * 3, light);
+            left.addLight(4 + i * 7, 5 + i * 3, light);
+            right.addLight(4 + i * 7, 5 + i * 3, light);
+        }
+        final Coord a = Coord.get(8, 14), b = Coord.get(45, 20);
+        shared.calculateFOV(a, b);
+        left.calculateFOV(a);
+        right.calculateFOV(b);
+        clock.advance(29L);
+        shared.update();
+        left.update();
+        right.update();
+        for (int x = 0; x < 60; x++) {
+            final LightingHandler alone = x <= 30 ? left : right;
+            for (int y = 0; y < 30; y++) {
+                // line of sight and noticeable are merged as bits, so they must be exactly the union of both viewers
+                Assert.assertEquals(Math.max(left.losResult[x][y], right.losResult[x][y]), shared.losResult[x][y], 0.0);
+                Assert.assertEquals(left.noticeable.contains(x, y) || right.noticeable.contains(x, y),
+                        shared.noticeable.contains(x, y));
+                if(x == 30)
+                {
+                    Assert.assertEquals(left.visibleCells.contains(x, y) || right.visibleCells.contains(x, y),
+                            shared.visibleCells.contains(x, y));
+                    continue;
+                }
+                Assert.assertEquals(alone.fovResult[x][y], shared.fovResult[x][y], 0.0);
+                Assert.assertEquals(alone.visibleCells.contains(x, y), shared.visibleCells.contains(x, y));
+                Assert.assertEquals(alone.getLightStrength(x, y), shared.getLightStrength(x, y), 0f);
+                Assert.assertEquals(alone.getLightColor(x, y), shared.getLightColor(x, y), 0f);
+            }
+        }
+    }
+
+    @Test
+    public void testStatsCountEachCall() {
+        final double[][] resistances = new double[40][30];
+        for (int y = 0; y < 30; y++) {
+            // the gap is far from the lights past the wall, so the viewer can't see near them
+            resistances[20][y] = y == 1 ? 0.0 : 1.0;
+        }
+        final LightingHandler serial = new LightingHandler(resistances), tiled = new LightingHandler(resistances);
+        final LightingStats serialStats = new LightingStats(4), tiledStats = new LightingStats(4);
+        serial.useStats(serialStats);
+        tiled.useStats(tiledStats).useTileRunner(TileRunner.SERIAL);
+        tiled.tileSize = 8;
+        final LightClock.Manual clock = new LightClock.Manual(100L);
+        serial.clock = tiled.clock = clock;
+        for (int i = 0; i < 10; i++) {
+            serial.addLight(2 + i * 4, 3 + i * 2, new Radiance(3f, Palette.WHITE, 0.5f, 0f, 0f, 0f, i));
+            tiled.addLight(2 + i * 4, 3 + i * 2, new Radiance(3f, Palette.WHITE, 0.5f, 0f, 0f, 0f, i));
+        }
+        serial.calculateFOV(5, 5);
+        tiled.calculateFOV(5, 5);
+        for (int frame = 0; frame < 6; frame++) {
+            clock.advance(20L);
+            serial.update();
+            tiled.update();
+        }
+        final float[][] backgrounds = new float[40][30], edited = new float[40][30];
+        serial.draw(edited, backgrounds);
+        Assert.assertEquals(1L, serialStats.calls(LightingStats.CALCULATE_FOV));
+        Assert.assertEquals(6L, serialStats.calls(LightingStats.UPDATE));
+        Assert.assertEquals(0L, serialStats.calls(LightingStats.UPDATE_ALL));
+        Assert.assertEquals(1L, serialStats.calls(LightingStats.DRAW));
+        Assert.assertEquals(10L, serialStats.last(LightingStats.UPDATE, LightingStats.LIGHTS_CONSIDERED));
+        // the wall hides the lights past it from the viewer, so some lights must have been culled
+        Assert.assertTrue(serialStats.last(LightingStats.UPDATE, LightingStats.LIGHTS_CULLED) > 0L);
+        Assert.assertTrue(serialStats.last(LightingStats.UPDATE, LightingStats.FOV_COMPUTATIONS) > 0L);
+        for (int counter = 0; counter < LightingStats.NANOS; counter++) {
+            Assert.assertEquals(serialStats.last(LightingStats.UPDATE, counter),
+                    tiledStats.last(LightingStats.UPDATE, counter));
+        }
+        final LightingStats.Snapshot snapshot = serialStats.snapshot(LightingStats.UPDATE, null);
+        Assert.assertSame(snapshot, serialStats.snapshot(LightingStats.UPDATE, snapshot));
+        Assert.assertEquals(6L, snapshot.calls);
+        for (int counter = 0; counter < LightingStats.COUNTERS; counter++) {
+            Assert.assertTrue(snapshot.min[counter] <= snapshot.average[counter]);
+            Assert.assertTrue(snapshot.average[counter] <= snapshot.max[counter]);
+        }
+        // a call that throws still finishes counting, so later calls are recorded on their own
+        try {
+            serial.draw(new float[2][2], new float[2][2]);
+            Assert.fail("drawing into arrays smaller than the map should throw");
+        } catch (ArrayIndexOutOfBoundsException expected) {
+            // the exception itself is not what is being tested
+        }
+        serial.draw(edited, backgrounds);
+        clock.advance(20L);
+        serial.update();
+        Assert.assertEquals(3L, serialStats.calls(LightingStats.DRAW));
+        Assert.assertEquals(7L, serialStats.calls(LightingStats.UPDATE));
+        serialStats.reset();
+        Assert.assertEquals(0L, serialStats.calls(LightingStats.UPDATE));
+        Assert.assertEquals(0L, serialStats.max(LightingStats.UPDATE, LightingStats.NANOS));
+    }
+
+    @Test
+    public void testAsyncLightingMatchesInline() throws InterruptedException {
+        final double[][] resistances = new double[50][30], copied = new double[50][30];
+        for (int y = 0; y < 30; y++) {
+            resistances[25][y] = copied[25][y] = y == 12 ? 0.0 : 1.0;
+        }
+        final LightingHandler inline = new LightingHandler(resistances), front = new LightingHandler(copied);
+        final LightClock.Manual clock = new LightClock.Manual(700L);
+        inline.clock = front.clock = clock;
+        inline.viewerRange = front.viewerRange = 12.0;
+        for (int i = 0; i < 9; i++) {
+            inline.addLight(3 + i * 5, 4 + i * 3, new Radiance(4f, Palette.WHITE, 1f, 0.5f, 0f, 0.1f, i));
+            front.addLight(3 + i * 5, 4 + i * 3, new Radiance(4f, Palette.WHITE, 1f, 0.5f, 0f, 0.1f, i));
+        }
+        // a real thread, so results only show up after the worker is done
+        final AsyncLighting async = new AsyncLighting(front, new LightingWorker() {
+            @Override
+            public void execute(Runnable job) {
+                new Thread(job).start();
+            }
+        });
+        Coord viewer = Coord.get(20, 12);
+        inline.calculateFOV(viewer);
+        async.calculateFOV(viewer);
+        for (int frame = 0; frame < 6; frame++) {
+            clock.advance(31L);
+            if(frame == 2)
+            {
+                inline.moveLight(23, 16, 30, 12);
+                front.moveLight(23, 16, 30, 12);
+                viewer = Coord.get(28, 12);
+                inline.calculateFOV(viewer);
+                async.calculateFOV(viewer);
+            }
+            if(frame == 4)
+            {
+                inline.setResistance(25, 13, 0.0);
+                front.setResistance(25, 13, 0.0);
+                inline.calculateFOV(viewer);
+                async.calculateFOV(viewer);
+            }
+            // clipped, so frames where the viewer stays put only copy the lighting in these bounds
+            inline.update(4, 3, 41, 26);
+            // a fast worker may finish in time for this call to collect the job it starts
+            boolean sightChanged = async.update(4, 3, 41, 26);
+            while (async.isBusy()) {
+                Thread.sleep(1L);
+            }
+            // collects the finished job, which used the same time, and starts another one
+            sightChanged |= async.update(4, 3, 41, 26);
+            Assert.assertEquals(frame == 0 || frame == 2 || frame == 4, sightChanged);
+            for (int x = 0; x < 50; x++) {
+                for (int y = 0; y < 30; y++) {
+                    Assert.assertEquals(inline.fovResult[x][y], front.fovResult[x][y], 0.0);
+                    Assert.assertEquals(inline.visibleCells.contains(x, y), front.visibleCells.contains(x, y));
+                    Assert.assertEquals(inline.getLightStrength(x, y), front.getLightStrength(x, y), 0f);
+                    Assert.assertEquals(inline.getLightColor(x, y), front.getLightColor(x, y), 0f);
+                }
+            }
+            while (async.isBusy()) {
+                Thread.sleep(1L);
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.github.tommyettinger.lwjgl3;
+
+import com.github.tommyettinger.LightingHandler;
+import com.github.tommyettinger.TileRunner;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A {@link TileRunner} that mixes the tiles of a {@link LightingHandler} in parallel on a {@link ForkJoinPool}. This
+ * only exists on desktop, since GWT can't use threads. The results are identical to mixing on one thread.
+ */
+public class ForkJoinTileRunner implements TileRunner {
+    /**
+     * The pool tiles are mixed on; the common pool by default.
+     */
+    public final ForkJoinPool pool;
+    /**
+     * Ranges of at most this many tiles are mixed on one thread without splitting further; defaults to 2.
+     */
+    public int grain = 2;
+
+    public ForkJoinTileRunner()
+    {
+        this(ForkJoinPool.commonPool());
+    }
+
+    public ForkJoinTileRunner(ForkJoinPool pool)
+    {
+        this.pool = pool;
+    }
+
+    @Override
+    public void run(LightingHandler handler, int tileCount) {
+        if(tileCount <= grain)
+            TileRunner.SERIAL.run(handler, tileCount);
+        else
+            pool.invoke(new TileRange(handler, 0, tileCount, Math.max(1, grain)));
+    }
+
+    private static class TileRange extends RecursiveAction {
+        private final LightingHandler handler;
+        private final int start, end, grain;
+
+        TileRange(LightingHandler handler, int start, int end, int grain)
+        {
+            this.handler = handler;
+            this.start = start;
+            this.end = end;
+            this.grain = grain;
+        }
+
+        @Override
+        protected void compute() {
+            if(end - start <= grain)
+            {
+                for (int i = start; i < end; i++) {
+                    handler.mixTile(i);
+                }
+            }
+            else
+            {
+                final int mid = start + end >>> 1;
+                invokeAll(new TileRange(handler, start, mid, grain), new TileRange(handler, mid, end, grain));
+            }
+        }
+    }
+}
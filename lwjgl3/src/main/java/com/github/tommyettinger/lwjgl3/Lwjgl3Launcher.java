@@ -18,7 +18,14 @@ public class Lwjgl3Launcher {
 
     private static Lwjgl3Application createApplication() {
         System.setProperty("org.lwjgl.librarypath", ".");
-        return new Lwjgl3Application(new CaveCops(), getDefaultConfiguration());
+        CaveCops game = new CaveCops();
+        // parallel mixing is opt-in; launch with -Dcavecops.parallelLighting=true to use it
+        if (Boolean.getBoolean("cavecops.parallelLighting"))
+            game.tileRunner = new ForkJoinTileRunner();
+        // so is computing lighting ahead, since it shows sight a frame or more behind; use -Dcavecops.asyncLighting=true
+        if (Boolean.getBoolean("cavecops.asyncLighting"))
+            game.lightingWorker = new ThreadLightingWorker();
+        return new Lwjgl3Application(game, getDefaultConfiguration());
     }
 
     private static Lwjgl3ApplicationConfiguration getDefaultConfiguration() {
@@ -0,0 +1,42 @@
+package com.github.tommyettinger.lwjgl3;
+
+import com.github.tommyettinger.AsyncLighting;
+import com.github.tommyettinger.LightingWorker;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A {@link LightingWorker} that runs the jobs of an {@link AsyncLighting} on one background thread, so lighting is
+ * computed while the render thread draws. This only exists on desktop, since GWT can't use threads. The thread is a
+ * daemon, so it doesn't keep the game running after the window closes.
+ */
+public class ThreadLightingWorker implements LightingWorker {
+    /**
+     * The executor jobs run on; a single daemon thread by default.
+     */
+    public final ExecutorService executor;
+
+    public ThreadLightingWorker()
+    {
+        this(Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread thread = new Thread(r, "CaveCops lighting");
+                thread.setDaemon(true);
+                return thread;
+            }
+        }));
+    }
+
+    public ThreadLightingWorker(ExecutorService executor)
+    {
+        this.executor = executor;
+    }
+
+    @Override
+    public void execute(Runnable job) {
+        executor.execute(job);
+    }
+}
@@ -0,0 +1,79 @@
+package com.github.tommyettinger;
+
+import squidpony.squidmath.NumberTools;
+
+/**
+ * Compares the time to blend packed colors with {@link LightingHandler#lerpPackedBits(int, int, float)} against the
+ * per-channel float math it replaced, first on its own and then inside {@link LightingHandler#update()} on a map with
+ * many overlapping lights. Run the main method; results are printed in nanoseconds per blend and milliseconds per
+ * update.
+ */
+public class PackedBlendBenchmark {
+    private static final int COUNT = 1 << 16;
+
+    public static void main(String[] args) {
+        final float[] starts = new float[COUNT], ends = new float[COUNT], changes = new float[COUNT];
+        long state = 1L;
+        for (int i = 0; i < COUNT; i++) {
+            state = state * 0xD1342543DE82EF95L + 1L;
+            starts[i] = NumberTools.intBitsToFloat((int) (state >>> 32) | 0xFE000000);
+            ends[i] = NumberTools.intBitsToFloat((int) state | 0xFE000000);
+            changes[i] = (state >>> 40) * 0x1p-24f;
+        }
+        for (int round = 0; round < 5; round++) {
+            long time = System.nanoTime();
+            float sum = 0f;
+            for (int rep = 0; rep < 100; rep++) {
+                for (int i = 0; i < COUNT; i++) {
+                    sum += floatBlend(starts[i], ends[i], changes[i]);
+                }
+            }
+            final long floatTime = System.nanoTime() - time;
+            time = System.nanoTime();
+            for (int rep = 0; rep < 100; rep++) {
+                for (int i = 0; i < COUNT; i++) {
+                    sum += NumberTools.intBitsToFloat(LightingHandler.lerpPackedBits(NumberTools.floatToIntBits(starts[i]),
+                            NumberTools.floatToIntBits(ends[i]), changes[i]) & 0xFFFFFF | 0xFE000000);
+                }
+            }
+            final long packedTime = System.nanoTime() - time;
+            System.out.printf("float: %.3f ns/blend, packed: %.3f ns/blend (%s)%n",
+                    floatTime / (100.0 * COUNT), packedTime / (100.0 * COUNT), sum);
+        }
+
+        final double[][] resistances = new double[160][96];
+        final LightingHandler lighting = new LightingHandler(resistances);
+        lighting.viewerRange = 200.0;
+        for (int i = 0; i < 200; i++) {
+            state = state * 0xD1342543DE82EF95L + 1L;
+            lighting.addLight((int) ((state >>> 32) % 160), (int) ((state >>> 48) % 96),
+                    new Radiance(6f, NumberTools.intBitsToFloat((int) state | 0xFE000000)));
+        }
+        lighting.calculateFOV(80, 48);
+        for (int round = 0; round < 5; round++) {
+            for (int mode = 0; mode < 2; mode++) {
+                lighting.packedBlending = mode == 1;
+                final long time = System.nanoTime();
+                for (int rep = 0; rep < 50; rep++) {
+                    lighting.update();
+                }
+                System.out.printf("%s update: %.3f ms%n", mode == 1 ? "packed" : "float ",
+                        (System.nanoTime() - time) / 50e6);
+            }
+        }
+    }
+
+    /**
+     * The float math {@link LightingHandler} used before {@link LightingHandler#packedBlending}.
+     */
+    private static float floatBlend(float start, float end, float change)
+    {
+        final int s = NumberTools.floatToIntBits(start), e = NumberTools.floatToIntBits(end),
+                ys = (s & 0xFF), cws = (s >>> 8) & 0xFF, cms = (s >>> 16) & 0xFF,
+                ye = (e & 0xFF), cwe = (e >>> 8) & 0xFF, cme = (e >>> 16) & 0xFF;
+        return NumberTools.intBitsToFloat(((int) (ys + change * (ye - ys)) & 0xFF)
+                | (((int) (cws + change * (cwe - cws)) & 0xFF) << 8)
+                | (((int) (cms + change * (cme - cms)) & 0xFF) << 16)
+                | 0xFE000000);
+    }
+}